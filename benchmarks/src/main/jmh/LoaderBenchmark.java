@@ -0,0 +1,119 @@
+package main.jmh;
+
+import main.version1.java.MatricesMultiplication.MatricesMultiplicationMapper;
+import main.version1.java.RecommendationListGenerator.RecommendationListGeneratorMapper;
+import main.version1.java.RecommendationListGenerator.RecommendationListGeneratorReducer;
+import main.version2.java.IdDictionary;
+import main.version2.java.IncrementalCooccurrence;
+import main.version2.java.MatricesMultiplication;
+import main.version2.java.Normalization;
+import main.version2.java.NormalizedMatrix;
+import main.version2.java.RecommendationListGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * setup() of the tasks which load a side input, one new task per operation: milliseconds of a setup() and, by
+ * -prof gc, bytes allocated by it. A benchmark only builds the pipeline it takes. The loaders which cache the
+ * last file they read (WatchedIndex.load, NormalizedMatrix.load) alternate between two copies of it, so every
+ * setup() reads its file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+    private int run;
+
+    /**
+     * @return 0 and 1 alternately
+     */
+    private int copy() {
+        return run++ & 1;
+    }
+
+    @Benchmark
+    public Object version1CooccurrenceText(Version1Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new MatricesMultiplicationMapper(), pipeline.text);
+    }
+
+    @Benchmark
+    public Object version1CooccurrenceIndex(Version1Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new MatricesMultiplicationMapper(), pipeline.mapped);
+    }
+
+    @Benchmark
+    public Object version1WatchHistory(Version1Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new RecommendationListGeneratorMapper(), pipeline.watched[copy()]);
+    }
+
+    @Benchmark
+    public Object version1MovieTitles(Version1Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new RecommendationListGeneratorReducer(), pipeline.titles);
+    }
+
+    @Benchmark
+    public Object version2WatchHistory(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new RecommendationListGenerator.RecommendationMapper(), pipeline.watched[copy()]);
+    }
+
+    @Benchmark
+    public Object version2WatchedIndex(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new RecommendationListGenerator.RecommendationMapper(), pipeline.mappedWatched);
+    }
+
+    @Benchmark
+    public Object version2MovieTitles(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new RecommendationListGenerator.RecommendationReducer(), pipeline.titles);
+    }
+
+    @Benchmark
+    public Object version2MovieTitlesDictionary(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new RecommendationListGenerator.RecommendationReducer(), pipeline.dictionary);
+    }
+
+    @Benchmark
+    public Object version2NormalizedMatrix(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new MatricesMultiplication.FusedMultiplicationMapper(), pipeline.fused[copy()]);
+    }
+
+    @Benchmark
+    public Object version2NormalizedIndex(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new MatricesMultiplication.FusedMultiplicationMapper(), pipeline.fusedIndex);
+    }
+
+    @Benchmark
+    public Object version2NormalizedIndexSlices(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return NormalizedMatrix.map(pipeline.normalizedSlices);
+    }
+
+    @Benchmark
+    public Object version2PriorHistories(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new IncrementalCooccurrence.NewUserDeltaMapper(), pipeline.prior[copy()]);
+    }
+
+    @Benchmark
+    public Object version2CooccurrenceDelta(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new Normalization.ChangedRowsMapper(), pipeline.changed);
+    }
+
+    @Benchmark
+    public Object version2IdDictionary(Version2Benchmark.Pipeline pipeline) throws Exception {
+        return Tasks.setup(new IdDictionary.EncodeMapper(), pipeline.ratings.conf());
+    }
+}
@@ -0,0 +1,267 @@
+package main.jmh;
+
+import main.common.java.WatchedIndex;
+import main.version1.java.CoocurrenceMatrixBuilder;
+import main.version1.java.MatricesMultiplication;
+import main.version1.java.RecommendationListGenerator;
+import main.version1.java.RelationList;
+import main.version2.java.MovieRating;
+import main.version2.java.RelationOrRating;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The mappers which parse text lines, each against its old map() body as the baseline: the baseline parses
+ * value.toString().trim().split(",") and writes new Writables per record, the mapper itself parses the Text
+ * bytes by TextFields into reused Writables. Both read the same input with the same side input, one map()
+ * call per operation like Version1Benchmark, so -prof gc gives the bytes allocated per record of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+    private Tasks.Calls calls;
+
+    @Setup(Level.Trial)
+    public void setup(Version1Benchmark.Pipeline pipeline, BenchmarkParams params) throws Exception {
+        String benchmark = params.getBenchmark();
+        calls = calls(pipeline, benchmark.substring(benchmark.lastIndexOf('.') + 1));
+    }
+
+    private static Tasks.Calls calls(Version1Benchmark.Pipeline pipeline, String task)
+            throws IOException, InterruptedException {
+        Configuration conf = pipeline.ratings.conf();
+        RecordBuffer ratings = pipeline.ratings.ratings;
+        switch (task) {
+            case "version1DataDividerMapper":
+                return new Tasks.Calls(new main.version1.java.DataDividerByUser.DataDividerMapper(), conf, ratings);
+            case "version1DataDividerMapperBaseline":
+                return new Tasks.Calls(new Version1DataDividerBaseline(), conf, ratings);
+            case "version1CooccurrenceMatrixMapper":
+                return new Tasks.Calls(new CoocurrenceMatrixBuilder.CooccurrenceMatrixMapper(), conf,
+                        pipeline.historyLines);
+            case "version1CooccurrenceMatrixMapperBaseline":
+                return new Tasks.Calls(new Version1CooccurrenceMatrixBaseline(), conf, pipeline.historyLines);
+            case "version1MatricesMultiplicationMapper":
+                return new Tasks.Calls(new MatricesMultiplication.MatricesMultiplicationMapper(), pipeline.text,
+                        ratings);
+            case "version1MatricesMultiplicationMapperBaseline":
+                return new Tasks.Calls(new Version1MatricesMultiplicationBaseline(), pipeline.text, ratings);
+            case "version1RecommendationListGeneratorMapper":
+                return new Tasks.Calls(new RecommendationListGenerator.RecommendationListGeneratorMapper(),
+                        pipeline.watched[0], pipeline.totalLines);
+            case "version1RecommendationListGeneratorMapperBaseline":
+                return new Tasks.Calls(new Version1RecommendationListGeneratorBaseline(), pipeline.watched[0],
+                        pipeline.totalLines);
+            case "version2DataDividerMapper":
+                return new Tasks.Calls(new main.version2.java.DataDividerByUser.DataDividerMapper(), conf, ratings);
+            case "version2DataDividerMapperBaseline":
+                return new Tasks.Calls(new Version2DataDividerBaseline(), conf, ratings);
+            case "version2RatingHistoryMapper":
+                return new Tasks.Calls(new main.version2.java.MatricesMultiplication.RatingHistoryMapper(), conf,
+                        ratings);
+            case "version2RatingHistoryMapperBaseline":
+                return new Tasks.Calls(new Version2RatingHistoryBaseline(), conf, ratings);
+            default:
+                throw new IllegalArgumentException("no task for " + task);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws Exception {
+        calls.close();
+    }
+
+    @Benchmark
+    public void version1DataDividerMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1DataDividerMapperBaseline() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1CooccurrenceMatrixMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1CooccurrenceMatrixMapperBaseline() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1MatricesMultiplicationMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1MatricesMultiplicationMapperBaseline() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1RecommendationListGeneratorMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version1RecommendationListGeneratorMapperBaseline() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version2DataDividerMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version2DataDividerMapperBaseline() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version2RatingHistoryMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void version2RatingHistoryMapperBaseline() throws Throwable {
+        calls.call();
+    }
+
+    public static class Version1DataDividerBaseline extends Mapper<LongWritable, Text, IntWritable, Text> {
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] user_movie_rating = value.toString().trim().split(",");
+            int user_id = Integer.parseInt(user_movie_rating[0]);
+            context.write(new IntWritable(user_id), new Text(user_movie_rating[1] + ":" + user_movie_rating[2]));
+        }
+    }
+
+    public static class Version1CooccurrenceMatrixBaseline extends Mapper<LongWritable, Text, Text, IntWritable> {
+        static IntWritable one = new IntWritable(1);
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] movie_rating = value.toString().trim().split("\t")[1].split(",");
+            String[] movie_id = new String[movie_rating.length];
+            for (int i = 0; i < movie_rating.length; i++) {
+                movie_id[i] = movie_rating[i].split(":")[0];
+            }
+            for (int i = 0; i < movie_id.length; i++) {
+                for (int j = 0; j < movie_id.length; j++) {
+                    context.write(new Text(movie_id[i] + ":" + movie_id[j]), one);
+                }
+            }
+        }
+    }
+
+    /**
+     * the matrix is read into a RelationList like the mapper does, only map() parses and writes the old way
+     */
+    public static class Version1MatricesMultiplicationBaseline
+            extends Mapper<LongWritable, Text, Text, DoubleWritable> {
+        RelationList relations;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            Path path = new Path(conf.get("coOccurrencePath"));
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(path.getFileSystem(conf).open(path)))) {
+                relations = RelationList.read(br);
+            }
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] tokens = value.toString().trim().split(",");
+            int user_id = Integer.parseInt(tokens[0]);
+            int movie_id = Integer.parseInt(tokens[1]);
+            double rating = Double.parseDouble(tokens[2]);
+            int row = relations.rowOf(movie_id);
+            if (row < 0) {
+                return;
+            }
+            for (int k = relations.rowStart(row); k < relations.rowEnd(row); k++) {
+                double score = rating * relations.weightAt(k);
+                context.write(new Text(user_id + ":" + relations.movie2At(k)), new DoubleWritable(score));
+            }
+        }
+    }
+
+    /**
+     * the watch history is loaded into a WatchedIndex like the mapper does
+     */
+    public static class Version1RecommendationListGeneratorBaseline
+            extends Mapper<LongWritable, Text, IntWritable, Text> {
+        WatchedIndex watchHistory;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            watchHistory = WatchedIndex.load(conf, new Path(conf.get("watchHistory")));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] tokens = value.toString().trim().split("\t");
+            int user_id = Integer.parseInt(tokens[0]);
+            int movie_id = Integer.parseInt(tokens[1].split(":")[0]);
+            if (watchHistory.contains(user_id, movie_id)) {
+                return;
+            }
+            context.write(new IntWritable(user_id), new Text(movie_id + ":" + tokens[1].split(":")[1]));
+        }
+    }
+
+    public static class Version2DataDividerBaseline extends Mapper<LongWritable, Text, IntWritable, MovieRating> {
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] user_movie_rating = value.toString().trim().split(",");
+            int user_id = Integer.parseInt(user_movie_rating[0]);
+            int movie_id = Integer.parseInt(user_movie_rating[1]);
+            float rating = Float.parseFloat(user_movie_rating[2]);
+            context.write(new IntWritable(user_id), new MovieRating(movie_id, rating));
+        }
+    }
+
+    public static class Version2RatingHistoryBaseline
+            extends Mapper<LongWritable, Text, IntWritable, RelationOrRating> {
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] tokens = value.toString().trim().split(",");
+            context.write(new IntWritable(Integer.parseInt(tokens[1])),
+                    RelationOrRating.rating(Integer.parseInt(tokens[0]), Double.parseDouble(tokens[2])));
+        }
+    }
+}
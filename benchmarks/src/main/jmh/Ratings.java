@@ -0,0 +1,194 @@
+package main.jmh;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * The synthetic input of the benchmarks, one per trial: movie popularity is Zipf distributed with exponent skew
+ * (0 is uniform) and the history length of the users is Pareto distributed with mean ratingsPerUser, so a few
+ * users rated many movies. Size and skew are JMH parameters, e.g. -p users=20000 -p skew=0.0,1.0,1.5.
+ *      ratings         offset -> user_id,movie_id,rating lines of users 1 .. users, the input of the first stage
+ *      newRatings      1 to 3 more ratings of every tenth user and of users / 20 new users, the input of the
+ *                      incremental mode
+ *      hotMovies       the HOT_MOVIES most popular movies, which the salted mode spreads
+ * The ratings, the new ratings and the titles are also written as files into a temporary directory, with a
+ * copy of each for the loaders which cache the last file they read.
+ */
+@State(Scope.Benchmark)
+public class Ratings {
+    // outputs of the tasks are kept up to this many records, the tasks late in the pipeline see the first ones
+    public static final int MAX_RECORDS = 4_000_000;
+    public static final int TOP_K = 10;
+    private static final int HOT_MOVIES = 8;
+
+    @Param("2000")
+    public int users;
+    @Param("1000")
+    public int movies;
+    @Param("20")
+    public int ratingsPerUser;
+    @Param("1.0")
+    public double skew;
+    @Param("42")
+    public long seed;
+
+    public final Configuration base = new Configuration();
+    public File dir;
+    public RecordBuffer ratings;
+    public RecordBuffer newRatings;
+    public String hotMovies;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        dir = Files.createTempDirectory("jmh-ratings").toFile();
+        Random random = new Random(seed);
+        // popularity rank -> movie_id, shuffled so that the popular movies are not the smallest ids
+        int[] movieOfRank = new int[movies];
+        for (int r = 0; r < movies; r++) {
+            movieOfRank[r] = 10001 + r;
+        }
+        for (int r = movies - 1; r > 0; r--) {
+            int other = random.nextInt(r + 1);
+            int swap = movieOfRank[r];
+            movieOfRank[r] = movieOfRank[other];
+            movieOfRank[other] = swap;
+        }
+        double[] cdf = new double[movies];
+        double sum = 0;
+        for (int r = 0; r < movies; r++) {
+            sum += 1 / Math.pow(r + 1, skew);
+            cdf[r] = sum;
+        }
+        for (int r = 0; r < movies; r++) {
+            cdf[r] /= sum;
+        }
+        StringBuilder hot = new StringBuilder();
+        for (int r = 0; r < Math.min(HOT_MOVIES, movies); r++) {
+            hot.append(r == 0 ? "" : ",").append(movieOfRank[r]);
+        }
+        hotMovies = hot.toString();
+
+        ratings = new RecordBuffer();
+        newRatings = new RecordBuffer();
+        boolean[] rated = new boolean[movies];
+        int[] history = new int[movies];
+        try (BufferedWriter out = writer("ratings.txt"); BufferedWriter outNew = writer("new_ratings.txt")) {
+            // users 1 .. users have a prior history, every tenth of them and users / 20 new users rate 1 to 3
+            // more movies, which are the new ratings of the incremental mode
+            for (int user = 1; user <= users + users / 20; user++) {
+                boolean newUser = user > users;
+                int size = sample(random, cdf, rated, history, 0, newUser ? 0 : historyLength(random));
+                int total = newUser || user % 10 == 0 ? sample(random, cdf, rated, history, size,
+                        size + 1 + random.nextInt(3)) : size;
+                for (int i = 0; i < total; i++) {
+                    rated[history[i]] = false;
+                    String line = user + "," + movieOfRank[history[i]] + "," + (1 + random.nextInt(10)) / 2.0;
+                    add(i < size ? ratings : newRatings, line);
+                    BufferedWriter file = i < size ? out : outNew;
+                    file.write(line);
+                    file.write('\n');
+                }
+            }
+        }
+        Files.copy(new File(file("ratings.txt")).toPath(), new File(file("ratings_copy.txt")).toPath());
+        Files.copy(new File(file("new_ratings.txt")).toPath(), new File(file("new_ratings_copy.txt")).toPath());
+        try (BufferedWriter out = writer("titles.txt")) {
+            for (int movie = 10001; movie <= 10000 + movies; movie++) {
+                out.write(movie + ",Movie " + movie + "\n");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        // the files before their directory
+        Files.walk(dir.toPath()).sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+
+    /**
+     * draw distinct movies by popularity into history[size] .. history[target - 1], marking them in rated
+     * @return the new size
+     */
+    private int sample(Random random, double[] cdf, boolean[] rated, int[] history, int size, int target) {
+        target = Math.min(target, movies);
+        while (size < target) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble());
+            rank = Math.min(rank < 0 ? -rank - 1 : rank, movies - 1);
+            if (!rated[rank]) {
+                rated[rank] = true;
+                history[size++] = rank;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Pareto with shape 2 and scale ratingsPerUser / 2, whose mean is ratingsPerUser
+     */
+    private int historyLength(Random random) {
+        double length = ratingsPerUser / 2.0 / Math.sqrt(1 - random.nextDouble());
+        return (int) Math.min(Math.max(1, Math.round(length)), movies / 2);
+    }
+
+    private static void add(RecordBuffer lines, String line) throws IOException {
+        LongWritable offset = new LongWritable(lines.bytes());
+        lines.add(offset, new Text(line));
+    }
+
+    private BufferedWriter writer(String name) throws IOException {
+        return Files.newBufferedWriter(new File(dir, name).toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return path of a file in the temporary directory
+     */
+    public String file(String name) {
+        return new File(dir, name).getPath();
+    }
+
+    public static Path path(File file) {
+        return new Path(file.getAbsolutePath());
+    }
+
+    /**
+     * copy an index file into the working directory under the name a job links it to by the distributed cache
+     */
+    public static void link(File file, String link) throws IOException {
+        File target = new File(link);
+        Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        target.deleteOnExit();
+    }
+
+    /**
+     * @return copy of the base configuration with the given key, value pairs
+     */
+    public Configuration conf(String... keyValues) {
+        Configuration conf = new Configuration(base);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            conf.set(keyValues[i], keyValues[i + 1]);
+        }
+        return conf;
+    }
+}
@@ -0,0 +1,327 @@
+package main.jmh;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * (key, value) records serialized one after the other into a single buffer, the way a SequenceFile or the
+ * map output buffer holds them. The benchmarks keep the input and output of every task in one:
+ *      reader()       RecordReader deserializing into one reused key and value, like SequenceFileRecordReader
+ *      writer()       RecordWriter appending the output of a task, up to a maximum number of records
+ *      shuffle()      the map outputs sorted by the raw comparator of the key, input of a reducer
+ *      toLines()      records as user_id \t ... text lines the way TextOutputFormat writes them, for version1
+ * Records of one buffer all have the classes of the first one.
+ */
+public class RecordBuffer {
+    private final DataOutputBuffer data = new DataOutputBuffer();
+    // record i: key at start[i] .. valueStart[i] - 1, value at valueStart[i] .. start[i + 1] - 1
+    private int[] start = new int[1024];
+    private int[] valueStart = new int[1024];
+    private int size;
+    private Class<? extends Writable> keyClass;
+    private Class<? extends Writable> valueClass;
+
+    public void add(Writable key, Writable value) throws IOException {
+        if (size == 0) {
+            keyClass = key.getClass();
+            valueClass = value.getClass();
+        }
+        if (size + 1 == start.length) {
+            start = Arrays.copyOf(start, start.length * 2);
+            valueStart = Arrays.copyOf(valueStart, valueStart.length * 2);
+        }
+        start[size] = data.getLength();
+        key.write(data);
+        valueStart[size] = data.getLength();
+        value.write(data);
+        start[++size] = data.getLength();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long bytes() {
+        return data.getLength();
+    }
+
+    public Class<? extends Writable> keyClass() {
+        return keyClass;
+    }
+
+    public Class<? extends Writable> valueClass() {
+        return valueClass;
+    }
+
+    /**
+     * @return the first n records
+     */
+    public RecordBuffer head(int n) throws IOException {
+        RecordBuffer head = new RecordBuffer();
+        for (int i = 0; i < Math.min(n, size); i++) {
+            head.append(this, i);
+        }
+        return head;
+    }
+
+    /**
+     * the records of the map outputs sorted by the registered comparator of the key class, a stable sort so
+     * records with the same key keep the order of the map outputs
+     */
+    public static RecordBuffer shuffle(RecordBuffer... mapOutputs) throws IOException {
+        RecordBuffer all = new RecordBuffer();
+        for (RecordBuffer mapOutput : mapOutputs) {
+            for (int i = 0; i < mapOutput.size; i++) {
+                all.append(mapOutput, i);
+            }
+        }
+        if (all.size == 0) {
+            return all;
+        }
+        RawComparator<?> comparator = WritableComparator.get(all.keyClass.asSubclass(WritableComparable.class));
+        byte[] bytes = all.data.getData();
+        Integer[] order = new Integer[all.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> comparator.compare(bytes, all.start[a], all.valueStart[a] - all.start[a],
+                bytes, all.start[b], all.valueStart[b] - all.start[b]));
+        RecordBuffer sorted = new RecordBuffer();
+        for (int i : order) {
+            sorted.append(all, i);
+        }
+        return sorted;
+    }
+
+    private void append(RecordBuffer other, int i) throws IOException {
+        if (size == 0) {
+            keyClass = other.keyClass;
+            valueClass = other.valueClass;
+        }
+        if (size + 1 == start.length) {
+            start = Arrays.copyOf(start, start.length * 2);
+            valueStart = Arrays.copyOf(valueStart, valueStart.length * 2);
+        }
+        start[size] = data.getLength();
+        valueStart[size] = start[size] + other.valueStart[i] - other.start[i];
+        data.write(other.data.getData(), other.start[i], other.start[i + 1] - other.start[i]);
+        start[++size] = data.getLength();
+    }
+
+    /**
+     * @return records of byte offset -> key \t value line, the text file a version1 job would read
+     */
+    public RecordBuffer toLines(Configuration conf) throws IOException {
+        RecordBuffer lines = new RecordBuffer();
+        LongWritable offset = new LongWritable();
+        Text line = new Text();
+        Reader<Writable, Writable> reader = new Reader<>(conf);
+        long position = 0;
+        while (reader.nextKeyValue()) {
+            line.set(reader.getCurrentKey() + "\t" + reader.getCurrentValue());
+            offset.set(position);
+            lines.add(offset, line);
+            position += line.getLength() + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * write the values of records of offset -> line as a text file
+     */
+    public void writeLines(Configuration conf, File file) throws IOException {
+        Reader<Writable, Writable> reader = new Reader<>(conf);
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            while (reader.nextKeyValue()) {
+                out.write(reader.getCurrentValue().toString());
+                out.write('\n');
+            }
+        }
+    }
+
+    public void writeSequenceFile(Configuration conf, Path path) throws IOException {
+        Reader<Writable, Writable> reader = new Reader<>(conf);
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(path),
+                SequenceFile.Writer.keyClass(keyClass), SequenceFile.Writer.valueClass(valueClass))) {
+            while (reader.nextKeyValue()) {
+                writer.append(reader.getCurrentKey(), reader.getCurrentValue());
+            }
+        }
+    }
+
+    /**
+     * @return reader of the records, the key and value are the same two instances for every record
+     */
+    public <K, V> RecordReader<K, V> reader(Configuration conf) {
+        return new Reader<>(conf);
+    }
+
+    private class Reader<K, V> extends RecordReader<K, V> {
+        final DataInputBuffer in = new DataInputBuffer();
+        final Writable key;
+        final Writable value;
+        int next;
+
+        Reader(Configuration conf) {
+            key = keyClass == null ? null : ReflectionUtils.newInstance(keyClass, conf);
+            value = valueClass == null ? null : ReflectionUtils.newInstance(valueClass, conf);
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            if (next == size) {
+                return false;
+            }
+            in.reset(data.getData(), start[next], start[next + 1] - start[next]);
+            key.readFields(in);
+            value.readFields(in);
+            next++;
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K getCurrentKey() {
+            return (K) key;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V getCurrentValue() {
+            return (V) value;
+        }
+
+        @Override
+        public float getProgress() {
+            return size == 0 ? 1 : (float) next / size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * @return the records as the merged input of a reduce task, which ReduceContextImpl deserializes itself
+     */
+    public RawKeyValueIterator rawIterator() {
+        return new RawKeyValueIterator() {
+            final DataInputBuffer key = new DataInputBuffer();
+            final DataInputBuffer value = new DataInputBuffer();
+            final Progress progress = new Progress();
+            int current = -1;
+
+            @Override
+            public DataInputBuffer getKey() {
+                return key;
+            }
+
+            @Override
+            public DataInputBuffer getValue() {
+                return value;
+            }
+
+            @Override
+            public boolean next() {
+                if (current + 1 >= size) {
+                    return false;
+                }
+                current++;
+                key.reset(data.getData(), start[current], valueStart[current] - start[current]);
+                value.reset(data.getData(), valueStart[current], start[current + 1] - valueStart[current]);
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public Progress getProgress() {
+                return progress;
+            }
+        };
+    }
+
+    /**
+     * @param maxRecords records beyond this are serialized and counted but not kept
+     * @return writer for the output of a task, which serializes every record like the map output collector
+     */
+    public <K, V> Output<K, V> writer(int maxRecords) {
+        return new Output<>(this, maxRecords);
+    }
+
+    /**
+     * output of a task: the records it wrote, their serialized size, and the first maxRecords of them
+     */
+    public static class Output<K, V> extends RecordWriter<K, V> {
+        private final RecordBuffer records;
+        private final int maxRecords;
+        private final DataOutputBuffer scratch = new DataOutputBuffer();
+        private long written;
+        private long bytes;
+
+        Output(RecordBuffer records, int maxRecords) {
+            this.records = records;
+            this.maxRecords = maxRecords;
+        }
+
+        @Override
+        public void write(K key, V value) throws IOException {
+            written++;
+            if (records.size < maxRecords) {
+                long before = records.bytes();
+                records.add((Writable) key, (Writable) value);
+                bytes += records.bytes() - before;
+                return;
+            }
+            ((Writable) key).write(scratch);
+            ((Writable) value).write(scratch);
+            bytes += scratch.getLength();
+            scratch.reset();
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+
+        public long records() {
+            return written;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package main.jmh;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Mappers and Reducers of the pipeline outside of a job. A task gets the Context it would get in a task attempt,
+ * MapContextImpl / ReduceContextImpl of Hadoop wrapped by WrappedMapper / WrappedReducer, reading from a
+ * RecordBuffer and writing into one, and the counters it increments are real counters.
+ *      map(), reduce()     a whole task: Mapper.run() / Reducer.run() call setup(), every map() / reduce() and
+ *                          cleanup(), the output is the input of the next task of the pipeline
+ *      setup()             only setup() of a new task, which loads the side inputs
+ *      Calls               one map() or reduce() call per call(), the unit the benchmarks measure
+ * The tasks of both versions override map(), reduce(), setup() and cleanup() as public methods, Calls invokes
+ * them by method handles of these overrides, so a call does not allocate more than the task itself.
+ */
+public class Tasks {
+    private static final MethodType MAP = MethodType.methodType(void.class, Object.class, Object.class,
+            Mapper.Context.class);
+    private static final MethodType REDUCE = MethodType.methodType(void.class, Object.class, Iterable.class,
+            Reducer.Context.class);
+    // the type of every handle, so invokeExact needs no conversion
+    private static final MethodType CALL = MethodType.methodType(void.class, Object.class, Object.class,
+            Object.class, Object.class);
+    private static final MethodType SETUP = MethodType.methodType(void.class, Object.class, Object.class);
+
+    /**
+     * run the mapper on every record of input
+     * @param maxOutput records of the output kept, the rest is only counted
+     */
+    public static RecordBuffer map(Mapper<?, ?, ?, ?> mapper, Configuration conf, RecordBuffer input, int maxOutput)
+            throws IOException, InterruptedException {
+        RecordBuffer output = new RecordBuffer();
+        run(mapper, mapContext(conf, input.reader(conf), output.writer(maxOutput)));
+        return output;
+    }
+
+    /**
+     * run the reducer on input, which has to be sorted like the output of RecordBuffer.shuffle()
+     * @param grouping comparator which decides the keys of one reduce() call, null for the sort comparator
+     */
+    public static RecordBuffer reduce(Reducer<?, ?, ?, ?> reducer, Configuration conf, RecordBuffer input,
+                                      RawComparator<?> grouping, int maxOutput)
+            throws IOException, InterruptedException {
+        RecordBuffer output = new RecordBuffer();
+        run(reducer, reduceContext(conf, input, grouping, output.writer(maxOutput)));
+        return output;
+    }
+
+    /**
+     * run setup() of a new mapper or reducer on an empty input, which loads its side inputs
+     * @return the task
+     */
+    public static <T> T setup(T task, Configuration conf) throws IOException, InterruptedException {
+        RecordBuffer empty = new RecordBuffer();
+        Object context = task instanceof Mapper ? mapContext(conf, empty.reader(conf), empty.writer(0))
+                : reduceContext(conf, empty, null, empty.writer(0));
+        invoke(handle(task, "setup", context), task, context);
+        return task;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void run(Object task, Object context) throws IOException, InterruptedException {
+        if (task instanceof Mapper) {
+            ((Mapper) task).run((Mapper.Context) context);
+        } else {
+            ((Reducer) task).run((Reducer.Context) context);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Mapper.Context mapContext(Configuration conf, RecordReader<?, ?> reader,
+                                             RecordWriter<?, ?> writer) {
+        TaskAttemptID task = new TaskAttemptID("benchmark", 0, TaskType.MAP, 0, 0);
+        return new WrappedMapper().getMapContext(
+                new MapContextImpl(conf, task, reader, writer, null, new Reporter(), null));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Reducer.Context reduceContext(Configuration conf, RecordBuffer input, RawComparator<?> grouping,
+                                                 RecordWriter<?, ?> writer) throws IOException, InterruptedException {
+        TaskAttemptID task = new TaskAttemptID("benchmark", 0, TaskType.REDUCE, 0, 0);
+        Reporter reporter = new Reporter();
+        RawComparator<?> comparator = grouping != null || input.keyClass() == null ? grouping
+                : WritableComparator.get(input.keyClass().asSubclass(WritableComparable.class));
+        // an empty input, for setup(), has no classes but the context needs a deserializer
+        return new WrappedReducer().getReducerContext(new ReduceContextImpl(conf, task, input.rawIterator(),
+                reporter.getCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+                reporter.getCounter(TaskCounter.REDUCE_INPUT_RECORDS), writer, null, reporter, comparator,
+                input.keyClass() == null ? Writable.class : input.keyClass(),
+                input.valueClass() == null ? Writable.class : input.valueClass()));
+    }
+
+    /**
+     * @return handle of the public override of a method of Mapper or Reducer, as (task, arguments...) of Object,
+     *         null if the task does not override it
+     */
+    private static MethodHandle handle(Object task, String name, Object context) {
+        MethodType type = name.equals("map") ? MAP : name.equals("reduce") ? REDUCE
+                : MethodType.methodType(void.class, context instanceof Mapper.Context ? Mapper.Context.class
+                : Reducer.Context.class);
+        try {
+            MethodHandle handle = MethodHandles.publicLookup().findVirtual(task.getClass(), name, type);
+            return handle.asType(type.parameterCount() == 3 ? CALL : SETUP);
+        } catch (IllegalAccessException e) {
+            // the protected method of Mapper or Reducer, which does nothing
+            return null;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(task.getClass().getName() + " has no " + name + "()", e);
+        }
+    }
+
+    private static void invoke(MethodHandle setupOrCleanup, Object task, Object context)
+            throws IOException, InterruptedException {
+        if (setupOrCleanup == null) {
+            return;
+        }
+        try {
+            setupOrCleanup.invokeExact(task, context);
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A task of which every call() is one map() or reduce() call with the next record or key of the input,
+     * after the last one the input starts again. The output is serialized like by the map output collector and
+     * only counted. setup() runs before the first call, cleanup() runs when the Calls are closed.
+     */
+    public static class Calls {
+        private final Object task;
+        private final Configuration conf;
+        private final RecordBuffer input;
+        private final RawComparator<?> grouping;
+        private final RecordBuffer.Output<?, ?> output = new RecordBuffer().writer(0);
+        private final MethodHandle call;
+        private RecordReader<?, ?> reader;
+        private Reducer.Context reduceContext;
+        private Object context;
+
+        /**
+         * map() per call
+         */
+        public Calls(Mapper<?, ?, ?, ?> mapper, Configuration conf, RecordBuffer input)
+                throws IOException, InterruptedException {
+            this(mapper, conf, input, null);
+        }
+
+        /**
+         * reduce() per call
+         * @param input sorted like the output of RecordBuffer.shuffle()
+         * @param grouping comparator which decides the keys of one reduce() call, null for the sort comparator
+         */
+        public Calls(Reducer<?, ?, ?, ?> reducer, Configuration conf, RecordBuffer input, RawComparator<?> grouping)
+                throws IOException, InterruptedException {
+            this((Object) reducer, conf, input, grouping);
+        }
+
+        private Calls(Object task, Configuration conf, RecordBuffer input, RawComparator<?> grouping)
+                throws IOException, InterruptedException {
+            if (input.size() == 0) {
+                throw new IllegalArgumentException("no input for " + task.getClass().getName());
+            }
+            this.task = task;
+            this.conf = conf;
+            this.input = input;
+            this.grouping = grouping;
+            rewind();
+            this.call = handle(task, task instanceof Mapper ? "map" : "reduce", context);
+            invoke(handle(task, "setup", context), task, context);
+        }
+
+        private void rewind() throws IOException, InterruptedException {
+            if (task instanceof Mapper) {
+                reader = input.reader(conf);
+                context = mapContext(conf, reader, output);
+            } else {
+                reduceContext = reduceContext(conf, input, grouping, output);
+                context = reduceContext;
+            }
+        }
+
+        /**
+         * one map() or reduce() call
+         */
+        public void call() throws Throwable {
+            if (reader != null) {
+                if (!reader.nextKeyValue()) {
+                    rewind();
+                    reader.nextKeyValue();
+                }
+                call.invokeExact(task, reader.getCurrentKey(), reader.getCurrentValue(), context);
+            } else {
+                if (!reduceContext.nextKey()) {
+                    rewind();
+                    reduceContext.nextKey();
+                }
+                call.invokeExact(task, reduceContext.getCurrentKey(), (Object) reduceContext.getValues(), context);
+            }
+        }
+
+        /**
+         * run cleanup() of the task
+         * @return records written by all calls and cleanup()
+         */
+        public long close() throws IOException, InterruptedException {
+            invoke(handle(task, "cleanup", context), task, context);
+            return output.records();
+        }
+    }
+
+    /**
+     * the reporter of a task attempt, hands out its counters
+     */
+    private static class Reporter extends StatusReporter {
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package main.jmh;
+
+import main.version1.java.CooccurrenceIndex;
+import main.version1.java.CoocurrenceMatrixBuilder;
+import main.version1.java.DataDividerByUser;
+import main.version1.java.MatricesMultiplication;
+import main.version1.java.RecommendationListGenerator;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Every Mapper and Reducer of version1, one map() or reduce() call per operation (see Tasks.Calls): ops/us
+ * are calls per microsecond, the sample mode gives the percentiles of a call, -prof gc the bytes allocated per
+ * call (gc.alloc.rate.norm). The inputs are the outputs of the tasks before, run in the order of the Driver on
+ * the Ratings, the map outputs sorted by key on the way to a reducer like the shuffle would do it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Version1Benchmark {
+    private Tasks.Calls calls;
+
+    /**
+     * the inputs and side files of every task of the version1 Driver
+     */
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+        Ratings ratings;
+        RecordBuffer divided;
+        RecordBuffer historyLines;
+        RecordBuffer pairs;
+        RecordBuffer scores;
+        RecordBuffer totalLines;
+        RecordBuffer unwatched;
+        // configuration of MatricesMultiplicationMapper reading the matrix as text and mapping its index
+        Configuration text;
+        Configuration mapped;
+        // watchHistory of RecommendationListGeneratorMapper, and a copy of it
+        Configuration[] watched;
+        Configuration titles;
+
+        @Setup(Level.Trial)
+        public void run(Ratings ratings) throws Exception {
+            this.ratings = ratings;
+            int max = Ratings.MAX_RECORDS;
+            divided = RecordBuffer.shuffle(Tasks.map(new DataDividerByUser.DataDividerMapper(), ratings.conf(),
+                    ratings.ratings, max));
+            historyLines = Tasks.reduce(new DataDividerByUser.DataDividerReducer(), ratings.conf(), divided,
+                    null, max).toLines(ratings.base);
+            pairs = RecordBuffer.shuffle(Tasks.map(new CoocurrenceMatrixBuilder.CooccurrenceMatrixMapper(),
+                    ratings.conf(), historyLines, max));
+            RecordBuffer matrix = Tasks.reduce(new CoocurrenceMatrixBuilder.CooccurrenceMatrixReducer(),
+                    ratings.conf(), pairs, null, max);
+
+            File matrixDir = new File(ratings.dir, "v1_cooccurrence");
+            matrixDir.mkdir();
+            File matrixFile = new File(matrixDir, "part-r-00000");
+            matrix.toLines(ratings.base).writeLines(ratings.base, matrixFile);
+            File index = new File(matrixDir, CooccurrenceIndex.INDEX_FILE);
+            CooccurrenceIndex.build(ratings.base, Ratings.path(matrixDir), Ratings.path(index));
+            Ratings.link(index, "cooccurrence.idx");
+
+            text = ratings.conf("coOccurrencePath", matrixFile.getPath());
+            mapped = ratings.conf("coOccurrenceIndex", index.getPath());
+            scores = RecordBuffer.shuffle(Tasks.map(new MatricesMultiplication.MatricesMultiplicationMapper(), text,
+                    ratings.ratings, max));
+            totalLines = Tasks.reduce(new MatricesMultiplication.MatricesMultiplicationReducer(), ratings.conf(),
+                    scores, null, max).toLines(ratings.base);
+
+            watched = new Configuration[]{ratings.conf("watchHistory", ratings.file("ratings.txt")),
+                    ratings.conf("watchHistory", ratings.file("ratings_copy.txt"))};
+            titles = ratings.conf("movieTitles", ratings.file("titles.txt"), "topK", String.valueOf(Ratings.TOP_K));
+            unwatched = RecordBuffer.shuffle(Tasks.map(
+                    new RecommendationListGenerator.RecommendationListGeneratorMapper(), watched[0], totalLines, max));
+        }
+
+        /**
+         * @param task name of the benchmark method
+         */
+        Tasks.Calls calls(String task) throws IOException, InterruptedException {
+            switch (task) {
+                case "dataDividerMapper":
+                    return new Tasks.Calls(new DataDividerByUser.DataDividerMapper(), ratings.conf(), ratings.ratings);
+                case "dataDividerReducer":
+                    return new Tasks.Calls(new DataDividerByUser.DataDividerReducer(), ratings.conf(), divided, null);
+                case "cooccurrenceMatrixMapper":
+                    return new Tasks.Calls(new CoocurrenceMatrixBuilder.CooccurrenceMatrixMapper(), ratings.conf(),
+                            historyLines);
+                case "cooccurrenceMatrixReducer":
+                    return new Tasks.Calls(new CoocurrenceMatrixBuilder.CooccurrenceMatrixReducer(), ratings.conf(),
+                            pairs, null);
+                case "matricesMultiplicationMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.MatricesMultiplicationMapper(), text,
+                            ratings.ratings);
+                case "matricesMultiplicationMapperIndex":
+                    return new Tasks.Calls(new MatricesMultiplication.MatricesMultiplicationMapper(), mapped,
+                            ratings.ratings);
+                case "matricesMultiplicationReducer":
+                    return new Tasks.Calls(new MatricesMultiplication.MatricesMultiplicationReducer(), ratings.conf(),
+                            scores, null);
+                case "recommendationListGeneratorMapper":
+                    return new Tasks.Calls(new RecommendationListGenerator.RecommendationListGeneratorMapper(),
+                            watched[0], totalLines);
+                case "recommendationListGeneratorReducer":
+                    return new Tasks.Calls(new RecommendationListGenerator.RecommendationListGeneratorReducer(),
+                            titles, unwatched, null);
+                default:
+                    throw new IllegalArgumentException("no task for " + task);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup(Pipeline pipeline, BenchmarkParams params) throws Exception {
+        String benchmark = params.getBenchmark();
+        calls = pipeline.calls(benchmark.substring(benchmark.lastIndexOf('.') + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws Exception {
+        calls.close();
+    }
+
+    @Benchmark
+    public void dataDividerMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void dataDividerReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void cooccurrenceMatrixMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void cooccurrenceMatrixReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void matricesMultiplicationMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void matricesMultiplicationMapperIndex() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void matricesMultiplicationReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void recommendationListGeneratorMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void recommendationListGeneratorReducer() throws Throwable {
+        calls.call();
+    }
+}
@@ -0,0 +1,482 @@
+package main.jmh;
+
+import main.version2.java.CooccurrenceMatrixGenerator;
+import main.version2.java.DataDividerByUser;
+import main.version2.java.IdDictionary;
+import main.version2.java.IncrementalCooccurrence;
+import main.version2.java.MatricesMultiplication;
+import main.version2.java.Normalization;
+import main.version2.java.NormalizedMatrix;
+import main.version2.java.RecommendationListGenerator;
+import main.version2.java.RelationOrRating;
+import main.version2.java.TaggedUserMoviePair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Every Mapper and Reducer of version2 and of its modes, one map() or reduce() call per operation like
+ * Version1Benchmark. The inputs are the outputs of the tasks before, run in the order of the Driver on the
+ * Ratings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Version2Benchmark {
+    private Tasks.Calls calls;
+
+    /**
+     * the inputs and side files of every task of the version2 Driver and its modes
+     */
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+        Ratings ratings;
+        RecordBuffer divided;
+        RecordBuffer histories;
+        File historiesDir;
+        RecordBuffer pairs;
+        RecordBuffer stripes;
+        RecordBuffer newRatings;
+        RecordBuffer cooccurrence;
+        RecordBuffer relations;
+        RecordBuffer normalized;
+        File[] normalizedDirs;
+        RecordBuffer columns;
+        RecordBuffer tiles;
+        RecordBuffer saltedColumns;
+        RecordBuffer partialScores;
+        RecordBuffer unwatched;
+        RecordBuffer joined;
+        // newRatings and priorHistories of the incremental mode, and a copy of them
+        Configuration[] prior;
+        Configuration priorIndex;
+        Configuration changed;
+        Configuration blocked;
+        Configuration salted;
+        // normalizedMatrix of the fused mode, and a copy of it
+        Configuration[] fused;
+        Configuration fusedIndex;
+        // index slices of the normalized matrix written by 4 reducers, concatenated when they are mapped
+        File[] normalizedSlices;
+        // watchHistory of RecommendationMapper, and a copy of it
+        Configuration[] watched;
+        Configuration mappedWatched;
+        Configuration titles;
+        Configuration dictionary;
+
+        @Setup(Level.Trial)
+        public void run(Ratings ratings) throws Exception {
+            this.ratings = ratings;
+            int max = Ratings.MAX_RECORDS;
+            divided = RecordBuffer.shuffle(Tasks.map(new DataDividerByUser.DataDividerMapper(), ratings.conf(),
+                    ratings.ratings, max));
+            histories = Tasks.reduce(new DataDividerByUser.DataDividerReducer(), ratings.conf(), divided, null, max);
+            historiesDir = new File(ratings.dir, "histories");
+            historiesDir.mkdir();
+            histories.writeSequenceFile(ratings.base, Ratings.path(new File(historiesDir, "part-r-00000")));
+            File watchedIndex = new File(ratings.dir, "watched.idx");
+            DataDividerByUser.watchedIndex(ratings.base, Ratings.path(historiesDir))
+                    .write(FileSystem.getLocal(ratings.base), Ratings.path(watchedIndex));
+            // the index of one partition, like the one of DataDividerByUser with one reducer
+            Ratings.link(watchedIndex, "watched.idx-0");
+            Ratings.link(watchedIndex, "prior.idx-0");
+
+            pairs = RecordBuffer.shuffle(Tasks.map(new CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorMapper(),
+                    ratings.conf(), histories, max));
+            cooccurrence = Tasks.reduce(new CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorReducer(),
+                    ratings.conf(), pairs, null, max);
+            stripes = RecordBuffer.shuffle(Tasks.map(new CooccurrenceMatrixGenerator.StripesMapper(), ratings.conf(),
+                    histories, max));
+
+            prior = new Configuration[]{
+                    ratings.conf("newRatings", ratings.file("new_ratings.txt"), "priorHistories",
+                            historiesDir.getPath()),
+                    ratings.conf("newRatings", ratings.file("new_ratings_copy.txt"), "priorHistories",
+                            historiesDir.getPath())};
+            priorIndex = ratings.conf("newRatings", ratings.file("new_ratings.txt"), "priorIndexFiles", "1");
+            newRatings = ratings.newRatings;
+            RecordBuffer historyDelta = Tasks.map(new IncrementalCooccurrence.HistoryDeltaMapper(), prior[0],
+                    histories, max);
+            RecordBuffer newUserDelta = Tasks.map(new IncrementalCooccurrence.NewUserDeltaMapper(), prior[0],
+                    newRatings, max);
+            File deltaDir = new File(ratings.dir, "delta");
+            deltaDir.mkdir();
+            RecordBuffer.shuffle(historyDelta, newUserDelta).writeSequenceFile(ratings.base,
+                    Ratings.path(new File(deltaDir, "part-r-00000")));
+            changed = ratings.conf("cooccurrenceDelta", deltaDir.getPath());
+
+            relations = RecordBuffer.shuffle(Tasks.map(new Normalization.NormalizationMapper(), ratings.conf(),
+                    cooccurrence, max));
+            normalized = Tasks.reduce(new Normalization.NormalizationReducer(), ratings.conf(), relations, null, max);
+            normalizedDirs = new File[]{new File(ratings.dir, "normalized"), new File(ratings.dir, "normalized_copy")};
+            for (File normalizedDir : normalizedDirs) {
+                normalizedDir.mkdir();
+                normalized.writeSequenceFile(ratings.base, Ratings.path(new File(normalizedDir, "part-r-00000")));
+            }
+            // the index of one reducer of Normalization, used as it is mapped
+            Ratings.link(indexSlices(1)[0], "normalized.idx-0");
+            normalizedSlices = indexSlices(4);
+
+            columns = RecordBuffer.shuffle(
+                    Tasks.map(new MatricesMultiplication.NormalizedCooccurrenceMatrixMapper(), ratings.conf(),
+                            normalized, max),
+                    Tasks.map(new MatricesMultiplication.RatingHistoryMapper(), ratings.conf(), ratings.ratings, max));
+            partialScores = Tasks.reduce(new MatricesMultiplication.MatriceMultiplicationReducer<IntWritable>(),
+                    ratings.conf(), columns, null, max);
+
+            blocked = ratings.conf("movieBlocks", "4", "userBlocks", "4");
+            tiles = RecordBuffer.shuffle(
+                    Tasks.map(new MatricesMultiplication.NormalizedMatrixBlockMapper(), blocked, normalized, max),
+                    Tasks.map(new MatricesMultiplication.RatingBlockMapper(), blocked, ratings.ratings, max));
+
+            salted = ratings.conf("hotMovies", ratings.hotMovies, "hotMovieSalts", "8");
+            saltedColumns = RecordBuffer.shuffle(
+                    Tasks.map(new MatricesMultiplication.SaltedNormalizedMatrixMapper(), salted, normalized, max),
+                    Tasks.map(new MatricesMultiplication.SaltedRatingHistoryMapper(), salted, ratings.ratings, max));
+
+            fused = new Configuration[]{ratings.conf("normalizedMatrix", normalizedDirs[0].getPath()),
+                    ratings.conf("normalizedMatrix", normalizedDirs[1].getPath())};
+            fusedIndex = ratings.conf("normalizedIndexFiles", "1");
+
+            watched = new Configuration[]{ratings.conf("watchHistory", ratings.file("ratings.txt")),
+                    ratings.conf("watchHistory", ratings.file("ratings_copy.txt"))};
+            mappedWatched = ratings.conf("watchedIndexFiles", "1");
+            titles = ratings.conf("movieTitles", ratings.file("titles.txt"), "topK", String.valueOf(Ratings.TOP_K));
+            dictionary = ratings.conf("movieTitles", ratings.file("titles.txt"), "topK",
+                    String.valueOf(Ratings.TOP_K), "idDictionary", ratings.file("dictionary.idx"));
+            unwatched = RecordBuffer.shuffle(Tasks.map(new RecommendationListGenerator.RecommendationMapper(),
+                    watched[0], partialScores, max));
+            joined = RecordBuffer.shuffle(
+                    Tasks.map(new RecommendationListGenerator.PartialScoreJoinMapper(), ratings.conf(), partialScores,
+                            max),
+                    Tasks.map(new RecommendationListGenerator.WatchedJoinMapper(), ratings.conf(), ratings.ratings,
+                            max));
+
+            IdDictionary.build(ratings.base, Ratings.path(new File(ratings.file("ratings.txt"))))
+                    .write(FileSystem.getLocal(ratings.base), Ratings.path(new File(ratings.file("dictionary.idx"))));
+            Ratings.link(new File(ratings.file("dictionary.idx")), "dictionary.idx");
+        }
+
+        /**
+         * write the entries of the normalized matrix as the index slices of the reducers of Normalization, which
+         * get the rows movieA by the HashPartitioner
+         */
+        private File[] indexSlices(int reducers) throws IOException, InterruptedException {
+            NormalizedMatrix.Builder[] entries = new NormalizedMatrix.Builder[reducers];
+            for (int r = 0; r < reducers; r++) {
+                entries[r] = new NormalizedMatrix.Builder();
+            }
+            RecordReader<IntWritable, RelationOrRating> reader = normalized.reader(ratings.base);
+            while (reader.nextKeyValue()) {
+                RelationOrRating value = reader.getCurrentValue();
+                entries[(value.getId() & Integer.MAX_VALUE) % reducers].add(reader.getCurrentKey().get(),
+                        value.getId(), value.getValue());
+            }
+            File[] slices = new File[reducers];
+            for (int r = 0; r < reducers; r++) {
+                slices[r] = new File(ratings.dir, String.format("normalized.idx-%d-%d", reducers, r));
+                entries[r].build().write(FileSystem.getLocal(ratings.base), Ratings.path(slices[r]));
+            }
+            return slices;
+        }
+
+        /**
+         * @param task name of the benchmark method
+         */
+        Tasks.Calls calls(String task) throws IOException, InterruptedException {
+            switch (task) {
+                case "dataDividerMapper":
+                    return new Tasks.Calls(new DataDividerByUser.DataDividerMapper(), ratings.conf(), ratings.ratings);
+                case "dataDividerReducer":
+                    return new Tasks.Calls(new DataDividerByUser.DataDividerReducer(), ratings.conf(), divided, null);
+                case "cooccurrenceMatrixGeneratorMapper":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorMapper(),
+                            ratings.conf(), histories);
+                case "cooccurrenceMatrixGeneratorMapperTriangular":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorMapper(),
+                            ratings.conf("cooccurrenceMode", "triangular"), histories);
+                case "cooccurrenceMatrixGeneratorMapperCombining":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorMapper(),
+                            ratings.conf("inMapperCombining", "true"), histories);
+                case "cooccurrenceMatrixGeneratorReducer":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorReducer(),
+                            ratings.conf(), pairs, null);
+                case "stripesMapper":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.StripesMapper(), ratings.conf(), histories);
+                case "stripesCombiner":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.StripesCombiner(), ratings.conf(), stripes,
+                            null);
+                case "stripesNormalizationReducer":
+                    return new Tasks.Calls(new CooccurrenceMatrixGenerator.StripesNormalizationReducer(),
+                            ratings.conf(), stripes, null);
+                case "historyDeltaMapper":
+                    return new Tasks.Calls(new IncrementalCooccurrence.HistoryDeltaMapper(), prior[0], histories);
+                case "newUserDeltaMapper":
+                    return new Tasks.Calls(new IncrementalCooccurrence.NewUserDeltaMapper(), prior[0], newRatings);
+                case "newUserDeltaMapperIndex":
+                    return new Tasks.Calls(new IncrementalCooccurrence.NewUserDeltaMapper(), priorIndex, newRatings);
+                case "normalizationMapper":
+                    return new Tasks.Calls(new Normalization.NormalizationMapper(), ratings.conf(), cooccurrence);
+                case "changedRowsMapper":
+                    return new Tasks.Calls(new Normalization.ChangedRowsMapper(), changed, cooccurrence);
+                case "normalizationReducer":
+                    return new Tasks.Calls(new Normalization.NormalizationReducer(), ratings.conf(), relations, null);
+                case "normalizedCooccurrenceMatrixMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.NormalizedCooccurrenceMatrixMapper(),
+                            ratings.conf(), normalized);
+                case "ratingHistoryMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.RatingHistoryMapper(), ratings.conf(),
+                            ratings.ratings);
+                case "matriceMultiplicationReducer":
+                    return new Tasks.Calls(new MatricesMultiplication.MatriceMultiplicationReducer<IntWritable>(),
+                            ratings.conf(), columns, null);
+                case "normalizedMatrixBlockMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.NormalizedMatrixBlockMapper(), blocked,
+                            normalized);
+                case "ratingBlockMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.RatingBlockMapper(), blocked, ratings.ratings);
+                case "blockMultiplicationReducer":
+                    return new Tasks.Calls(new MatricesMultiplication.BlockMultiplicationReducer(), blocked, tiles,
+                            null);
+                case "saltedNormalizedMatrixMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.SaltedNormalizedMatrixMapper(), salted,
+                            normalized);
+                case "saltedRatingHistoryMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.SaltedRatingHistoryMapper(), salted,
+                            ratings.ratings);
+                case "matriceMultiplicationReducerSalted":
+                    return new Tasks.Calls(new MatricesMultiplication.MatriceMultiplicationReducer<LongWritable>(),
+                            salted, saltedColumns, null);
+                case "fusedMultiplicationMapper":
+                    return new Tasks.Calls(new MatricesMultiplication.FusedMultiplicationMapper(), fused[0], histories);
+                case "fusedMultiplicationMapperIndex":
+                    return new Tasks.Calls(new MatricesMultiplication.FusedMultiplicationMapper(), fusedIndex,
+                            histories);
+                case "recommendationMapper":
+                    return new Tasks.Calls(new RecommendationListGenerator.RecommendationMapper(), watched[0],
+                            partialScores);
+                case "recommendationMapperIndex":
+                    return new Tasks.Calls(new RecommendationListGenerator.RecommendationMapper(), mappedWatched,
+                            partialScores);
+                case "recommendationReducer":
+                    return new Tasks.Calls(new RecommendationListGenerator.RecommendationReducer(), titles, unwatched,
+                            null);
+                case "partialScoreJoinMapper":
+                    return new Tasks.Calls(new RecommendationListGenerator.PartialScoreJoinMapper(), ratings.conf(),
+                            partialScores);
+                case "watchedJoinMapper":
+                    return new Tasks.Calls(new RecommendationListGenerator.WatchedJoinMapper(), ratings.conf(),
+                            ratings.ratings);
+                case "recommendationJoinReducer":
+                    return new Tasks.Calls(new RecommendationListGenerator.RecommendationJoinReducer(), titles, joined,
+                            new TaggedUserMoviePair.GroupingComparator());
+                case "encodeMapper":
+                    return new Tasks.Calls(new IdDictionary.EncodeMapper(), ratings.conf(), ratings.ratings);
+                default:
+                    throw new IllegalArgumentException("no task for " + task);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup(Pipeline pipeline, BenchmarkParams params) throws Exception {
+        String benchmark = params.getBenchmark();
+        calls = pipeline.calls(benchmark.substring(benchmark.lastIndexOf('.') + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws Exception {
+        calls.close();
+    }
+
+    @Benchmark
+    public void dataDividerMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void dataDividerReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void cooccurrenceMatrixGeneratorMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void cooccurrenceMatrixGeneratorMapperTriangular() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void cooccurrenceMatrixGeneratorMapperCombining() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void cooccurrenceMatrixGeneratorReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void stripesMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void stripesCombiner() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void stripesNormalizationReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void historyDeltaMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void newUserDeltaMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void newUserDeltaMapperIndex() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void normalizationMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void changedRowsMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void normalizationReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void normalizedCooccurrenceMatrixMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void ratingHistoryMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void matriceMultiplicationReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void normalizedMatrixBlockMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void ratingBlockMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void blockMultiplicationReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void saltedNormalizedMatrixMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void saltedRatingHistoryMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void matriceMultiplicationReducerSalted() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void fusedMultiplicationMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void fusedMultiplicationMapperIndex() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void recommendationMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void recommendationMapperIndex() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void recommendationReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void partialScoreJoinMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void watchedJoinMapper() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void recommendationJoinReducer() throws Throwable {
+        calls.call();
+    }
+
+    @Benchmark
+    public void encodeMapper() throws Throwable {
+        calls.call();
+    }
+}
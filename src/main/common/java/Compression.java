@@ -0,0 +1,228 @@
+package main.common.java;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Compression of the data between the stages, both off by default:
+ *      -D compressMapOutput=codec      the map output, i.e. the spills and the shuffle of every job with reducers,
+ *                                      set by JobStats.waitForCompletion(job)
+ *      -D compressIntermediate=codec   the output of the stages which is read by a later stage, set by the run()
+ *                                      of these stages by compressOutput(job). version2 writes block-compressed
+ *                                      SequenceFiles, version1 compressed text files, which TextInputFormat and
+ *                                      open() decompress by their extension. The recommendation list, the dense
+ *                                      ratings of IdDictionary and the index files stay uncompressed.
+ * codec is one of
+ *      none        nothing is compressed
+ *      deflate     zlib, pure Java by java.util.zip when libhadoop is not loaded
+ *      gzip        deflate with a gzip header, in a SequenceFile only with the native zlib of libhadoop
+ *      bzip2       pure Java, the smallest and by far the slowest
+ *      snappy      pure Java by snappy-java since Hadoop 3.3.1, native before
+ *      lz4         pure Java by lz4-java since Hadoop 3.3.1, native before
+ *      zstd        only with a libhadoop built with zstd
+ * or a profile, which is the first codec of its list that works in this JVM:
+ *      fast        lz4, snappy, deflate
+ *      small       zstd, deflate
+ * A codec is tried on a few bytes before the job is submitted, as a stream and in a block-compressed
+ * SequenceFile like the one of compressIntermediate, so a codec named explicitly that does not work here fails
+ * on the client instead of in every task.
+ */
+public class Compression {
+    public static final String MAP_OUTPUT = "compressMapOutput";
+    public static final String INTERMEDIATE = "compressIntermediate";
+    public static final String NONE = "none";
+
+    // a few lines of the co-occurrence matrix of version1
+    private static final byte[] PROBE = "10001:10002\t3\n10001:10003\t1\n10001:10002\t3\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final Map<String, String> CODECS = new LinkedHashMap<>();
+    private static final Map<String, List<String>> PROFILES = new LinkedHashMap<>();
+
+    static {
+        CODECS.put("deflate", "org.apache.hadoop.io.compress.DefaultCodec");
+        CODECS.put("gzip", "org.apache.hadoop.io.compress.GzipCodec");
+        CODECS.put("bzip2", "org.apache.hadoop.io.compress.BZip2Codec");
+        CODECS.put("snappy", "org.apache.hadoop.io.compress.SnappyCodec");
+        CODECS.put("lz4", "org.apache.hadoop.io.compress.Lz4Codec");
+        CODECS.put("zstd", "org.apache.hadoop.io.compress.ZStandardCodec");
+        PROFILES.put("fast", Arrays.asList("lz4", "snappy", "deflate"));
+        PROFILES.put("small", Arrays.asList("zstd", "deflate"));
+    }
+
+    /**
+     * @return the codec names, without none and the profiles
+     */
+    public static List<String> codecNames() {
+        return new ArrayList<>(CODECS.keySet());
+    }
+
+    /**
+     * @param name codec name, profile, none or the class name of a CompressionCodec
+     * @return the codec class, null for none
+     * @throws IllegalArgumentException if the name is unknown, or the codec does not work in this JVM
+     */
+    public static Class<? extends CompressionCodec> codec(Configuration conf, String name) {
+        if (name == null || NONE.equals(name)) {
+            return null;
+        }
+        if (PROFILES.containsKey(name)) {
+            for (String codec : PROFILES.get(name)) {
+                if (isAvailable(conf, codec)) {
+                    return codecClass(conf, codec);
+                }
+            }
+            throw new IllegalArgumentException("no codec of the profile " + name + " is available: "
+                    + PROFILES.get(name));
+        }
+        Class<? extends CompressionCodec> codec = codecClass(conf, name);
+        if (!works(conf, codec)) {
+            throw new IllegalArgumentException("codec " + name + " is not available in this JVM");
+        }
+        return codec;
+    }
+
+    /**
+     * @return true if the codec compresses and decompresses a few bytes in this JVM, also in a SequenceFile
+     */
+    public static boolean isAvailable(Configuration conf, String name) {
+        try {
+            return works(conf, codecClass(conf, name));
+        } catch (IllegalArgumentException e) {
+            // e.g. zstd before Hadoop 2.9
+            return false;
+        }
+    }
+
+    private static boolean works(Configuration conf, Class<? extends CompressionCodec> codecClass) {
+        try {
+            CompressionCodec codec = ReflectionUtils.newInstance(codecClass, conf);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = codec.createOutputStream(compressed)) {
+                out.write(PROBE);
+            }
+            byte[] decompressed = new byte[PROBE.length];
+            int length = 0;
+            try (InputStream in = codec.createInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+                int read;
+                while (length < decompressed.length
+                        && (read = in.read(decompressed, length, decompressed.length - length)) > 0) {
+                    length += read;
+                }
+            }
+            return Arrays.equals(PROBE, decompressed) && worksInSequenceFile(conf, codec);
+        } catch (Exception | LinkageError e) {
+            // missing native library (RuntimeException, UnsatisfiedLinkError) or missing jar (NoClassDefFoundError)
+            return false;
+        }
+    }
+
+    /**
+     * SequenceFile.Writer refuses some codecs which work as a stream, e.g. GzipCodec without native zlib,
+     * so the probe is also written into a temporary local SequenceFile and read back
+     */
+    private static boolean worksInSequenceFile(Configuration conf, CompressionCodec codec) throws IOException {
+        FileSystem local = FileSystem.getLocal(conf);
+        Path path = local.makeQualified(new Path(File.createTempFile("compression", ".seq").getAbsolutePath()));
+        Text probe = new Text(new String(PROBE, StandardCharsets.UTF_8));
+        try {
+            try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(path),
+                    SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(Text.class),
+                    SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK, codec))) {
+                writer.append(probe, probe);
+            }
+            Text key = new Text();
+            Text value = new Text();
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+                return reader.next(key, value) && probe.equals(key) && probe.equals(value);
+            }
+        } finally {
+            local.delete(path, false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends CompressionCodec> codecClass(Configuration conf, String name) {
+        String className = CODECS.containsKey(name) ? CODECS.get(name) : name;
+        Class<?> codec;
+        try {
+            codec = conf.getClassByName(className);
+        } catch (ClassNotFoundException e) {
+            if (CODECS.containsKey(name)) {
+                throw new IllegalArgumentException("codec " + name + " is not in this Hadoop version");
+            }
+            throw new IllegalArgumentException("unknown codec " + name + ", one of none, " + CODECS.keySet()
+                    + ", " + PROFILES.keySet() + " or a CompressionCodec class");
+        }
+        if (!CompressionCodec.class.isAssignableFrom(codec)) {
+            throw new IllegalArgumentException(className + " is not a CompressionCodec");
+        }
+        return (Class<? extends CompressionCodec>) codec;
+    }
+
+    /**
+     * compress the map output of the job by the codec of compressMapOutput, nothing for a map only job
+     */
+    public static void compressMapOutput(Job job) {
+        Configuration conf = job.getConfiguration();
+        Class<? extends CompressionCodec> codec = codec(conf, conf.get(MAP_OUTPUT, NONE));
+        if (codec == null || job.getNumReduceTasks() == 0) {
+            return;
+        }
+        conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, true);
+        conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, codec, CompressionCodec.class);
+    }
+
+    /**
+     * compress the output of the job by the codec of compressIntermediate, for jobs whose output is read by
+     * a later stage only
+     */
+    public static void compressOutput(Job job) {
+        Configuration conf = job.getConfiguration();
+        Class<? extends CompressionCodec> codec = codec(conf, conf.get(INTERMEDIATE, NONE));
+        if (codec == null) {
+            return;
+        }
+        FileOutputFormat.setCompressOutput(job, true);
+        FileOutputFormat.setOutputCompressorClass(job, codec);
+        // a block of records is compressed at once, a single record is too small for any codec;
+        // ignored by TextOutputFormat
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+    }
+
+    /**
+     * open a file written by TextOutputFormat, decompressed if its extension is the one of a codec
+     */
+    public static InputStream open(Configuration conf, Path path) throws IOException {
+        InputStream in = path.getFileSystem(conf).open(path);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+        return codec == null ? in : codec.createInputStream(in);
+    }
+}
@@ -0,0 +1,137 @@
+package main.common.java;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Open addressing hash map from an int key to an int value in primitive arrays with linear probing, the
+ * replacement of Map<Integer, Integer> where a lookup per record used to box: the movie -> row and row sum maps
+ * of the version1 RelationList and the row of NormalizationReducer.
+ * Any int is a valid key or value, so used slots are marked separately like in PairScoreMap of version2.
+ */
+public class IntIntMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    // slot of every key in the order they were added
+    private int[] entries;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public IntIntMap(int expectedKeys) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedKeys / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+        entries = new int[threshold + 1];
+    }
+
+    /**
+     * set the value of key, replacing the previous one
+     */
+    public void put(int key, int value) {
+        int slot = slotOf(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        used[slot] = true;
+        entries[size] = slot;
+        if (++size > threshold) {
+            rehash();
+        }
+    }
+
+    /**
+     * add delta to the value of key, a missing key counts as 0
+     */
+    public void add(int key, int delta) {
+        int slot = slotOf(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        put(key, delta);
+    }
+
+    /**
+     * @return the value of key, or missing if the key is not in the map
+     */
+    public int get(int key, int missing) {
+        int slot = slotOf(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return missing;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i key 0 .. size() - 1, in the order the keys were added
+     */
+    public int keyAt(int i) {
+        return keys[entries[i]];
+    }
+
+    public int valueAt(int i) {
+        return values[entries[i]];
+    }
+
+    /**
+     * drop all keys but keep the allocated table. Only the used slots are reset, so a map which once held
+     * many keys costs its current size and not its capacity
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            used[entries[i]] = false;
+        }
+        size = 0;
+    }
+
+    private int slotOf(int key) {
+        int h = key * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        int[] oldEntries = entries;
+        allocate(keys.length << 1);
+        for (int i = 0; i < size; i++) {
+            int old = oldEntries[i];
+            int slot = slotOf(oldKeys[old]);
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[old];
+            values[slot] = oldValues[old];
+            used[slot] = true;
+            entries[i] = slot;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package main.common.java;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Binary file of int arrays (sections) which can be memory-mapped, used for the side inputs which
+ * mappers used to parse from text in setup(): WatchedIndex, NormalizedMatrix and the version1 CooccurrenceIndex.
+ * The file is written once by the stage which produces the data and shipped to the tasks through the
+ * distributed cache. A task maps it read-only, so setup() does not depend on the size of the data and
+ * all tasks on one node share the same pages of the page cache.
+ *
+ * format (big endian ints): MAGIC, section count, length of every section, then the ints of every section.
+ * Every section is mapped by its own MappedByteBuffer, so the file can be larger than 2GB but a section must
+ * be smaller, i.e. hold less than 512M ints.
+ */
+public class IntSectionFile {
+    private static final int MAGIC = 0x49534631;  // "ISF1"
+
+    public static void write(DataOutputStream out, IntBuffer... sections) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(sections.length);
+        for (IntBuffer section : sections) {
+            out.writeInt(section.limit());
+        }
+        for (IntBuffer section : sections) {
+            for (int i = 0; i < section.limit(); i++) {
+                out.writeInt(section.get(i));
+            }
+        }
+    }
+
+    /**
+     * read all sections onto the heap, for a client which cannot map the file because it is not on local disk
+     */
+    public static IntBuffer[] read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not an int section file");
+        }
+        IntBuffer[] sections = new IntBuffer[in.readInt()];
+        for (int s = 0; s < sections.length; s++) {
+            sections[s] = IntBuffer.allocate(in.readInt());
+        }
+        for (IntBuffer section : sections) {
+            for (int i = 0; i < section.limit(); i++) {
+                section.put(i, in.readInt());
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * map the file read-only
+     * @return views of every section, they stay valid after the file channel is closed
+     */
+    public static IntBuffer[] map(File file) throws IOException {
+        ByteBuffer[] bytes = mapBytes(file);
+        IntBuffer[] sections = new IntBuffer[bytes.length];
+        for (int s = 0; s < sections.length; s++) {
+            sections[s] = bytes[s].asIntBuffer();
+        }
+        return sections;
+    }
+
+    /**
+     * map the file read-only, for sections which hold other values than ints, e.g. a double section written as
+     * the two ints (high first) of Double.doubleToLongBits() and read with asDoubleBuffer()
+     * @return big endian byte views of every section
+     */
+    public static ByteBuffer[] mapBytes(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < 8) {
+                throw new IOException(file + " is not an int section file");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not an int section file");
+            }
+            ByteBuffer[] sections = new ByteBuffer[header.getInt(4)];
+            MappedByteBuffer lengths = channel.map(FileChannel.MapMode.READ_ONLY, 8, sections.length * 4L);
+            long position = (2 + sections.length) * 4L;
+            for (int s = 0; s < sections.length; s++) {
+                long length = lengths.getInt(s * 4) * 4L;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("section " + s + " of " + file + " has " + length
+                            + " bytes, a section is mapped by one MappedByteBuffer and must be smaller than 2GB");
+                }
+                sections[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                position += length;
+            }
+            return sections;
+        }
+    }
+
+    /**
+     * binary search in buffer[from, to)
+     * @return index of key, or a negative value if it is not found
+     */
+    public static int binarySearch(IntBuffer buffer, int from, int to, int key) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = buffer.get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,131 @@
+package main.common.java;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Name, wall time and counters of a job run by this JVM. run(Configuration, String[]) of a stage only returns
+ * whether its jobs succeeded, so the jobs wait by waitForCompletion(job) instead of job.waitForCompletion(true),
+ * which keeps their JobStats until drain() hands them to whoever reports them, e.g. PipelineBenchmark.
+ * StageRunner names the jobs of a stage after the stage and prints them after it, for both Drivers.
+ * With -D taskHistograms=true the job is instrumented by TaskHistograms before it is submitted, with
+ * -D compressMapOutput=codec its map output is compressed, see Compression.
+ */
+public class JobStats {
+    private static final List<JobStats> completed = new ArrayList<>();
+
+    private final String name;
+    private final boolean succeeded;
+    private final long wallMillis;
+    private final Counters counters;
+
+    private JobStats(String name, boolean succeeded, long wallMillis, Counters counters) {
+        this.name = name;
+        this.succeeded = succeeded;
+        this.wallMillis = wallMillis;
+        this.counters = counters;
+    }
+
+    /**
+     * job.waitForCompletion(true), keeping the JobStats of the job
+     * @return true if the job succeeded
+     */
+    public static boolean waitForCompletion(Job job)
+            throws IOException, InterruptedException, ClassNotFoundException {
+        TaskHistograms.instrument(job);
+        Compression.compressMapOutput(job);
+        long start = System.nanoTime();
+        boolean succeeded = job.waitForCompletion(true);
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+        // null when the framework no longer knows the job
+        Counters counters = job.getCounters();
+        synchronized (completed) {
+            completed.add(new JobStats(job.getJobName(), succeeded, wallMillis,
+                    counters == null ? new Counters() : counters));
+        }
+        return succeeded;
+    }
+
+    /**
+     * @return number of jobs kept, the mark of completedSince()
+     */
+    public static int completedCount() {
+        synchronized (completed) {
+            return completed.size();
+        }
+    }
+
+    /**
+     * @return the jobs completed after completedCount() returned mark, unless drain() was called in between
+     */
+    public static List<JobStats> completedSince(int mark) {
+        synchronized (completed) {
+            return new ArrayList<>(completed.subList(Math.min(mark, completed.size()), completed.size()));
+        }
+    }
+
+    /**
+     * @return the jobs completed since the last call, in the order they completed
+     */
+    public static List<JobStats> drain() {
+        synchronized (completed) {
+            List<JobStats> jobs = new ArrayList<>(completed);
+            completed.clear();
+            return jobs;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public Counters getCounters() {
+        return counters;
+    }
+
+    /**
+     * print the wall time, the counters of the pipeline (all groups but the ones of Hadoop) and the histograms
+     * of TaskHistograms, summed over the tasks of the job
+     */
+    public void print(PrintStream out) {
+        out.println(name + (succeeded ? "" : " FAILED") + ": " + wallMillis + " ms");
+        for (CounterGroup group : counters) {
+            if (group.getName().startsWith("org.apache.hadoop.")) {
+                continue;
+            }
+            if (TaskHistograms.isHistogram(group.getName())) {
+                out.println("    " + group.getName() + ": " + LogHistogram.read(group));
+                continue;
+            }
+            for (Counter counter : group) {
+                out.println("    " + counter.getName() + "=" + counter.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return value of the counter, 0 if the job did not increment it
+     */
+    public long get(Enum<?> counter) {
+        return counters.findCounter(counter).getValue();
+    }
+}
@@ -0,0 +1,84 @@
+package main.common.java;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Counts of non negative values in power of 2 buckets: bucket 0 holds 0, bucket b holds 2^(b-1) .. 2^b - 1.
+ * add() is an array increment, cheap enough for every record. A task adds the buckets to a counter group,
+ * one counter per non empty bucket named "< 2^b", so the framework sums the histograms of all tasks of a job
+ * and read() gets the sum back from the counters of the job.
+ */
+public class LogHistogram {
+    private final long[] counts = new long[65];
+    private long count;
+    private long max;
+
+    public void add(long value) {
+        counts[64 - Long.numberOfLeadingZeros(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return upper bound of the bucket holding the p-th quantile, at most the largest value added
+     */
+    public long percentile(double p) {
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank && seen > 0) {
+                return Math.min(b == 0 ? 0 : (1L << b) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * increment the counters of the buckets in the group
+     */
+    public void addTo(TaskInputOutputContext<?, ?, ?, ?> context, String group) {
+        for (int b = 0; b < counts.length; b++) {
+            if (counts[b] > 0) {
+                context.getCounter(group, bucketName(b)).increment(counts[b]);
+            }
+        }
+    }
+
+    /**
+     * @return the histogram of the counters written by addTo(), the largest value is the upper bound of the
+     * highest bucket
+     */
+    public static LogHistogram read(CounterGroup group) {
+        LogHistogram histogram = new LogHistogram();
+        for (Counter counter : group) {
+            String name = counter.getName();
+            int b = name.startsWith("< 2^") ? Integer.parseInt(name.substring(4)) : 0;
+            histogram.counts[b] += counter.getValue();
+            histogram.count += counter.getValue();
+            histogram.max = Math.max(histogram.max, b == 0 ? 0 : (1L << b) - 1);
+        }
+        return histogram;
+    }
+
+    static String bucketName(int b) {
+        // zero padded, so the counters of a group are listed in the order of the buckets
+        return b == 0 ? "0" : String.format("< 2^%02d", b);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count + " p50<=" + percentile(0.5) + " p90<=" + percentile(0.9) + " p99<=" + percentile(0.99)
+                + " max<=" + max;
+    }
+}
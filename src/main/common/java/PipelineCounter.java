@@ -0,0 +1,20 @@
+package main.common.java;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * counters of the hot paths of both versions, every stage is its own job, so Driver reports them per stage.
+ * The per-record ones are looked up once in setup(), the others are incremented once per map() / reduce() call.
+ */
+public enum PipelineCounter {
+    MALFORMED_LINES,        // rating lines with too few fields, skipped
+    USERS,                  // histories the co-occurrence mappers generated pairs for
+    PAIRS_EMITTED,          // (movieA, movieB) pairs of those histories, PAIRS_EMITTED / USERS per user
+    ROWS_NORMALIZED,        // rows of the co-occurrence matrix divided by their sum
+    PARTIAL_PRODUCTS,       // rating * normalized relation products of the multiplication
+    WATCHED_FILTER_HITS,    // partial scores dropped because the user watched the movie
+    WATCHED_FILTER_MISSES,  // partial scores kept
+    MISSING_TITLES          // recommendations of a movie without a line in movie_title.txt
+}
@@ -0,0 +1,104 @@
+package main.common.java;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Runs the stages of the version1 and version2 Drivers. A stage is skipped when its output has a _SUCCESS file
+ * which is newer than every file of its inputs; a stage which is run makes its output newer than the outputs
+ * after it, so those are run again as well. -D forceStages=name1,name2 (or all) runs the named stages even if
+ * they are up to date, e.g. after their code changed.
+ * After every stage the JobStats of its jobs are printed: the counters of PipelineCounter, summed over its
+ * tasks, and with -D taskHistograms=true the histograms of TaskHistograms.
+ */
+public class StageRunner {
+    /**
+     * the run(Configuration, String[]) method of one job
+     */
+    public interface Stage {
+        boolean run(Configuration conf, String[] args) throws Exception;
+    }
+
+    private final Configuration conf;
+    private final FileSystem fs;
+    private final Collection<String> forceStages;
+
+    public StageRunner(Configuration conf) throws IOException {
+        this.conf = conf;
+        this.fs = FileSystem.get(conf);
+        this.forceStages = conf.getTrimmedStringCollection("forceStages");
+    }
+
+    public FileSystem getFileSystem() {
+        return fs;
+    }
+
+    /**
+     * run one stage unless its output is up to date, exit if the job fails
+     * @param inputs all files or directories the stage reads, including the side inputs read in setup()
+     */
+    public void runStage(String name, Stage stage, Path output, Path[] inputs, String... args) throws Exception {
+        if (!forceStages.contains(name) && !forceStages.contains("all") && isUpToDate(output, inputs)) {
+            System.out.println("skip " + name + ": " + output + " is newer than its inputs");
+            return;
+        }
+        // FileOutputFormat refuses to write into an existing directory
+        fs.delete(output, true);
+        System.out.println("run " + name);
+        // every job gets its own copy, so configuration set by one job does not leak into the next
+        Configuration stageConf = new Configuration(conf);
+        // the jobs of the stage are named after it, which is the name JobStats reports them by
+        stageConf.set(MRJobConfig.JOB_NAME, name);
+        int mark = JobStats.completedCount();
+        boolean succeeded = stage.run(stageConf, args);
+        // counters of the pipeline and histograms of the stage, summed over its tasks
+        for (JobStats job : JobStats.completedSince(mark)) {
+            job.print(System.out);
+        }
+        if (!succeeded) {
+            System.err.println(name + " failed");
+            System.exit(1);
+        }
+    }
+
+    boolean isUpToDate(Path output, Path[] inputs) throws IOException {
+        Path success = new Path(output, "_SUCCESS");
+        if (!fs.exists(success)) {
+            return false;
+        }
+        long built = fs.getFileStatus(success).getModificationTime();
+        for (Path input : inputs) {
+            if (!fs.exists(input) || lastModified(input) > built) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return modification time of a file, or the latest one of all files under a directory
+     */
+    private long lastModified(Path path) throws IOException {
+        FileStatus status = fs.getFileStatus(path);
+        long last = status.getModificationTime();
+        if (status.isDirectory()) {
+            RemoteIterator<LocatedFileStatus> files = fs.listFiles(path, true);
+            while (files.hasNext()) {
+                last = Math.max(last, files.next().getModificationTime());
+            }
+        }
+        return last;
+    }
+}
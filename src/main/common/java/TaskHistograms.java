@@ -0,0 +1,164 @@
+package main.common.java;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * -D taskHistograms=true: LogHistograms of every task of every stage, without touching the Mappers and Reducers
+ *      map() microseconds          time of each map() call, the reading of its record is not included
+ *      reduce() microseconds       time of each reduce() call, including the reading of its values
+ *      values per reduce() key     values read by each reduce() call, the skewed keys are in the top buckets
+ *      pairs per user              pairs of each history, recorded by the co-occurrence mappers
+ * JobStats.waitForCompletion(job) calls instrument(job) before the job is submitted: the job then runs
+ * InstrumentedMapper / InstrumentedReducer, which run the mapper and reducer of the job with a context that
+ * takes the time where the framework is asked for the next record or key. That is two System.nanoTime() per
+ * call and no allocation. Every task prints its histograms into its log, a reduce task with the key of the most
+ * values, and adds them to the counters of the job, from which Driver prints them per stage.
+ * Each bucket is a counter, so mapreduce.job.counters.max is raised.
+ */
+public class TaskHistograms {
+    public static final String ENABLED = "taskHistograms";
+    public static final String MAP_MICROS = "map() microseconds";
+    public static final String REDUCE_MICROS = "reduce() microseconds";
+    public static final String VALUES_PER_KEY = "values per reduce() key";
+    public static final String PAIRS_PER_USER = "pairs per user";
+    private static final String[] GROUPS = {MAP_MICROS, REDUCE_MICROS, VALUES_PER_KEY, PAIRS_PER_USER};
+
+    static final String MAPPER_CLASS = "taskHistograms.mapper";
+    static final String REDUCER_CLASS = "taskHistograms.reducer";
+    private static final String MAX_COUNTERS = "mapreduce.job.counters.max";
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    /**
+     * @return true if the counter group holds the buckets of one of the histograms
+     */
+    public static boolean isHistogram(String group) {
+        for (String histogram : GROUPS) {
+            if (histogram.equals(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * run the mapper and reducer of the job by InstrumentedMapper / InstrumentedReducer if taskHistograms is set
+     */
+    public static void instrument(Job job) throws ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+        if (!isEnabled(conf) || InstrumentedMapper.class.equals(job.getMapperClass())) {
+            return;
+        }
+        // MultipleInputs sets DelegatingMapper, which picks the mapper of the split as usual
+        conf.setClass(MAPPER_CLASS, job.getMapperClass(), Mapper.class);
+        job.setMapperClass(InstrumentedMapper.class);
+        if (job.getNumReduceTasks() > 0) {
+            conf.setClass(REDUCER_CLASS, job.getReducerClass(), Reducer.class);
+            job.setReducerClass(InstrumentedReducer.class);
+        }
+        conf.setInt(MAX_COUNTERS, Math.max(conf.getInt(MAX_COUNTERS, 120), 500));
+    }
+
+    /**
+     * print the histogram into the log of the task and add it to the counters of the job
+     */
+    public static void dump(TaskInputOutputContext<?, ?, ?, ?> context, String group, LogHistogram histogram) {
+        dump(context, group, histogram, "");
+    }
+
+    private static void dump(TaskInputOutputContext<?, ?, ?, ?> context, String group, LogHistogram histogram,
+                             String suffix) {
+        histogram.addTo(context, group);
+        System.out.println(context.getTaskAttemptID() + " " + group + ": " + histogram + suffix);
+    }
+
+    public static class InstrumentedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT>
+            extends Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+        @Override
+        public void run(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            @SuppressWarnings("unchecked")
+            Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> mapper = ReflectionUtils.newInstance(
+                    conf.getClass(MAPPER_CLASS, Mapper.class, Mapper.class), conf);
+            LogHistogram micros = new LogHistogram();
+            WrappedMapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> wrapper = new WrappedMapper<>();
+            Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT>.Context timed = wrapper.new Context(context) {
+                // start of the current map() call, 0 before the first one
+                long start;
+
+                @Override
+                public boolean nextKeyValue() throws IOException, InterruptedException {
+                    if (start != 0) {
+                        micros.add((System.nanoTime() - start) / 1000);
+                    }
+                    boolean next = super.nextKeyValue();
+                    start = System.nanoTime();
+                    return next;
+                }
+            };
+            mapper.run(timed);
+            dump(context, MAP_MICROS, micros);
+        }
+    }
+
+    public static class InstrumentedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT>
+            extends Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
+        @Override
+        public void run(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            @SuppressWarnings("unchecked")
+            Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> reducer = ReflectionUtils.newInstance(
+                    conf.getClass(REDUCER_CLASS, Reducer.class, Reducer.class), conf);
+            LogHistogram micros = new LogHistogram();
+            LogHistogram valuesPerKey = new LogHistogram();
+            // incremented by the framework for every value it reads, so no value has to be counted here
+            Counter inputValues = context.getCounter(TaskCounter.REDUCE_INPUT_RECORDS);
+            String[] hottestKey = {null};
+            WrappedReducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT> wrapper = new WrappedReducer<>();
+            Reducer<KEYIN, VALUEIN, KEYOUT, VALUEOUT>.Context timed = wrapper.new Context(context) {
+                long start;
+                // REDUCE_INPUT_RECORDS after the current key and its first value were read
+                long firstValue;
+                long mostValues;
+
+                @Override
+                public boolean nextKey() throws IOException, InterruptedException {
+                    if (start != 0) {
+                        micros.add((System.nanoTime() - start) / 1000);
+                        long values = inputValues.getValue() - firstValue + 1;
+                        if (values > mostValues) {
+                            // the key is still the one of the finished call, only a new maximum becomes a String
+                            mostValues = values;
+                            hottestKey[0] = getCurrentKey() + " (" + values + " values)";
+                        }
+                        valuesPerKey.add(values);
+                    }
+                    boolean next = super.nextKey();
+                    firstValue = inputValues.getValue();
+                    start = System.nanoTime();
+                    return next;
+                }
+            };
+            reducer.run(timed);
+            dump(context, REDUCE_MICROS, micros);
+            dump(context, VALUES_PER_KEY, valuesPerKey, hottestKey[0] == null ? "" : ", hottest key " + hottestKey[0]);
+        }
+    }
+}
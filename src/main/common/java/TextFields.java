@@ -0,0 +1,247 @@
+package main.common.java;
+
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Splits a line on a separator in place, on the bytes of the Text, which replaces
+ * value.toString().trim().split(",") in the mappers: that decodes the line into a String, copies it again for
+ * trim() and allocates one String per field plus the array, which Integer.parseInt / Double.parseDouble
+ * then read once more.
+ * Here the field boundaries are kept in int arrays which are reused for every line, and the numbers are parsed
+ * from the bytes. The line is trimmed like String.trim() and trailing empty fields are dropped like by
+ * String.split(), so the fields are the same.
+ * Fields are only valid until the next split(), the Text of a mapper is reused for the next record.
+ *
+ * The append methods write fields and ints into an output Text without going through a String either.
+ */
+public class TextFields {
+    // 10^0 .. 10^22 are exact doubles, so mantissa / 10^k is rounded once like Double.parseDouble does
+    private static final double[] POWERS_OF_TEN = new double[23];
+    // 10^0 .. 10^10 are exact floats
+    private static final float[] FLOAT_POWERS_OF_TEN = new float[11];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        FLOAT_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < FLOAT_POWERS_OF_TEN.length; i++) {
+            FLOAT_POWERS_OF_TEN[i] = FLOAT_POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private byte[] bytes;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int size;
+    private final byte[] digits = new byte[11];  // "-2147483648"
+
+    /**
+     * split the whole line
+     */
+    public TextFields split(Text line, char separator) {
+        return split(line.getBytes(), 0, line.getLength(), separator);
+    }
+
+    /**
+     * split bytes[from] .. bytes[to - 1], e.g. one field of a previous split on another separator
+     */
+    public TextFields split(byte[] bytes, int from, int to, char separator) {
+        this.bytes = bytes;
+        while (from < to && (bytes[from] & 0xff) <= ' ') {
+            from++;
+        }
+        while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+        size = 0;
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || bytes[i] == separator) {
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                }
+                starts[size] = start;
+                ends[size++] = i;
+                start = i + 1;
+            }
+        }
+        while (size > 0 && starts[size - 1] == ends[size - 1]) {
+            size--;
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int start(int field) {
+        return starts[field];
+    }
+
+    public int end(int field) {
+        return ends[field];
+    }
+
+    public int intAt(int field) {
+        return parseInt(bytes, starts[field], ends[field]);
+    }
+
+    public double doubleAt(int field) {
+        return parseDouble(bytes, starts[field], ends[field]);
+    }
+
+    public float floatAt(int field) {
+        return parseFloat(bytes, starts[field], ends[field]);
+    }
+
+    /**
+     * @return the field as a String, for the rare fields which are not numbers
+     */
+    public String stringAt(int field) {
+        return new String(bytes, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * append the bytes of the field to text as they are
+     */
+    public void appendTo(Text text, int field) {
+        text.append(bytes, starts[field], ends[field] - starts[field]);
+    }
+
+    /**
+     * append one ASCII character to text
+     */
+    public void appendChar(Text text, char c) {
+        digits[0] = (byte) c;
+        text.append(digits, 0, 1);
+    }
+
+    /**
+     * append the decimal digits of value to text, like text.append(String.valueOf(value))
+     */
+    public void appendInt(Text text, int value) {
+        int pos = digits.length;
+        long rest = Math.abs((long) value);
+        do {
+            digits[--pos] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        text.append(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Integer.parseInt of bytes[from] .. bytes[to - 1]
+     */
+    public static int parseInt(byte[] bytes, int from, int to) {
+        if (from == to) {
+            throw new NumberFormatException("empty field");
+        }
+        boolean negative = bytes[from] == '-';
+        int i = negative || bytes[from] == '+' ? from + 1 : from;
+        if (i == to) {
+            throw numberFormat(bytes, from, to);
+        }
+        // accumulate negatively, the range of negative ints is the larger one
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        for (; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || result < limit / 10) {
+                throw numberFormat(bytes, from, to);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw numberFormat(bytes, from, to);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Double.parseDouble of bytes[from] .. bytes[to - 1]; plain decimals like 4.5 are parsed from the bytes,
+     * anything else (exponents, more than 15 digits, NaN...) falls back to Double.parseDouble
+     */
+    public static double parseDouble(byte[] bytes, int from, int to) {
+        long mantissa = 0;
+        int digitCount = 0;
+        int fractionDigits = -1;
+        boolean negative = from < to && bytes[from] == '-';
+        int i = negative || (from < to && bytes[from] == '+') ? from + 1 : from;
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digitCount++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        // the mantissa has to be an exact double as well, up to 2^53
+        if (i < to || digitCount == 0 || digitCount > 18 || mantissa >= 1L << 53
+                || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Float.parseFloat of bytes[from] .. bytes[to - 1], like {@link #parseDouble(byte[], int, int)}
+     */
+    public static float parseFloat(byte[] bytes, int from, int to) {
+        int mantissa = 0;
+        int fractionDigits = -1;
+        boolean digits = false;
+        boolean negative = from < to && bytes[from] == '-';
+        int i = negative || (from < to && bytes[from] == '+') ? from + 1 : from;
+        for (; i < to && mantissa < 1 << 24; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits = true;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        // the mantissa and the power of ten are exact floats, so the division rounds once
+        if (i < to || !digits || mantissa >= 1 << 24 || fractionDigits >= FLOAT_POWERS_OF_TEN.length) {
+            return Float.parseFloat(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        float value = fractionDigits > 0 ? mantissa / FLOAT_POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static NumberFormatException numberFormat(byte[] bytes, int from, int to) {
+        return new NumberFormatException("For input string: \""
+                + new String(bytes, from, to - from, StandardCharsets.UTF_8) + "\"");
+    }
+}
@@ -0,0 +1,104 @@
+package main.common.java;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Keeps the K movies with the highest score of one user in a fixed size binary min-heap of primitive arrays,
+ * used by the top-K mode of RecommendationListGenerator. The root is the worst kept movie, so a new movie
+ * only has to beat the root to get in. Equal scores are ranked by the smaller movie id first.
+ */
+public class TopKHeap {
+    private final int[] movies;
+    private final double[] scores;
+    private int size;
+
+    public TopKHeap(int k) {
+        movies = new int[k];
+        scores = new double[k];
+    }
+
+    public void offer(int movie, double score) {
+        if (size < movies.length) {
+            movies[size] = movie;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (size > 0 && worse(0, movie, score)) {
+            movies[0] = movie;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * sort the kept movies by descending score in place (heap sort), afterwards {@link #movieAt(int)} and
+     * {@link #scoreAt(int)} return them by rank. The heap has to be cleared before the next offer().
+     */
+    public void sortDescending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    public int movieAt(int rank) {
+        return movies[rank];
+    }
+
+    public double scoreAt(int rank) {
+        return scores[rank];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return true if the entry at slot i ranks below (movie, score)
+     */
+    private boolean worse(int i, int movie, double score) {
+        return scores[i] < score || (scores[i] == score && movies[i] > movie);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, movies[parent], scores[parent])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && worse(child + 1, movies[child], scores[child])) {
+                child++;
+            }
+            if (!worse(child, movies[i], scores[i])) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int movie = movies[i];
+        movies[i] = movies[j];
+        movies[j] = movie;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
@@ -0,0 +1,322 @@
+package main.common.java;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Watched movies of every user, which replaces the Map<Integer, List<Integer>> the recommendation mappers
+ * used to filter out watched movies with List.contains().
+ * Stored in CSR form: users is the sorted array of user ids and the sorted movie ids of users[u] are
+ * movies[start[u]] .. movies[start[u + 1] - 1], so a lookup is two binary searches over primitive arrays.
+ *
+ * With -D writeWatchedIndex=true every reducer of DataDividerByUser writes the index of its users into the output
+ * as an IntSectionFile, so the index is built in the tasks and never passes through the client.
+ * RecommendationListGenerator ships these files to the mappers through the distributed cache and they map all
+ * of them instead of parsing the rating history; a user is looked up in the file of its partition.
+ * Without the index files the mappers still build it from the rating history; the index of the last loaded
+ * file is then kept in a static field, so tasks which share a JVM, e.g. all tasks of the LocalJobRunner, build
+ * it once. It is built again when the modification time of the file changed.
+ */
+public class WatchedIndex {
+    private static Path cachedPath;
+    private static long cachedModificationTime;
+    private static WatchedIndex cached;
+
+    /**
+     * prefix of the index files in the output of DataDividerByUser, one per partition: _watched.idx-00000, ...
+     * FileInputFormat skips files starting with "_"
+     */
+    public static final String INDEX_FILE = "_watched.idx";
+
+    private final IntBuffer users;
+    private final IntBuffer start;
+    private final IntBuffer movies;
+    // the index of every partition of DataDividerByUser, null for an index of one file
+    private final WatchedIndex[] partitions;
+
+    public WatchedIndex(IntBuffer users, IntBuffer start, IntBuffer movies) {
+        this.users = users;
+        this.start = start;
+        this.movies = movies;
+        this.partitions = null;
+    }
+
+    private WatchedIndex(WatchedIndex[] partitions) {
+        this.users = null;
+        this.start = null;
+        this.movies = null;
+        this.partitions = partitions;
+    }
+
+    /**
+     * @return name of the index file which the reducer of the partition writes into the output of DataDividerByUser
+     */
+    public static String partitionFile(int partition) {
+        return String.format("%s-%05d", INDEX_FILE, partition);
+    }
+
+    /**
+     * @return partition of the user in DataDividerByUser, the one of HashPartitioner for its IntWritable key
+     */
+    static int partition(int userId, int partitions) {
+        return (userId & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * add the index files in the output of DataDividerByUser to the distributed cache of the job, linked into the
+     * working directory of the tasks as link-0, link-1, ... in the order of their partitions
+     * @param histories output directory of DataDividerByUser
+     * @return number of index files, 0 if DataDividerByUser ran without -D writeWatchedIndex=true
+     */
+    public static int addCacheFiles(Job job, Path histories, String link) throws IOException {
+        FileSystem fs = histories.getFileSystem(job.getConfiguration());
+        FileStatus[] files = fs.globStatus(new Path(histories, INDEX_FILE + "-*"));
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        for (int p = 0; p < files.length; p++) {
+            job.addCacheFile(URI.create(fs.makeQualified(files[p].getPath()).toUri() + "#" + link + "-" + p));
+        }
+        return files.length;
+    }
+
+    /**
+     * map the index files linked by {@link #addCacheFiles(Job, Path, String)}
+     */
+    public static WatchedIndex mapCacheFiles(String link, int files) throws IOException {
+        WatchedIndex[] partitions = new WatchedIndex[files];
+        for (int p = 0; p < files; p++) {
+            partitions[p] = map(new File(link + "-" + p));
+        }
+        return new WatchedIndex(partitions);
+    }
+
+    /**
+     * map an index file written by {@link #write(FileSystem, Path)}
+     */
+    public static WatchedIndex map(File file) throws IOException {
+        IntBuffer[] sections = IntSectionFile.map(file);
+        return new WatchedIndex(sections[0], sections[1], sections[2]);
+    }
+
+    public void write(FileSystem fs, Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(path, true)))) {
+            IntSectionFile.write(out, users, start, movies);
+        }
+    }
+
+    /**
+     * @param path rating history, lines of user_id,movie_id,rating
+     */
+    public static synchronized WatchedIndex load(Configuration conf, Path path) throws IOException {
+        FileSystem fs = FileSystem.get(conf);
+        long modificationTime = fs.getFileStatus(path).getModificationTime();
+        if (cached == null || !path.equals(cachedPath) || modificationTime != cachedModificationTime) {
+            cached = read(fs, path);
+            cachedPath = path;
+            cachedModificationTime = modificationTime;
+        }
+        return cached;
+    }
+
+    private static WatchedIndex read(FileSystem fs, Path path) throws IOException {
+        // (user_id, movie_id) packed into one long, so sorting them sorts by user and then by movie
+        long[] pairs = new long[1024];
+        int size = 0;
+        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] tokens = line.trim().split(",");
+            if (tokens.length < 2) {
+                continue;
+            }
+            if (size == pairs.length) {
+                pairs = Arrays.copyOf(pairs, size * 2);
+            }
+            pairs[size++] = ((long) Integer.parseInt(tokens[0]) << 32) | (Integer.parseInt(tokens[1]) & 0xffffffffL);
+        }
+        br.close();
+        return fromPairs(pairs, size);
+    }
+
+    /**
+     * @param pairs (user_id, movie_id) packed into one long, user_id in the high half, in any order
+     * @param size number of pairs used, they are sorted in place
+     */
+    public static WatchedIndex fromPairs(long[] pairs, int size) {
+        Arrays.sort(pairs, 0, size);
+        int[] users = new int[size];
+        int[] start = new int[size + 1];
+        int[] movies = new int[size];
+        int userCount = 0;
+        int movieCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && pairs[i] == pairs[i - 1]) {
+                continue;  // the same movie rated twice
+            }
+            int user = (int) (pairs[i] >>> 32);
+            if (userCount == 0 || users[userCount - 1] != user) {
+                start[userCount] = movieCount;
+                users[userCount++] = user;
+            }
+            movies[movieCount++] = (int) pairs[i];
+        }
+        start[userCount] = movieCount;
+        return new WatchedIndex(IntBuffer.wrap(Arrays.copyOf(users, userCount)),
+                IntBuffer.wrap(Arrays.copyOf(start, userCount + 1)), IntBuffer.wrap(Arrays.copyOf(movies, movieCount)));
+    }
+
+    /**
+     * Index of the users of one reducer of DataDividerByUser. They are added in ascending order, the order
+     * in which the keys arrive at a reducer, so only the movies of each user are sorted, when the next user
+     * is added or the index is built.
+     */
+    public static class Builder {
+        private int[] users = new int[1024];
+        private int[] start = new int[1025];
+        private int[] movies = new int[1024];
+        private int userCount;
+        private int movieCount;
+
+        /**
+         * add a watched movie of the user, all movies of a user are added before the next user
+         */
+        public void add(int userId, int movieId) {
+            if (userCount == 0 || users[userCount - 1] != userId) {
+                if (userCount > 0 && users[userCount - 1] > userId) {
+                    throw new IllegalArgumentException("user " + userId + " is not added in ascending order");
+                }
+                endUser();
+                if (userCount == users.length) {
+                    users = Arrays.copyOf(users, userCount * 2);
+                    start = Arrays.copyOf(start, userCount * 2 + 1);
+                }
+                start[userCount] = movieCount;
+                users[userCount++] = userId;
+            }
+            if (movieCount == movies.length) {
+                movies = Arrays.copyOf(movies, movieCount * 2);
+            }
+            movies[movieCount++] = movieId;
+        }
+
+        /**
+         * sort the movies of the last added user
+         */
+        private void endUser() {
+            if (userCount == 0) {
+                return;
+            }
+            int from = start[userCount - 1];
+            Arrays.sort(movies, from, movieCount);
+            int end = from;
+            for (int k = from; k < movieCount; k++) {
+                if (end == from || movies[end - 1] != movies[k]) {
+                    movies[end++] = movies[k];  // else the same movie rated twice
+                }
+            }
+            movieCount = end;
+            start[userCount] = movieCount;
+        }
+
+        public WatchedIndex build() {
+            endUser();
+            return new WatchedIndex(IntBuffer.wrap(Arrays.copyOf(users, userCount)),
+                    IntBuffer.wrap(Arrays.copyOf(start, userCount + 1)),
+                    IntBuffer.wrap(Arrays.copyOf(movies, movieCount)));
+        }
+    }
+
+    /**
+     * @return true if the user has rated the movie
+     */
+    public boolean contains(int userId, int movieId) {
+        if (partitions != null) {
+            return partitions[partition(userId, partitions.length)].contains(userId, movieId);
+        }
+        int u = IntSectionFile.binarySearch(users, 0, users.limit(), userId);
+        if (u < 0) {
+            return false;
+        }
+        return IntSectionFile.binarySearch(movies, start.get(u), start.get(u + 1), movieId) >= 0;
+    }
+
+    /**
+     * @return true if the user has a rating
+     */
+    public boolean hasUser(int userId) {
+        if (partitions != null) {
+            return partitions[partition(userId, partitions.length)].hasUser(userId);
+        }
+        return indexOf(userId) >= 0;
+    }
+
+    /**
+     * the positions of indexOf() and the methods below are the ones of an index of one file
+     * @return position of the user, or a negative value if the user has no rating
+     */
+    public int indexOf(int userId) {
+        if (partitions != null) {
+            throw new IllegalStateException("the index is split into " + partitions.length + " partitions");
+        }
+        return IntSectionFile.binarySearch(users, 0, users.limit(), userId);
+    }
+
+    /**
+     * first movie of the user at position u, iterate up to {@link #moviesEnd(int)} with {@link #movieAt(int)}
+     */
+    public int moviesStart(int u) {
+        return start.get(u);
+    }
+
+    public int moviesEnd(int u) {
+        return start.get(u + 1);
+    }
+
+    public int movieAt(int k) {
+        return movies.get(k);
+    }
+
+    public int userCount() {
+        if (partitions != null) {
+            int count = 0;
+            for (WatchedIndex partition : partitions) {
+                count += partition.userCount();
+            }
+            return count;
+        }
+        return users.limit();
+    }
+
+    /**
+     * number of distinct (user, movie) pairs
+     */
+    public int size() {
+        if (partitions != null) {
+            int size = 0;
+            for (WatchedIndex partition : partitions) {
+                size += partition.size();
+            }
+            return size;
+        }
+        return movies.limit();
+    }
+}
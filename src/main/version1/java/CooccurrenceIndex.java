@@ -0,0 +1,185 @@
+package main.version1.java;
+
+import main.common.java.Compression;
+import main.common.java.IntSectionFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by guoyifeng
+ */
+
+/**
+ * Co-occurrence Matrix written by CoocurrenceMatrixBuilder as a memory-mappable IntSectionFile, so that
+ * MatricesMultiplicationMapper maps it in setup() instead of parsing the text output into HashMaps.
+ * Rows are kept in CSR form:
+ *      movies     sorted movie ids, the position of a movie is its row
+ *      start      entries of row r are at start[r] .. start[r + 1] - 1
+ *      cols       row of movie2 for every entry, so its id is movies[cols[k]]
+ *      weights    normalized relation of every entry, relation / sum of the row of movie2, as the two ints of
+ *                 its double bits
+ * The weights are computed when the index is written, so the mapper multiplies a rating by them without
+ * dividing per record, and they are the doubles of RelationList, so both give the same scores.
+ */
+public class CooccurrenceIndex {
+    /**
+     * name of the index file in the output of CoocurrenceMatrixBuilder, FileInputFormat skips files starting
+     * with "_"
+     */
+    public static final String INDEX_FILE = "_cooccurrence.idx";
+
+    private final IntBuffer movies;
+    private final IntBuffer start;
+    private final IntBuffer cols;
+    private final DoubleBuffer weights;
+
+    private CooccurrenceIndex(ByteBuffer[] sections) {
+        movies = sections[0].asIntBuffer();
+        start = sections[1].asIntBuffer();
+        cols = sections[2].asIntBuffer();
+        weights = sections[3].asDoubleBuffer();
+    }
+
+    public static CooccurrenceIndex map(File file) throws IOException {
+        return new CooccurrenceIndex(IntSectionFile.mapBytes(file));
+    }
+
+    /**
+     * read the text output of CoocurrenceMatrixBuilder and write it as an index file
+     * @param matrix output directory, lines of movie1:movie2 \t relation
+     */
+    public static void build(Configuration conf, Path matrix, Path index) throws IOException {
+        FileSystem fs = matrix.getFileSystem(conf);
+        Builder builder = new Builder();
+        for (FileStatus part : fs.listStatus(matrix)) {
+            if (!part.getPath().getName().startsWith("part-")) {
+                continue;
+            }
+            // part-r-xxxxx.<codec extension> with -D compressIntermediate
+            BufferedReader br = new BufferedReader(new InputStreamReader(Compression.open(conf, part.getPath())));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.trim().split("\t");
+                String[] pair = tokens[0].split(":");
+                builder.add(Integer.parseInt(pair[0]), Integer.parseInt(pair[1]), Integer.parseInt(tokens[1]));
+            }
+            br.close();
+        }
+        builder.write(fs, index);
+    }
+
+    /**
+     * Collects the entries of the matrix in any order, used by build() and by the reducer of
+     * CoocurrenceMatrixBuilder which writes the index of its output itself
+     */
+    public static class Builder {
+        private int size = 0;
+        private int[] movie1 = new int[1024];
+        private int[] movie2 = new int[1024];
+        private int[] relation = new int[1024];
+
+        public void add(int movieA, int movieB, int count) {
+            if (size == movie1.length) {
+                movie1 = Arrays.copyOf(movie1, size * 2);
+                movie2 = Arrays.copyOf(movie2, size * 2);
+                relation = Arrays.copyOf(relation, size * 2);
+            }
+            movie1[size] = movieA;
+            movie2[size] = movieB;
+            relation[size] = count;
+            size++;
+        }
+
+        public void write(FileSystem fs, Path index) throws IOException {
+            // every movie of the matrix has a row because the matrix is symmetric
+            int[] movies = Arrays.copyOf(movie1, size);
+            Arrays.sort(movies);
+            int rows = 0;
+            for (int i = 0; i < size; i++) {
+                if (rows == 0 || movies[rows - 1] != movies[i]) {
+                    movies[rows++] = movies[i];
+                }
+            }
+            movies = Arrays.copyOf(movies, rows);
+
+            // counting sort of the entries by row
+            int[] rowOf = new int[size];
+            int[] start = new int[rows + 1];
+            for (int i = 0; i < size; i++) {
+                rowOf[i] = Arrays.binarySearch(movies, movie1[i]);
+                start[rowOf[i] + 1]++;
+            }
+            for (int r = 0; r < rows; r++) {
+                start[r + 1] += start[r];
+            }
+            int[] next = Arrays.copyOf(start, rows);
+            int[] cols = new int[size];
+            int[] relations = new int[size];
+            int[] rowSums = new int[rows];
+            for (int i = 0; i < size; i++) {
+                int k = next[rowOf[i]]++;
+                cols[k] = Arrays.binarySearch(movies, movie2[i]);
+                relations[k] = relation[i];
+                rowSums[rowOf[i]] += relation[i];
+            }
+            // the denominator is the sum on the row of movie2, like in RelationList
+            int[] weightBits = new int[size * 2];
+            for (int k = 0; k < size; k++) {
+                long bits = Double.doubleToLongBits((double) relations[k] / rowSums[cols[k]]);
+                weightBits[2 * k] = (int) (bits >>> 32);
+                weightBits[2 * k + 1] = (int) bits;
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(index, true)))) {
+                IntSectionFile.write(out, IntBuffer.wrap(movies), IntBuffer.wrap(start), IntBuffer.wrap(cols),
+                        IntBuffer.wrap(weightBits));
+            }
+        }
+    }
+
+    /**
+     * @return row of the movie, or a negative value if the movie is not in the matrix
+     */
+    public int rowOf(int movie) {
+        return IntSectionFile.binarySearch(movies, 0, movies.limit(), movie);
+    }
+
+    public int rowStart(int row) {
+        return start.get(row);
+    }
+
+    public int rowEnd(int row) {
+        return start.get(row + 1);
+    }
+
+    /**
+     * @return row of movie2 of entry k
+     */
+    public int colAt(int k) {
+        return cols.get(k);
+    }
+
+    /**
+     * @return normalized relation of entry k
+     */
+    public double weightAt(int k) {
+        return weights.get(k);
+    }
+
+    public int movieOf(int row) {
+        return movies.get(row);
+    }
+}
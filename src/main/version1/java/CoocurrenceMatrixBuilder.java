@@ -4,6 +4,10 @@ package main.version1.java;
  * @author yifengguo
  */
 
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
@@ -13,7 +17,9 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
 
@@ -23,6 +29,13 @@ import java.io.IOException;
 public class CoocurrenceMatrixBuilder {
     public static class CooccurrenceMatrixMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
         static IntWritable one = new IntWritable(1);
+        // reused for every line, the line is parsed on its bytes
+        TextFields line = new TextFields();
+        TextFields movieRatings = new TextFields();
+        Text outputKey = new Text();
+        // bytes of the movie ids are at movieStart[i] .. movieEnd[i] - 1 of the line
+        int[] movieStart = new int[64];
+        int[] movieEnd = new int[64];
 
         /**
          *
@@ -35,15 +48,26 @@ public class CoocurrenceMatrixBuilder {
         @Override
         public void map(LongWritable key, Text value, Context context) throws InterruptedException, IOException {
             // get the 10001:5.0,10002:3.0,10003:2.5 part from input text
-            String[] movie_rating = value.toString().trim().split("\t")[1].split(",");  // { 1:10, 2:8...}
+            line.split(value, '\t');
+            movieRatings.split(line.bytes(), line.start(1), line.end(1), ',');  // { 1:10, 2:8...}
+            int movies = movieRatings.size();
+            context.getCounter(PipelineCounter.USERS).increment(1);
+            context.getCounter(PipelineCounter.PAIRS_EMITTED).increment((long) movies * movies);
+            if (movieStart.length < movies) {
+                movieStart = new int[movies];
+                movieEnd = new int[movies];
+            }
 
-            // retrieve the movie id
-            String[] movie_id = new String[movie_rating.length];
             /*
-             * construct movie_id array {1, 2, 3, 4...}
+             * retrieve the movie id of every movie_id:rating {1, 2, 3, 4...}
              */
-            for (int i = 0; i < movie_rating.length; i++) {
-                movie_id[i] = movie_rating[i].split(":")[0];
+            byte[] bytes = movieRatings.bytes();
+            for (int i = 0; i < movies; i++) {
+                movieStart[i] = movieRatings.start(i);
+                movieEnd[i] = movieStart[i];
+                while (movieEnd[i] < movieRatings.end(i) && bytes[movieEnd[i]] != ':') {
+                    movieEnd[i]++;
+                }
             }
 
             /*
@@ -53,9 +77,13 @@ public class CoocurrenceMatrixBuilder {
              *         2:1   1
              *         2:2   1
              */
-            for (int i = 0; i < movie_id.length; i++) {
-                for (int j = 0; j < movie_id.length; j++) {
-                    context.write(new Text(movie_id[i] + ":" + movie_id[j]), one);
+            for (int i = 0; i < movies; i++) {
+                for (int j = 0; j < movies; j++) {
+                    outputKey.clear();
+                    outputKey.append(bytes, movieStart[i], movieEnd[i] - movieStart[i]);
+                    line.appendChar(outputKey, ':');
+                    outputKey.append(bytes, movieStart[j], movieEnd[j] - movieStart[j]);
+                    context.write(outputKey, one);
                 }
             }
         }
@@ -64,6 +92,7 @@ public class CoocurrenceMatrixBuilder {
     public static class CooccurrenceMatrixReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         /**
          * simply merge the result of mapper like reducer of word count
+         * the sum is associative, so this reducer is also used as the combiner
          *                         reducer
          *         key   value     ------>       key         value
          *         1:1   1                       1:1          2
@@ -89,17 +118,68 @@ public class CoocurrenceMatrixBuilder {
         }
     }
 
+    /**
+     * the reducer with -D writeCooccurrenceIndex=true, the only one of the job: sums like CooccurrenceMatrixReducer
+     * and also collects the matrix, which it writes as the CooccurrenceIndex of MatricesMultiplicationMapper
+     * in cleanup(), so the index is built in the task instead of reading the output back on the client
+     */
+    public static class CooccurrenceIndexReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+        CooccurrenceIndex.Builder index = new CooccurrenceIndex.Builder();
+        TextFields pair = new TextFields();
+        IntWritable outputValue = new IntWritable();
+
+        @Override
+        public void reduce(Text key, Iterable<IntWritable> values, Context context)
+                throws InterruptedException, IOException {
+            int count = 0;
+            for (IntWritable value : values) {
+                count += value.get();
+            }
+            outputValue.set(count);
+            context.write(key, outputValue);
+            pair.split(key, ':');  // movie1:movie2
+            index.add(pair.intAt(0), pair.intAt(1), count);
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            // into the output of the task attempt, which is moved into the job output when the task commits
+            Path file = new Path(FileOutputFormat.getWorkOutputPath(context), CooccurrenceIndex.INDEX_FILE);
+            index.write(file.getFileSystem(context.getConfiguration()), file);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        // -D writeCooccurrenceIndex=true writes the CooccurrenceIndex into the output
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * -D writeCooccurrenceIndex=true writes the CooccurrenceIndex into the output, with one reducer
+     * @param args input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
         Job job = Job.getInstance(conf);
 
         job.setMapperClass(CooccurrenceMatrixMapper.class);
+        // partial sums of one pair on the map side, so each map task sends every distinct pair only once per spill
+        job.setCombinerClass(CooccurrenceMatrixReducer.class);
         job.setReducerClass(CooccurrenceMatrixReducer.class);
+        if (conf.getBoolean("writeCooccurrenceIndex", false)) {
+            // the index holds the whole matrix, so all of it has to go through one reducer
+            job.setReducerClass(CooccurrenceIndexReducer.class);
+            job.setNumReduceTasks(1);
+        }
 
         job.setJarByClass(CoocurrenceMatrixBuilder.class);
 
         job.setInputFormatClass(TextInputFormat.class);
         job.setOutputFormatClass(TextOutputFormat.class);
+        Compression.compressOutput(job);
 
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(IntWritable.class);
@@ -107,6 +187,6 @@ public class CoocurrenceMatrixBuilder {
         TextInputFormat.setInputPaths(job, new Path(args[0])); // output of the first MapReduce job
         TextOutputFormat.setOutputPath(job, new Path(args[1]));
 
-        job.waitForCompletion(true);
+        return JobStats.waitForCompletion(job);
     }
 }
@@ -1,5 +1,9 @@
 package main.version1.java;
 
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
@@ -10,6 +14,7 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
 
@@ -18,6 +23,11 @@ import java.io.IOException;
  */
 public class DataDividerByUser {
     public static class DataDividerMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
+        // reused for every line, the line is parsed on its bytes
+        TextFields fields = new TextFields();
+        IntWritable outputKey = new IntWritable();
+        Text outputValue = new Text();
+
         /**
          *
          * @param key  line index
@@ -26,12 +36,19 @@ public class DataDividerByUser {
          */
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] user_movie_rating = value.toString().trim().split(",");
-            int user_id = Integer.parseInt(user_movie_rating[0]);
-            String movie_id = user_movie_rating[1];
-            String rating = user_movie_rating[2];
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            outputKey.set(fields.intAt(0));  // user_id
+            // movie_id and rating are copied as they are
+            outputValue.clear();
+            fields.appendTo(outputValue, 1);
+            fields.appendChar(outputValue, ':');
+            fields.appendTo(outputValue, 2);
 
-            context.write(new IntWritable(user_id), new Text(movie_id + ":" + rating));
+            context.write(outputKey, outputValue);
         }
     }
 
@@ -60,6 +77,16 @@ public class DataDividerByUser {
 
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * @param args input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
 
         Job job = Job.getInstance(conf);
         job.setMapperClass(DataDividerMapper.class);
@@ -69,6 +96,7 @@ public class DataDividerByUser {
 
         job.setInputFormatClass(TextInputFormat.class);
         job.setOutputFormatClass(TextOutputFormat.class);
+        Compression.compressOutput(job);
 
         // the output format of mapper and reducer are the same
         // so set once
@@ -78,6 +106,6 @@ public class DataDividerByUser {
         TextInputFormat.setInputPaths(job, new Path(args[0])); // src/main/version1/raw_data/user_rating_history.txt
         TextOutputFormat.setOutputPath(job, new Path(args[1])); // src/main/version1/output/first_mapreduce
 
-        job.waitForCompletion(true);
+        return JobStats.waitForCompletion(job);
     }
 }
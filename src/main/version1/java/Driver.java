@@ -1,7 +1,67 @@
 package main.version1.java;
 
+import main.common.java.StageRunner;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+
 /**
  * Created by guoyifeng on 6/19/18.
  */
+
+/**
+ * Run the four MapReduce jobs of version1 in order and wire the output of each job into the next one:
+ *      DataDividerByUser -> CoocurrenceMatrixBuilder -> MatricesMultiplication -> RecommendationListGenerator
+ * All intermediate outputs are put under output_dir with the same names as src/main/version1/output/.
+ *
+ * The stages are run by the StageRunner of version2: a stage is skipped when its output has a _SUCCESS file
+ * which is newer than every file of its inputs, so after only the titles changed just
+ * RecommendationListGenerator is run again. -D forceStages=name1,name2 (or all) runs the named stages even if
+ * they are up to date, e.g. after their code changed.
+ *
+ * After every stage the counters of PipelineCounter are printed, summed over its tasks, and with
+ * -D taskHistograms=true the histograms of TaskHistograms as well.
+ *
+ * -D compressMapOutput=codec and -D compressIntermediate=codec compress the shuffle and the data passed from
+ * one stage to the next one, codec is e.g. lz4 or the profile fast, see Compression. The intermediate
+ * outputs are then compressed text files, read back by their codec extension.
+ *
+ * usage: Driver [-D forceStages=...] user_rating_history.txt movie_title.txt output_dir
+ */
 public class Driver {
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path ratings = new Path(args[0]); // src/main/version1/raw_data/user_rating_history.txt
+        Path titles = new Path(args[1]);  // src/main/version1/raw_data/movie_title.txt
+        Path output = new Path(args[2]);  // src/main/version1/output/
+
+        Path dividedByUser = new Path(output, "first_mapreduce");
+        Path cooccurrence = new Path(output, "second_mapreduce");
+        Path scores = new Path(output, "thirdMR_matrices_multiplication");
+        Path recommendations = new Path(output, "recommendation_list");
+
+        StageRunner driver = new StageRunner(conf);
+        // the reducer of CoocurrenceMatrixBuilder writes the matrix as an index which MatricesMultiplicationMapper maps
+        conf.setBoolean("writeCooccurrenceIndex", true);
+        driver.runStage("first_mapreduce", DataDividerByUser::run, dividedByUser,
+                new Path[]{ratings}, ratings.toString(), dividedByUser.toString());
+        driver.runStage("second_mapreduce", CoocurrenceMatrixBuilder::run, cooccurrence,
+                new Path[]{dividedByUser}, dividedByUser.toString(), cooccurrence.toString());
+        // coOccurrencePath: the single reducer output file, which MatricesMultiplicationMapper would parse in
+        // setup(); it maps the index written by CoocurrenceMatrixBuilder instead. With -D compressIntermediate
+        // the file name has the extension of the codec
+        FileStatus[] parts = driver.getFileSystem().globStatus(new Path(cooccurrence, "part-r-00000*"));
+        Path coOccurrencePath = parts != null && parts.length > 0
+                ? parts[0].getPath() : new Path(cooccurrence, "part-r-00000");
+        conf.set("coOccurrenceIndex", new Path(cooccurrence, CooccurrenceIndex.INDEX_FILE).toString());
+        driver.runStage("thirdMR_matrices_multiplication", MatricesMultiplication::run, scores,
+                new Path[]{cooccurrence, ratings},
+                coOccurrencePath.toString(), ratings.toString(), scores.toString());
+        // watchHistory and movieTitles are passed to RecommendationListGenerator as configuration
+        driver.runStage("recommendation_list", RecommendationListGenerator::run, recommendations,
+                new Path[]{scores, ratings, titles},
+                ratings.toString(), titles.toString(), scores.toString(), recommendations.toString());
+    }
 }
@@ -4,8 +4,11 @@ package main.version1.java;
  * Created by guoyifeng
  */
 
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.IntWritable;
@@ -16,79 +19,63 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.URI;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
  * To do the multiplication on Co-occurrence Matrix and Rating Matrix<br>
  * Because the Mapper each time read only one file, so we choose to cache the Co-occurrence Matrix
- * in the memory by a HashMap.<br>
- * The relation of the Co-occurrence Matrix is maintained by a helper class {@link MovieRelation}
+ * in the memory.<br>
+ * The relation of the Co-occurrence Matrix is maintained by a helper class {@link RelationList}, or mapped
+ * from the {@link CooccurrenceIndex} when -D coOccurrenceIndex is set
  */
 public class MatricesMultiplication {
+    /**
+     * name of the co-occurrence index in the working directory of a task
+     */
+    static final String COOCCURRENCE_INDEX_LINK = "cooccurrence.idx";
+
     public static class MatricesMultiplicationMapper extends Mapper<LongWritable, Text, Text, DoubleWritable> {
         /**
-         * To initialize and store the Co-occurrence Matrix in a HashMap and
-         * will be used in multiplication during mapping process by the Mapper
+         * the Co-occurrence Matrix with normalized relations, read in setup() when there is no index file
+         * {movie1 : [movie2 -> relation / sum of row movie2, ...]}
          */
+        RelationList relations;
 
         /**
-         *  store the Co-occurrence Matrix in HashMap maintained by a helper class
-         *  {movie_id : List[movie1:movie2 -> relation]}
-         *  e.g {movie1: movie1:movie1 -> 4, movie1:movie2 -> 6, movie1:movie3 -> 8}
+         * the matrix mapped from the index file of CoocurrenceMatrixBuilder, null if it is parsed into relations
          */
-        Map<Integer, List<MovieRelation>> movieRelationMap = new HashMap<>();
+        CooccurrenceIndex index;
 
-        /**
-         * Used in calculating the denominator when normalizing the Co-occurrence Matrix
-         */
-        Map<Integer, Integer> denominatorMap = new HashMap<>();
+        // reused for every record, the line is parsed on its bytes
+        TextFields fields = new TextFields();
+        Text outputKey = new Text();
+        DoubleWritable outputValue = new DoubleWritable();
 
         @Override
         public void setup(Context context) throws IOException {
             Configuration conf = context.getConfiguration();
+            if (conf.get("coOccurrenceIndex") != null) {
+                // linked into the working directory by the distributed cache, see run()
+                index = CooccurrenceIndex.map(new File(COOCCURRENCE_INDEX_LINK));
+                return;
+            }
             String filePath = conf.get("coOccurrencePath"); // Get the Co-occurrence Matrix from output of MR job 2
                                                             // the path name is set in Drive.java
             Path path = new Path(filePath);
-            FileSystem fs = FileSystem.get(conf);
-            BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path))); // get the data from HDFS
+            // get the data from HDFS, decompressed if CoocurrenceMatrixBuilder ran with -D compressIntermediate
+            BufferedReader br = new BufferedReader(new InputStreamReader(Compression.open(conf, path)));
 
             // read Co-occurrence Matrix
             // format:      movie_id:movie_id \t relation
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] tokens = line.toString().trim().split("\t");
-                String[] movies = tokens[0].split(":");
-
-                int movie1 = Integer.parseInt(movies[0]);
-                int movie2 = Integer.parseInt(movies[1]);
-                int relation = Integer.parseInt(tokens[1]);
-
-                if (movieRelationMap.containsKey(movie1)) {
-                    movieRelationMap.get(movie1).add(new MovieRelation(movie1, movie2, relation));
-                } else {
-                    List<MovieRelation> list = new ArrayList<>();
-                    list.add(new MovieRelation(movie1, movie2, relation));
-                    movieRelationMap.put(movie1, list);
-                }
-            }
+            relations = RelationList.read(br);
             br.close();
-
-            // initialize denominatorMap
-            for (Map.Entry<Integer, List<MovieRelation>> entry : movieRelationMap.entrySet()) {
-                int sum = 0;
-                for (MovieRelation relation : entry.getValue()) {
-                    sum += relation.getRelation();
-                }
-                denominatorMap.put(entry.getKey(), sum);
-            }
         }
 
 
@@ -103,24 +90,56 @@ public class MatricesMultiplication {
              *  Co-occurrence Matrix map's key is movie1
              *  so the output is user's rating on movie2!!!
              */
-            String[] tokens = value.toString().trim().split(",");
-            int user_id = Integer.parseInt(tokens[0]);
-            int movie_id = Integer.parseInt(tokens[1]);  // it is also the key of corresponding entry in HashMap
-            double rating = Double.parseDouble(tokens[2]);
-
-            for (MovieRelation relation : movieRelationMap.get(movie_id)) {
-                // Multiplication on each single entry of two matrices
-                double score = rating * relation.getRelation();
-                // Normalization
-                score /= denominatorMap.get(relation.getMovie2()); // denominator is sum on row, so should get movie2
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            int user_id = fields.intAt(0);
+            int movie_id = fields.intAt(1);  // it is also movie1 of the corresponding row
+            double rating = fields.doubleAt(2);
+
+            if (index != null) {
+                int row = index.rowOf(movie_id);
+                if (row < 0) {
+                    return;
+                }
+                context.getCounter(PipelineCounter.PARTIAL_PRODUCTS).increment(index.rowEnd(row) - index.rowStart(row));
+                for (int k = index.rowStart(row); k < index.rowEnd(row); k++) {
+                    // the weight is normalized when the index is written
+                    double score = rating * index.weightAt(k);
+                    write(user_id, index.movieOf(index.colAt(k)), score, context);
+                }
+                return;
+            }
+
+            int row = relations.rowOf(movie_id);
+            if (row < 0) {
+                return;
+            }
+            context.getCounter(PipelineCounter.PARTIAL_PRODUCTS)
+                    .increment(relations.rowEnd(row) - relations.rowStart(row));
+            for (int k = relations.rowStart(row); k < relations.rowEnd(row); k++) {
+                // Multiplication on each single entry of two matrices, the weight is already normalized
                 // confirm the precision for the score
                 // all do it in reduce
-//                DecimalFormat df = new DecimalFormat("#.00");
-//                score = Double.valueOf(df.format(score));
-
-                context.write(new Text(user_id + ":" + relation.getMovie2()), new DoubleWritable(score));
+                double score = rating * relations.weightAt(k);
+                write(user_id, relations.movie2At(k), score, context);
             }
         }
+
+        /**
+         * write user_id:movie2 \t score
+         */
+        private void write(int user_id, int movie2, double score, Context context)
+                throws IOException, InterruptedException {
+            outputKey.clear();
+            fields.appendInt(outputKey, user_id);
+            fields.appendChar(outputKey, ':');
+            fields.appendInt(outputKey, movie2);
+            outputValue.set(score);
+            context.write(outputKey, outputValue);
+        }
     }
 
     public static class MatricesMultiplicationReducer extends Reducer<Text, DoubleWritable, IntWritable, Text> {
@@ -151,9 +170,26 @@ public class MatricesMultiplication {
 
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * @param args co-occurrence matrix file, rating history, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
         conf.set("coOccurrencePath", args[0]); // args[0] src/main/version1/output/second_mapreduce/part-r-00000
 
         Job job = Job.getInstance(conf);
+        // -D coOccurrenceIndex=.../second_mapreduce/_cooccurrence.idx ships the index of CoocurrenceMatrixBuilder
+        // to the mappers instead of letting every mapper parse the whole matrix
+        if (conf.get("coOccurrenceIndex") != null) {
+            Path index = new Path(conf.get("coOccurrenceIndex"));
+            URI uri = index.getFileSystem(conf).makeQualified(index).toUri();
+            job.addCacheFile(new URI(uri + "#" + COOCCURRENCE_INDEX_LINK));
+        }
         job.setMapperClass(MatricesMultiplicationMapper.class);
         job.setReducerClass(MatricesMultiplicationReducer.class);
 
@@ -161,6 +197,7 @@ public class MatricesMultiplication {
 
         job.setInputFormatClass(TextInputFormat.class);
         job.setOutputFormatClass(TextOutputFormat.class);
+        Compression.compressOutput(job);
 
         // because the output key and value of Mapper and Reducer are different
         job.setMapOutputKeyClass(Text.class);
@@ -171,6 +208,6 @@ public class MatricesMultiplication {
         TextInputFormat.setInputPaths(job, new Path(args[1])); // user_rating_history.txt
         TextOutputFormat.setOutputPath(job, new Path(args[2])); // output dir
 
-        job.waitForCompletion(true);
+        return JobStats.waitForCompletion(job);
     }
 }
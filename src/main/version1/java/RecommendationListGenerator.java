@@ -1,23 +1,28 @@
 package main.version1.java;
 
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
+import main.common.java.TopKHeap;
+import main.common.java.WatchedIndex;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -31,10 +36,17 @@ public class RecommendationListGenerator {
      */
     public static class RecommendationListGeneratorMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
         /**
-         * key : user_id      value : watched movie list
-         * {user_id : {movie_1, movie3, ...}}
+         * watched movies of every user: {user_id : sorted {movie_1, movie3, ...}}
          */
-        Map<Integer, List<Integer>> watchHistoryMap = new HashMap<>();
+        WatchedIndex watchHistory;
+        Counter watchedHits;
+        Counter watchedMisses;
+
+        // reused for every line, the line is parsed on its bytes
+        TextFields line = new TextFields();
+        TextFields movieScore = new TextFields();
+        IntWritable outputKey = new IntWritable();
+        Text outputValue = new Text();
 
         /**
          * cache users and their watched movie in the memory
@@ -43,28 +55,13 @@ public class RecommendationListGenerator {
          */
         @Override
         public void setup(Context context) throws IOException {
+            watchedHits = context.getCounter(PipelineCounter.WATCHED_FILTER_HITS);
+            watchedMisses = context.getCounter(PipelineCounter.WATCHED_FILTER_MISSES);
             // read movie watching history
             Configuration conf = context.getConfiguration();
             String filePath = conf.get("watchHistory"); // Get the watched history file (user_rating_history.txt)
             // the path name is set in main()
-            Path path = new Path(filePath);
-            FileSystem fs = FileSystem.get(conf);
-            BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path))); // get the data from HDFS
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] tokens = line.trim().split(",");
-                int user_id = Integer.parseInt(tokens[0]);
-                int movie_id = Integer.parseInt(tokens[1]);
-
-                if (watchHistoryMap.containsKey(user_id)) {
-                    watchHistoryMap.get(user_id).add(movie_id);
-                } else {
-                    List<Integer> watchedMovieList = new ArrayList<>();
-                    watchedMovieList.add(movie_id);
-                    watchHistoryMap.put(user_id, watchedMovieList);
-                }
-            }
-            br.close();
+            watchHistory = WatchedIndex.load(conf, new Path(filePath));
         }
 
         /**
@@ -78,15 +75,21 @@ public class RecommendationListGenerator {
          */
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] tokens = value.toString().trim().split("\t");
-            int user_id = Integer.parseInt(tokens[0]);
-            int movie_id = Integer.parseInt(tokens[1].split(":")[0]);
-            double total_score = Double.parseDouble(tokens[1].split(":")[1]);
+            line.split(value, '\t');
+            int user_id = line.intAt(0);
+            movieScore.split(line.bytes(), line.start(1), line.end(1), ':');
+            int movie_id = movieScore.intAt(0);
             // filter out watched movies
-            if (watchHistoryMap.get(user_id).contains(movie_id)) {
+            if (watchHistory.contains(user_id, movie_id)) {
+                watchedHits.increment(1);
                 return;
             }
-            context.write(new IntWritable(user_id), new Text(movie_id + ":" + total_score));
+            watchedMisses.increment(1);
+            // movie_id:total_score is passed on as it is, the score was already formatted by the reducer
+            outputKey.set(user_id);
+            outputValue.clear();
+            line.appendTo(outputValue, 1);
+            context.write(outputKey, outputValue);
         }
     }
 
@@ -97,11 +100,20 @@ public class RecommendationListGenerator {
     public static class RecommendationListGeneratorReducer extends Reducer<IntWritable, Text, IntWritable, Text> {
         // Map<movie_id, movie_title>
         Map<Integer, String> movieTitleMap = new HashMap<>();
+        // top-K mode: K best movies of the user in reduce(), null if every movie is written
+        TopKHeap topK;
+        Counter missingTitles;
+
         @Override
         public void setup(Context context) throws IOException {
+            missingTitles = context.getCounter(PipelineCounter.MISSING_TITLES);
             // store data in SQL in practical job
             // read movie titles from the file
             Configuration conf = context.getConfiguration();
+            int k = conf.getInt("topK", 0);
+            if (k > 0) {
+                topK = new TopKHeap(k);
+            }
             String filePath = conf.get("movieTitles");
             Path path = new Path(filePath);
             FileSystem fs = FileSystem.get(conf);
@@ -123,6 +135,7 @@ public class RecommendationListGenerator {
          * @param key   user_id
          * @param values   movie_id : total_score
          * @param context  user_id \t movie_name : total_score
+         *                 in top-K mode only the K best movies, from the highest score to the lowest
          * @throws IOException
          * @throws InterruptedException
          */
@@ -133,14 +146,46 @@ public class RecommendationListGenerator {
                 String[] tokens = values.iterator().next().toString().split(":");
                 int movie_id = Integer.parseInt(tokens[0]);
                 double total_score = Double.parseDouble(tokens[1]);
-                String movie_title = movieTitleMap.get(movie_id);
-                context.write(key, new Text(movie_title + ":" + total_score));
+                if (topK != null) {
+                    topK.offer(movie_id, total_score);
+                    continue;
+                }
+                context.write(key, new Text(title(movie_id) + ":" + total_score));
+            }
+            if (topK != null) {
+                topK.sortDescending();
+                for (int rank = 0; rank < topK.size(); rank++) {
+                    context.write(key, new Text(title(topK.movieAt(rank)) + ":" + topK.scoreAt(rank)));
+                }
+                topK.clear();
             }
         }
+
+        /**
+         * @return title of the movie, null if movie_title.txt has none
+         */
+        private String title(int movie_id) {
+            String movie_title = movieTitleMap.get(movie_id);
+            if (movie_title == null) {
+                missingTitles.increment(1);
+            }
+            return movie_title;
+        }
     }
 
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        // -D topK=50 keeps only the 50 best movies of every user
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * @param args rating history, movie titles, input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
         conf.set("watchHistory", args[0]); // user_rating_history.txt
         conf.set("movieTitles", args[1]);  // movie_title.txt
 
@@ -161,6 +206,6 @@ public class RecommendationListGenerator {
         TextOutputFormat.setOutputPath(job, new Path(args[3])); // output of this MR job reducer
                                                                 // src/main/version1/output/recommendation_list
 
-        job.waitForCompletion(true);
+        return JobStats.waitForCompletion(job);
     }
 }
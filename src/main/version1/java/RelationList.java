@@ -0,0 +1,115 @@
+package main.version1.java;
+
+import main.common.java.IntIntMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Created by guoyifeng
+ */
+
+/**
+ * Co-occurrence Matrix held by MatricesMultiplicationMapper when there is no index file, in place of the
+ * Map<Integer, List<MovieRelation>> and the Map<Integer, Integer> of row sums it used to box every entry into.
+ * The relations are kept as a struct of arrays grouped by movie1:
+ *      rows       movie1 -> row, entries of row r are at start[r] .. start[r + 1] - 1
+ *      movie2     movie2 of every entry
+ *      weights    relation / sum of row movie2, the normalized relation computed once when the list is read
+ * so the mapper only does one lookup and one multiplication per entry.
+ */
+public class RelationList {
+    private final IntIntMap rows;
+    private final int[] start;
+    private final int[] movie2;
+    private final double[] weights;
+
+    private RelationList(IntIntMap rows, int[] start, int[] movie2, double[] weights) {
+        this.rows = rows;
+        this.start = start;
+        this.movie2 = movie2;
+        this.weights = weights;
+    }
+
+    /**
+     * @param br text output of CoocurrenceMatrixBuilder, lines of movie1:movie2 \t relation
+     */
+    public static RelationList read(BufferedReader br) throws IOException {
+        int size = 0;
+        int[] movie1 = new int[1024];
+        int[] movie2 = new int[1024];
+        int[] relation = new int[1024];
+        IntIntMap rows = new IntIntMap(1024);
+        IntIntMap rowSums = new IntIntMap(1024);
+        int rowCount = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] tokens = line.trim().split("\t");
+            if (tokens.length < 2) {
+                continue;
+            }
+            String[] pair = tokens[0].split(":");
+            if (size == movie1.length) {
+                movie1 = Arrays.copyOf(movie1, size * 2);
+                movie2 = Arrays.copyOf(movie2, size * 2);
+                relation = Arrays.copyOf(relation, size * 2);
+            }
+            movie1[size] = Integer.parseInt(pair[0]);
+            movie2[size] = Integer.parseInt(pair[1]);
+            relation[size] = Integer.parseInt(tokens[1]);
+            if (rows.get(movie1[size], -1) < 0) {
+                rows.put(movie1[size], rowCount++);
+            }
+            rowSums.add(movie1[size], relation[size]);
+            size++;
+        }
+
+        // counting sort of the entries by row
+        int[] rowOf = new int[size];
+        int[] start = new int[rowCount + 1];
+        for (int i = 0; i < size; i++) {
+            rowOf[i] = rows.get(movie1[i], -1);
+            start[rowOf[i] + 1]++;
+        }
+        for (int r = 0; r < rowCount; r++) {
+            start[r + 1] += start[r];
+        }
+        int[] next = Arrays.copyOf(start, rowCount);
+        int[] cols = new int[size];
+        double[] weights = new double[size];
+        for (int i = 0; i < size; i++) {
+            int k = next[rowOf[i]]++;
+            cols[k] = movie2[i];
+            // the denominator is the sum on the row of movie2, the matrix is symmetric so that row exists
+            weights[k] = (double) relation[i] / rowSums.get(movie2[i], 0);
+        }
+        return new RelationList(rows, start, cols, weights);
+    }
+
+    /**
+     * @return row of movie1, or a negative value if the movie is not in the matrix
+     */
+    public int rowOf(int movie) {
+        return rows.get(movie, -1);
+    }
+
+    public int rowStart(int row) {
+        return start[row];
+    }
+
+    public int rowEnd(int row) {
+        return start[row + 1];
+    }
+
+    public int movie2At(int k) {
+        return movie2[k];
+    }
+
+    /**
+     * @return normalized relation of entry k
+     */
+    public double weightAt(int k) {
+        return weights[k];
+    }
+}
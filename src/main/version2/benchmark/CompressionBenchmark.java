@@ -0,0 +1,223 @@
+package main.version2.benchmark;
+
+import main.common.java.Compression;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * CPU cost against I/O saving of every codec of Compression, per stage and on the real intermediate data:
+ * the output of every stage of a Driver run is written again with each codec the way -D compressIntermediate
+ * writes it, a block-compressed SequenceFile for version2 and a compressed text file for version1, and read
+ * back record by record the way the next stage reads it. Reported per (stage, codec):
+ *      bytes               size of the stage output, and ratio to the uncompressed size
+ *      write / read ms     wall time of writing and of reading back all records, one thread. Both include the
+ *                          reading of the original output and the (de)serialization, which is the same for
+ *                          every codec
+ *      extra ms            write ms + read ms over the ones of none, the CPU the codec costs
+ *      break-even MB/s     megabytes saved per second of extra CPU: compressing the stage pays off when the disk
+ *                          or network its data goes through is slower than this
+ * Every codec is run twice on a stage and the second round is reported, measured with JIT compiled code.
+ * A finished run keeps no map output, for the shuffle run PipelineBenchmark with -D codecs=...
+ *
+ * usage: CompressionBenchmark [-D codecs=deflate,lz4,...] output_dir
+ *        output_dir of a version1 or version2 Driver run without -D compressIntermediate,
+ *        by default all codecs, the ones not available in this JVM are listed as such, the profiles
+ *        fast and small of Compression work as well
+ */
+public class CompressionBenchmark {
+    // scratch directory in output_dir, skipped as a stage because of the "_"
+    private static final String SCRATCH = "_compression_benchmark";
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (remaining.length < 1) {
+            System.err.println("usage: CompressionBenchmark [-D codecs=deflate,lz4,...] output_dir");
+            System.exit(2);
+        }
+        Path output = new Path(remaining[0]);
+        FileSystem fs = output.getFileSystem(conf);
+        Path scratch = new Path(output, SCRATCH);
+        List<String> codecs = new ArrayList<>(conf.getTrimmedStringCollection("codecs"));
+        if (codecs.isEmpty()) {
+            codecs = Compression.codecNames();
+        }
+        // the baseline of the extra ms
+        codecs.remove(Compression.NONE);
+        codecs.add(0, Compression.NONE);
+
+        System.out.printf("%-32s %-8s %14s %7s %10s %10s %10s %16s%n",
+                "stage", "codec", "bytes", "ratio", "write ms", "read ms", "extra ms", "break-even MB/s");
+        FileStatus[] stages = fs.listStatus(output);
+        Arrays.sort(stages);
+        for (FileStatus stage : stages) {
+            List<Path> parts = parts(fs, stage);
+            if (parts.isEmpty()) {
+                continue;
+            }
+            String name = stage.getPath().getName();
+            long[] none = null;
+            for (String codec : codecs) {
+                Class<? extends CompressionCodec> codecClass;
+                try {
+                    codecClass = Compression.codec(conf, codec);
+                } catch (IllegalArgumentException e) {
+                    System.out.printf("%-32s %-8s %s%n", name, codec, e.getMessage());
+                    continue;
+                }
+                long[] result = null;
+                for (int round = 0; round < 2; round++) {
+                    fs.delete(scratch, true);
+                    result = measure(conf, fs, parts, scratch, codecClass);
+                }
+                if (none == null) {
+                    none = result;
+                }
+                print(name, codec, result, none);
+            }
+        }
+        fs.delete(scratch, true);
+    }
+
+    /**
+     * @return the files of a stage output which the next stage reads, without the index and checksum files
+     */
+    private static List<Path> parts(FileSystem fs, FileStatus stage) throws IOException {
+        List<Path> parts = new ArrayList<>();
+        String name = stage.getPath().getName();
+        if (!stage.isDirectory() || name.startsWith("_") || name.startsWith(".")) {
+            return parts;
+        }
+        for (FileStatus file : fs.listStatus(stage.getPath())) {
+            String fileName = file.getPath().getName();
+            if (file.isFile() && !fileName.startsWith("_") && !fileName.startsWith(".")) {
+                parts.add(file.getPath());
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * write all parts into dir with the codec and read them back
+     * @param codecClass null for none
+     * @return bytes written, write nanoseconds, read nanoseconds
+     */
+    private static long[] measure(Configuration conf, FileSystem fs, List<Path> parts, Path dir,
+                                  Class<? extends CompressionCodec> codecClass) throws IOException {
+        CompressionCodec codec = codecClass == null ? null : ReflectionUtils.newInstance(codecClass, conf);
+        long[] result = new long[3];
+        for (Path part : parts) {
+            boolean sequenceFile = isSequenceFile(fs, part);
+            // a compressed text file is recognized by its extension, like the ones of TextOutputFormat
+            Path copy = new Path(dir, part.getName() + (codec == null || sequenceFile ? ""
+                    : codec.getDefaultExtension()));
+            long start = System.nanoTime();
+            if (sequenceFile) {
+                writeSequenceFile(conf, part, copy, codec);
+            } else {
+                writeText(fs, part, copy, codec);
+            }
+            long written = System.nanoTime();
+            double checksum = sequenceFile ? readSequenceFile(conf, copy) : readText(conf, copy);
+            result[0] += fs.getFileStatus(copy).getLen();
+            result[1] += written - start;
+            result[2] += System.nanoTime() - written;
+            if (Double.isNaN(checksum)) {
+                throw new IllegalStateException(); // keep the read records alive
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSequenceFile(FileSystem fs, Path part) throws IOException {
+        byte[] magic = new byte[3];
+        try (InputStream in = fs.open(part)) {
+            return in.read(magic) == 3 && "SEQ".equals(new String(magic, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void writeSequenceFile(Configuration conf, Path part, Path copy, CompressionCodec codec)
+            throws IOException {
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part))) {
+            Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+            SequenceFile.Writer.Option compression = codec == null
+                    ? SequenceFile.Writer.compression(SequenceFile.CompressionType.NONE)
+                    : SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK, codec);
+            try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(copy),
+                    SequenceFile.Writer.keyClass(reader.getKeyClass()),
+                    SequenceFile.Writer.valueClass(reader.getValueClass()), compression)) {
+                while (reader.next(key, value)) {
+                    writer.append(key, value);
+                }
+            }
+        }
+    }
+
+    private static double readSequenceFile(Configuration conf, Path copy) throws IOException {
+        double checksum = 0;
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(copy))) {
+            Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            Writable value = (Writable) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+            while (reader.next(key, value)) {
+                checksum += key.hashCode() + value.hashCode();
+            }
+        }
+        return checksum;
+    }
+
+    private static void writeText(FileSystem fs, Path part, Path copy, CompressionCodec codec) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = fs.open(part);
+             OutputStream out = codec == null ? fs.create(copy) : codec.createOutputStream(fs.create(copy))) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static double readText(Configuration conf, Path copy) throws IOException {
+        double checksum = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(Compression.open(conf, copy),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                checksum += line.length();
+            }
+        }
+        return checksum;
+    }
+
+    private static void print(String stage, String codec, long[] result, long[] none) {
+        double writeMs = result[1] / 1e6;
+        double readMs = result[2] / 1e6;
+        double extraMs = writeMs + readMs - (none[1] + none[2]) / 1e6;
+        double savedMb = (none[0] - result[0]) / 1e6;
+        String breakEven = result == none ? "-" : savedMb <= 0 ? "never"
+                : extraMs <= 0 ? "always" : String.format("%.1f", savedMb / (extraMs / 1000));
+        System.out.printf("%-32s %-8s %14d %7.3f %10.1f %10.1f %10.1f %16s%n", stage, codec, result[0],
+                (double) result[0] / Math.max(none[0], 1), writeMs, readMs, result == none ? 0 : extraMs, breakEven);
+    }
+}
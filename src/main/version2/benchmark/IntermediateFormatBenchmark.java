@@ -0,0 +1,457 @@
+package main.version2.benchmark;
+
+import main.version2.java.MoviePair;
+import main.version2.java.MovieRating;
+import main.version2.java.RatingHistory;
+import main.version2.java.RelationOrRating;
+import main.version2.java.UserMoviePair;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Compare the old "id:rating" Text encoding of the intermediate records of the version2 pipeline
+ * with the binary Writables that replaced it.
+ * For every stage the same synthetic records are serialized the way the shuffle / SequenceFile would do it,
+ * then read back and parsed the way the downstream mapper or reducer does it.
+ * Reported per stage: serialized bytes (what goes through shuffle and HDFS) and wall time of the round trip.
+ *
+ * usage: IntermediateFormatBenchmark [users] [movies] [ratings_per_user] [seed]
+ */
+public class IntermediateFormatBenchmark {
+    private static int users = 2000;
+    private static int movies = 5000;
+    private static int ratingsPerUser = 50;
+
+    private static int[][] historyMovies;
+    private static float[][] historyRatings;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) users = Integer.parseInt(args[0]);
+        if (args.length > 1) movies = Integer.parseInt(args[1]);
+        if (args.length > 2) ratingsPerUser = Integer.parseInt(args[2]);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        generate(new Random(seed));
+
+        System.out.printf("%-28s %8s %14s %14s %10s %10s%n",
+                "stage", "format", "records", "bytes", "bytes/rec", "ms");
+        // warm up once so that the second round is measured with JIT compiled code
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run(print, "data_divider map out", new DividerMapText(), new DividerMapBinary());
+            run(print, "data_divider out", new DividerOutText(), new DividerOutBinary());
+            run(print, "cooccurrence map out", new PairText(), new PairBinary());
+            run(print, "normalization map out", new NormalizationText(), new NormalizationBinary());
+            run(print, "multiplication map out", new MultiplicationMapText(), new MultiplicationMapBinary());
+            run(print, "multiplication out", new PartialScoreText(), new PartialScoreBinary());
+        }
+    }
+
+    private static void generate(Random random) {
+        historyMovies = new int[users][];
+        historyRatings = new float[users][];
+        for (int u = 0; u < users; u++) {
+            int n = 1 + random.nextInt(2 * ratingsPerUser);
+            historyMovies[u] = new int[n];
+            historyRatings[u] = new float[n];
+            for (int i = 0; i < n; i++) {
+                historyMovies[u][i] = 10001 + random.nextInt(movies);
+                historyRatings[u][i] = (1 + random.nextInt(10)) / 2.0f;
+            }
+        }
+    }
+
+    private static void run(boolean print, String stage, Codec text, Codec binary) throws IOException {
+        measure(print, stage, "text", text);
+        measure(print, stage, "binary", binary);
+    }
+
+    private static void measure(boolean print, String stage, String format, Codec codec) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        DataInputBuffer in = new DataInputBuffer();
+        long start = System.nanoTime();
+        long records = codec.write(out);
+        in.reset(out.getData(), out.getLength());
+        double checksum = codec.read(in, records);
+        long ms = (System.nanoTime() - start) / 1000000;
+        if (print) {
+            System.out.printf("%-28s %8s %14d %14d %10.1f %10d%n",
+                    stage, format, records, out.getLength(), (double) out.getLength() / records, ms);
+        }
+        if (Double.isNaN(checksum)) {
+            throw new IllegalStateException(); // keep the parsed values alive
+        }
+    }
+
+    /**
+     * writes all records of one stage into the buffer, then reads and parses them back
+     */
+    private interface Codec {
+        long write(DataOutputBuffer out) throws IOException;
+
+        double read(DataInputBuffer in, long records) throws IOException;
+    }
+
+    private static class DividerMapText implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                for (int i = 0; i < historyMovies[u].length; i++) {
+                    new IntWritable(u).write(out);
+                    new Text(historyMovies[u][i] + ":" + historyRatings[u][i]).write(out);
+                    records++;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            IntWritable key = new IntWritable();
+            Text value = new Text();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                String[] tokens = value.toString().split(":");
+                sum += Integer.parseInt(tokens[0]) + Double.parseDouble(tokens[1]);
+            }
+            return sum;
+        }
+    }
+
+    private static class DividerMapBinary implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                for (int i = 0; i < historyMovies[u].length; i++) {
+                    new IntWritable(u).write(out);
+                    new MovieRating(historyMovies[u][i], historyRatings[u][i]).write(out);
+                    records++;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            IntWritable key = new IntWritable();
+            MovieRating value = new MovieRating();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                sum += value.getMovieId() + value.getRating();
+            }
+            return sum;
+        }
+    }
+
+    private static class DividerOutText implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            for (int u = 0; u < users; u++) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < historyMovies[u].length; i++) {
+                    sb.append(",").append(historyMovies[u][i]).append(":").append(historyRatings[u][i]);
+                }
+                new IntWritable(u).write(out);
+                new Text(sb.toString().replaceFirst(",", "")).write(out);
+            }
+            return users;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            IntWritable key = new IntWritable();
+            Text value = new Text();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                for (String movie_rating : value.toString().split(",")) {
+                    sum += Integer.parseInt(movie_rating.split(":")[0]);
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static class DividerOutBinary implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            RatingHistory history = new RatingHistory();
+            for (int u = 0; u < users; u++) {
+                history.clear();
+                for (int i = 0; i < historyMovies[u].length; i++) {
+                    history.add(historyMovies[u][i], historyRatings[u][i]);
+                }
+                new IntWritable(u).write(out);
+                history.write(out);
+            }
+            return users;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            IntWritable key = new IntWritable();
+            RatingHistory value = new RatingHistory();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                for (int i = 0; i < value.size(); i++) {
+                    sum += value.getMovieId(i);
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static class PairText implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            IntWritable one = new IntWritable(1);
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    for (int j = 0; j < m.length; j++) {
+                        new Text(m[i] + ":" + m[j]).write(out);
+                        one.write(out);
+                        records++;
+                    }
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            Text key = new Text();
+            IntWritable value = new IntWritable();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                String[] movies = key.toString().split(":");
+                sum += Integer.parseInt(movies[0]) + Integer.parseInt(movies[1]) + value.get();
+            }
+            return sum;
+        }
+    }
+
+    private static class PairBinary implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            IntWritable one = new IntWritable(1);
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    for (int j = 0; j < m.length; j++) {
+                        new MoviePair(m[i], m[j]).write(out);
+                        one.write(out);
+                        records++;
+                    }
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            MoviePair key = new MoviePair();
+            IntWritable value = new IntWritable();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                sum += key.getMovieA() + key.getMovieB() + value.get();
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * one record per user history entry pair stands in for one co-occurrence matrix entry
+     */
+    private static class NormalizationText implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    new Text(String.valueOf(m[i])).write(out);
+                    new Text(m[(i + 1) % m.length] + ":" + (u % 100 + 1)).write(out);
+                    records++;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            Text key = new Text();
+            Text value = new Text();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                String[] movie_relation = value.toString().trim().split(":");
+                sum += Integer.parseInt(key.toString()) + Integer.parseInt(movie_relation[1]);
+            }
+            return sum;
+        }
+    }
+
+    private static class NormalizationBinary implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    new IntWritable(m[i]).write(out);
+                    RelationOrRating.relation(m[(i + 1) % m.length], u % 100 + 1).write(out);
+                    records++;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            IntWritable key = new IntWritable();
+            RelationOrRating value = new RelationOrRating();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                sum += key.get() + (int) value.getValue();
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * half of the records are normalized relations, the other half user ratings
+     */
+    private static class MultiplicationMapText implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    new Text(String.valueOf(m[i])).write(out);
+                    new Text(m[(i + 1) % m.length] + "=" + 1.0 / (i + 3)).write(out);
+                    new Text(String.valueOf(m[i])).write(out);
+                    new Text(u + ":" + historyRatings[u][i]).write(out);
+                    records += 2;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            Text key = new Text();
+            Text value = new Text();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                if (value.toString().contains("=")) {
+                    String[] movie_relation = value.toString().trim().split("=");
+                    sum += Integer.parseInt(movie_relation[0]) + Double.parseDouble(movie_relation[1]);
+                } else {
+                    String[] user_rating = value.toString().trim().split(":");
+                    sum += Integer.parseInt(user_rating[0]) + Double.parseDouble(user_rating[1]);
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static class MultiplicationMapBinary implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            RelationOrRating value = new RelationOrRating();
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    new IntWritable(m[i]).write(out);
+                    value.setRelation(m[(i + 1) % m.length], 1.0 / (i + 3));
+                    value.write(out);
+                    new IntWritable(m[i]).write(out);
+                    value.setRating(u, historyRatings[u][i]);
+                    value.write(out);
+                    records += 2;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            IntWritable key = new IntWritable();
+            RelationOrRating value = new RelationOrRating();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                sum += value.getId() + value.getValue();
+            }
+            return sum;
+        }
+    }
+
+    private static class PartialScoreText implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    new Text(u + ":" + m[i]).write(out);
+                    new DoubleWritable(historyRatings[u][i] / (i + 3)).write(out);
+                    records++;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            Text key = new Text();
+            DoubleWritable value = new DoubleWritable();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                String[] tokens = key.toString().split(":");
+                sum += Integer.parseInt(tokens[0]) + Integer.parseInt(tokens[1]) + value.get();
+            }
+            return sum;
+        }
+    }
+
+    private static class PartialScoreBinary implements Codec {
+        public long write(DataOutputBuffer out) throws IOException {
+            long records = 0;
+            for (int u = 0; u < users; u++) {
+                int[] m = historyMovies[u];
+                for (int i = 0; i < m.length; i++) {
+                    new UserMoviePair(u, m[i]).write(out);
+                    new DoubleWritable(historyRatings[u][i] / (i + 3)).write(out);
+                    records++;
+                }
+            }
+            return records;
+        }
+
+        public double read(DataInputBuffer in, long records) throws IOException {
+            double sum = 0;
+            UserMoviePair key = new UserMoviePair();
+            DoubleWritable value = new DoubleWritable();
+            for (long r = 0; r < records; r++) {
+                key.readFields(in);
+                value.readFields(in);
+                sum += key.getUserId() + key.getMovieId() + value.get();
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package main.version2.benchmark;
+
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.FileSystemCounter;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Run the whole version1 and version2 Drivers in Hadoop local mode (LocalJobRunner, local file system) on
+ * rating histories of growing size written by RatingGenerator, and report every stage from the counters of
+ * its jobs, see JobStats:
+ *      wall ms                 from submitting the job to its completion
+ *      map in / out            MAP_INPUT_RECORDS, MAP_OUTPUT_RECORDS, MAP_OUTPUT_BYTES
+ *      reduce in / out         REDUCE_INPUT_GROUPS, REDUCE_INPUT_RECORDS, REDUCE_OUTPUT_RECORDS
+ *      shuffle / spill         MAP_OUTPUT_MATERIALIZED_BYTES (the map output as written, compressed or not),
+ *                              REDUCE_SHUFFLE_BYTES, SPILLED_RECORDS
+ *      file bytes              FILE_BYTES_READ, FILE_BYTES_WRITTEN; in local mode every input, spill, shuffle
+ *                              and output is on the local file system
+ *      gc / cpu ms             GC_TIME_MILLIS, CPU_MILLISECONDS; all tasks share this JVM in local mode, so the
+ *                              GC time of a job is the GC time of the JVM while it ran
+ * A stage with several jobs reports their sum. Each size is a directory under output_dir with the generated
+ * raw_data and the output of both Drivers per codec, all stages are run (forceStages=all).
+ * The report is rewritten after every Driver as output_dir/pipeline_benchmark.csv and .json, one row per
+ * (size, version, codec, stage), so sizes, versions and codecs can be compared and a partial run is not lost.
+ *
+ * The generic options are passed on to both Drivers, e.g. -D cooccurrenceMode=stripes, and read here:
+ *      -D versions=v1,v2           Drivers to run
+ *      -D skew=1.0 -D seed=42      Zipf exponent of movie popularity and seed of RatingGenerator
+ *      -D codecs=none,lz4,...      each Driver is run once per codec, set as both compressMapOutput and
+ *                                  compressIntermediate, see Compression; default the compressIntermediate
+ *                                  option or none. The wall and cpu ms against the bytes of a stage give what
+ *                                  the codec costs and saves on it
+ *
+ * usage: PipelineBenchmark [-D ...] output_dir [users:movies:ratings_per_user ...]
+ *        default sizes 2000:1000:20 4000:1000:20 8000:1000:20
+ */
+public class PipelineBenchmark {
+    private static final String[] DEFAULT_SIZES = {"2000:1000:20", "4000:1000:20", "8000:1000:20"};
+    private static final String[] COLUMNS = {"users", "movies", "ratings_per_user", "ratings", "version", "codec",
+            "stage", "jobs", "succeeded", "wall_ms", "map_input_records", "map_output_records", "map_output_bytes",
+            "map_output_materialized_bytes", "reduce_input_groups", "reduce_input_records", "reduce_output_records",
+            "shuffle_bytes", "spilled_records", "gc_ms", "cpu_ms", "file_bytes_read", "file_bytes_written"};
+    private static final TaskCounter[] COUNTERS = {TaskCounter.MAP_INPUT_RECORDS, TaskCounter.MAP_OUTPUT_RECORDS,
+            TaskCounter.MAP_OUTPUT_BYTES, TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES, TaskCounter.REDUCE_INPUT_GROUPS,
+            TaskCounter.REDUCE_INPUT_RECORDS, TaskCounter.REDUCE_OUTPUT_RECORDS, TaskCounter.REDUCE_SHUFFLE_BYTES,
+            TaskCounter.SPILLED_RECORDS, TaskCounter.GC_TIME_MILLIS, TaskCounter.CPU_MILLISECONDS};
+    private static final FileSystemCounter[] FILE_COUNTERS = {FileSystemCounter.BYTES_READ,
+            FileSystemCounter.BYTES_WRITTEN};
+    // position of the stage name in a row, the columns before it are the dataset
+    private static final int STAGE = 6;
+
+    // one row per stage, the values in the order of COLUMNS
+    private static final List<Object[]> rows = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (remaining.length < 1) {
+            System.err.println("usage: PipelineBenchmark [-D ...] output_dir [users:movies:ratings_per_user ...]");
+            System.exit(2);
+        }
+        // the generic options come first, GenericOptionsParser leaves the rest
+        String[] options = Arrays.copyOf(args, args.length - remaining.length);
+        File output = new File(remaining[0]);
+        String[] sizes = remaining.length > 1 ? Arrays.copyOfRange(remaining, 1, remaining.length) : DEFAULT_SIZES;
+        List<String> versions = new ArrayList<>(conf.getTrimmedStringCollection("versions"));
+        if (versions.isEmpty()) {
+            versions = Arrays.asList("v1", "v2");
+        }
+        List<String> codecs = new ArrayList<>(conf.getTrimmedStringCollection("codecs"));
+        if (codecs.isEmpty()) {
+            codecs.add(conf.get(Compression.INTERMEDIATE, Compression.NONE));
+        }
+        double skew = conf.getDouble("skew", 1.0);
+        long seed = conf.getLong("seed", 42L);
+
+        for (String size : sizes) {
+            String[] dims = size.split(":");
+            int users = Integer.parseInt(dims[0]);
+            int movies = Integer.parseInt(dims[1]);
+            int ratingsPerUser = Integer.parseInt(dims[2]);
+            File dir = new File(output, users + "_" + movies + "_" + ratingsPerUser);
+            File rawData = new File(dir, "raw_data");
+            if (!rawData.isDirectory() && !rawData.mkdirs()) {
+                throw new IOException("cannot create " + rawData);
+            }
+            File ratings = new File(rawData, RatingGenerator.RATINGS_FILE);
+            File titles = new File(rawData, RatingGenerator.TITLES_FILE);
+            RatingGenerator generator = new RatingGenerator(users, movies, ratingsPerUser, skew, seed);
+            long lines = generator.writeRatings(ratings);
+            generator.writeTitles(titles);
+            System.out.printf("%d users, %d movies, %d ratings in %s%n", users, movies, lines, rawData);
+
+            for (String version : versions) {
+                for (String codec : codecs) {
+                    String[] driverArgs = Arrays.copyOf(options, options.length + 9);
+                    driverArgs[options.length] = "-D";
+                    driverArgs[options.length + 1] = "forceStages=all";
+                    driverArgs[options.length + 2] = "-D";
+                    driverArgs[options.length + 3] = Compression.MAP_OUTPUT + "=" + codec;
+                    driverArgs[options.length + 4] = "-D";
+                    driverArgs[options.length + 5] = Compression.INTERMEDIATE + "=" + codec;
+                    driverArgs[options.length + 6] = ratings.getPath();
+                    driverArgs[options.length + 7] = titles.getPath();
+                    driverArgs[options.length + 8] = new File(dir, version + "_" + codec).getPath();
+                    Object[] dataset = {users, movies, ratingsPerUser, lines, version, codec};
+                    JobStats.drain();
+                    if ("v1".equals(version)) {
+                        main.version1.java.Driver.main(driverArgs);
+                    } else if ("v2".equals(version)) {
+                        main.version2.java.Driver.main(driverArgs);
+                    } else {
+                        throw new IllegalArgumentException("unknown version " + version);
+                    }
+                    for (JobStats job : JobStats.drain()) {
+                        add(dataset, job.getName(), job.isSucceeded(), job.getWallMillis(), job.getCounters());
+                    }
+                    write(output);
+                }
+            }
+        }
+        print();
+    }
+
+    /**
+     * add the job to the row of its stage, the jobs of a stage are named after it by StageRunner
+     */
+    private static void add(Object[] dataset, String name, boolean succeeded, long wallMillis,
+                            Counters counters) {
+        Object[] row = null;
+        for (Object[] existing : rows) {
+            if (Arrays.equals(Arrays.copyOf(existing, STAGE), dataset) && name.equals(existing[STAGE])) {
+                row = existing;
+            }
+        }
+        if (row == null) {
+            row = Arrays.copyOf(dataset, COLUMNS.length);
+            row[STAGE] = name;
+            row[STAGE + 1] = 0;
+            row[STAGE + 2] = true;
+            for (int i = STAGE + 3; i < COLUMNS.length; i++) {
+                row[i] = 0L;
+            }
+            rows.add(row);
+        }
+        row[STAGE + 1] = (Integer) row[STAGE + 1] + 1;
+        row[STAGE + 2] = (Boolean) row[STAGE + 2] && succeeded;
+        row[STAGE + 3] = (Long) row[STAGE + 3] + wallMillis;
+        int column = STAGE + 4;
+        for (TaskCounter counter : COUNTERS) {
+            row[column] = (Long) row[column] + counters.findCounter(counter).getValue();
+            column++;
+        }
+        for (FileSystemCounter counter : FILE_COUNTERS) {
+            row[column] = (Long) row[column] + counters.findCounter("file", counter).getValue();
+            column++;
+        }
+    }
+
+    private static void write(File output) throws IOException {
+        try (PrintWriter csv = new PrintWriter(new File(output, "pipeline_benchmark.csv"),
+                StandardCharsets.UTF_8.name())) {
+            csv.println(String.join(",", COLUMNS));
+            for (Object[] row : rows) {
+                StringBuilder line = new StringBuilder();
+                for (Object value : row) {
+                    line.append(line.length() > 0 ? "," : "").append(value);
+                }
+                csv.println(line);
+            }
+        }
+        try (PrintWriter json = new PrintWriter(new File(output, "pipeline_benchmark.json"),
+                StandardCharsets.UTF_8.name())) {
+            json.println("[");
+            for (int r = 0; r < rows.size(); r++) {
+                StringBuilder line = new StringBuilder("  {");
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    Object value = rows.get(r)[i];
+                    line.append(i > 0 ? ", " : "").append('"').append(COLUMNS[i]).append("\": ");
+                    // stage, version and codec names are letters, digits, _ and . only
+                    line.append(value instanceof String ? "\"" + value + "\"" : value);
+                }
+                json.println(line.append(r < rows.size() - 1 ? "}," : "}"));
+            }
+            json.println("]");
+        }
+    }
+
+    private static void print() {
+        System.out.printf("%n%-22s %-3s %-8s %-32s %9s %12s %14s %14s %14s %9s%n", "size", "ver", "codec", "stage",
+                "wall ms", "map out", "map out bytes", "shuffle bytes", "file written", "cpu ms");
+        for (Object[] row : rows) {
+            System.out.printf("%-22s %-3s %-8s %-32s %9d %12d %14d %14d %14d %9d%n",
+                    row[0] + ":" + row[1] + ":" + row[2], row[4], row[5], row[STAGE], row[9], row[11], row[13],
+                    row[17], row[22], row[20]);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package main.version2.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SplittableRandom;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Synthetic input of the pipeline at any size: user_rating_history.txt with lines of user_id,movie_id,rating
+ * and movie_title.txt with lines of movie_id,title, the files of raw_data.
+ *      movies          movie_id 10001 .. 10000 + movies, popularity Zipf distributed with exponent skew over a
+ *                      shuffled rank, so the popular movies are spread over the ids (skew 0 is uniform)
+ *      users           user_id 1 .. users, history length Pareto distributed with shape tail and mean
+ *                      ratings_per_user, at least 1 and at most max_ratings, the movies of a user are distinct
+ *      ratings         0.5 .. 5.0 in steps of 0.5, around a mean rating per movie, so movies have a quality
+ *                      the co-occurrence can find and the ratings are not noise
+ * The co-occurrence of a user grows with the square of the history length, so the heavy users and the popular
+ * movies make the big and skewed reducers of a real rating history.
+ *
+ * The output is the same for the same arguments and seed on every machine (SplittableRandom, no floating point
+ * formatting). Users are generated one after the other and the lines formatted as bytes into one direct buffer
+ * which is written by a FileChannel, so the memory does not grow with the number of users; the tables are
+ * O(movies): about 25 bytes per movie.
+ *
+ * usage: RatingGenerator output_dir [users] [movies] [ratings_per_user] [skew] [seed] [tail] [max_ratings]
+ */
+public class RatingGenerator {
+    public static final String RATINGS_FILE = "user_rating_history.txt";
+    public static final String TITLES_FILE = "movie_title.txt";
+    public static final int FIRST_MOVIE_ID = 10001;
+    private static final int BUFFER_SIZE = 1 << 20;
+    // longest line: 10 digits user_id, 10 digits movie_id, 3 characters rating, 2 commas and \n
+    private static final int MAX_LINE = 26;
+
+    private final int users;
+    private final int movies;
+    private final double ratingsPerUser;
+    private final double tail;
+    private final int maxRatings;
+    private final SplittableRandom random;
+
+    // popularity rank -> movie_id
+    private final int[] movieOfRank;
+    // Zipf over the ranks as alias table: rank r is drawn with probability (aliasProbability[r] + sum of
+    // (1 - aliasProbability[s]) where alias[s] == r) / movies
+    private final double[] aliasProbability;
+    private final int[] alias;
+    // mean rating of movie rank r, in half stars
+    private final byte[] meanRating;
+    // the user who rated rank r last, so the distinct movies of a user need no set which is cleared per user
+    private final int[] ratedBy;
+    private final int[] history;
+    private int user;
+
+    public RatingGenerator(int users, int movies, double ratingsPerUser, double skew, long seed) {
+        this(users, movies, ratingsPerUser, skew, seed, 2.0, movies / 2);
+    }
+
+    /**
+     * @param tail shape of the Pareto distribution of the history length, greater than 1, smaller is heavier
+     * @param maxRatings most ratings of one user
+     */
+    public RatingGenerator(int users, int movies, double ratingsPerUser, double skew, long seed,
+                           double tail, int maxRatings) {
+        if (users < 1 || movies < 1 || ratingsPerUser <= 0 || skew < 0 || tail <= 1) {
+            throw new IllegalArgumentException("need users >= 1, movies >= 1, ratings_per_user > 0, skew >= 0, "
+                    + "tail > 1");
+        }
+        this.users = users;
+        this.movies = movies;
+        this.ratingsPerUser = ratingsPerUser;
+        this.tail = tail;
+        this.maxRatings = Math.max(1, Math.min(maxRatings, movies));
+        this.random = new SplittableRandom(seed);
+
+        movieOfRank = new int[movies];
+        for (int r = 0; r < movies; r++) {
+            movieOfRank[r] = FIRST_MOVIE_ID + r;
+        }
+        for (int r = movies - 1; r > 0; r--) {
+            int other = random.nextInt(r + 1);
+            int swap = movieOfRank[r];
+            movieOfRank[r] = movieOfRank[other];
+            movieOfRank[other] = swap;
+        }
+        aliasProbability = new double[movies];
+        alias = new int[movies];
+        buildAliasTable(skew);
+        meanRating = new byte[movies];
+        for (int r = 0; r < movies; r++) {
+            // about normal with mean 7 and deviation 1.2 half stars, i.e. 3.5 +- 0.6 stars
+            meanRating[r] = (byte) Math.max(2, Math.min(10, Math.round(7 + 1.2 * gaussian())));
+        }
+        ratedBy = new int[movies];
+        history = new int[this.maxRatings];
+    }
+
+    /**
+     * Vose's alias method: a Zipf rank in O(1) by one uniform int and one uniform double, for any movies
+     */
+    private void buildAliasTable(double skew) {
+        double sum = 0;
+        for (int r = 0; r < movies; r++) {
+            aliasProbability[r] = 1 / Math.pow(r + 1, skew);
+            sum += aliasProbability[r];
+        }
+        // ranks with a scaled probability below 1 are filled up by one with a probability above 1
+        int[] small = new int[movies];
+        int[] large = new int[movies];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int r = movies - 1; r >= 0; r--) {
+            aliasProbability[r] *= movies / sum;
+            if (aliasProbability[r] < 1) {
+                small[smallCount++] = r;
+            } else {
+                large[largeCount++] = r;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[largeCount - 1];
+            alias[less] = more;
+            aliasProbability[more] -= 1 - aliasProbability[less];
+            if (aliasProbability[more] < 1) {
+                largeCount--;
+                small[smallCount++] = more;
+            }
+        }
+        // what is left is 1 up to rounding
+        while (largeCount > 0) {
+            aliasProbability[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            aliasProbability[small[--smallCount]] = 1;
+        }
+    }
+
+    private int zipfRank() {
+        int r = random.nextInt(movies);
+        return random.nextDouble() < aliasProbability[r] ? r : alias[r];
+    }
+
+    /**
+     * sum of 4 uniforms scaled to deviation 1, close enough to normal and the same on every JVM
+     */
+    private double gaussian() {
+        return (random.nextDouble() + random.nextDouble() + random.nextDouble() + random.nextDouble() - 2)
+                * Math.sqrt(3);
+    }
+
+    /**
+     * @return Pareto distributed history length with mean ratingsPerUser, in 1 .. maxRatings
+     */
+    private int historyLength() {
+        double scale = ratingsPerUser * (tail - 1) / tail;
+        double length = scale / Math.pow(1 - random.nextDouble(), 1 / tail);
+        return (int) Math.min(Math.max(1, Math.round(length)), maxRatings);
+    }
+
+    /**
+     * draw the distinct movies of the next user into history
+     * @return number of movies, 0 when every user is done
+     */
+    private int nextUser() {
+        if (user == users) {
+            return 0;
+        }
+        user++;
+        int target = historyLength();
+        int size = 0;
+        // by popularity while most draws are new, a heavy user on a skewed catalog would draw the few popular
+        // movies over and over for the last of its history, so the rest is taken uniformly from the unrated
+        long attempts = 4L * target + 64;
+        while (size < target && attempts-- > 0) {
+            size = rate(zipfRank(), size);
+        }
+        while (size < target) {
+            size = rate(random.nextInt(movies), size);
+        }
+        return size;
+    }
+
+    private int rate(int rank, int size) {
+        if (ratedBy[rank] != user) {
+            ratedBy[rank] = user;
+            history[size++] = rank;
+        }
+        return size;
+    }
+
+    /**
+     * @return rating in half stars 1 .. 10 of the movie at rank by the current user
+     */
+    private int halfStars(int rank) {
+        return (int) Math.max(1, Math.min(10, Math.round(meanRating[rank] + 2 * gaussian())));
+    }
+
+    /**
+     * write every user into the rating history
+     * @return number of lines
+     */
+    public long writeRatings(File file) throws IOException {
+        long lines = 0;
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            int size;
+            while ((size = nextUser()) > 0) {
+                for (int i = 0; i < size; i++) {
+                    if (buffer.remaining() < MAX_LINE) {
+                        flush(channel, buffer);
+                    }
+                    int halfStars = halfStars(history[i]);
+                    putInt(buffer, user);
+                    buffer.put((byte) ',');
+                    putInt(buffer, movieOfRank[history[i]]);
+                    buffer.put((byte) ',');
+                    buffer.put((byte) ('0' + halfStars / 2));
+                    buffer.put((byte) '.');
+                    buffer.put((byte) (halfStars % 2 == 0 ? '0' : '5'));
+                    buffer.put((byte) '\n');
+                }
+                lines += size;
+            }
+            flush(channel, buffer);
+        }
+        return lines;
+    }
+
+    /**
+     * write movie_id,Movie movie_id for every movie, the titles matching the rating history
+     */
+    public void writeTitles(File file) throws IOException {
+        byte[] title = "Movie ".getBytes("UTF-8");
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (int movie = FIRST_MOVIE_ID; movie < FIRST_MOVIE_ID + movies; movie++) {
+                if (buffer.remaining() < 2 * MAX_LINE) {
+                    flush(channel, buffer);
+                }
+                putInt(buffer, movie);
+                buffer.put((byte) ',');
+                buffer.put(title);
+                putInt(buffer, movie);
+                buffer.put((byte) '\n');
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * @return movie_id of the n-th most popular movie
+     */
+    public int movieAt(int rank) {
+        return movieOfRank[rank];
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * decimal digits of a non negative int, without a String
+     */
+    private static void putInt(ByteBuffer buffer, int value) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: RatingGenerator output_dir [users] [movies] [ratings_per_user] [skew] "
+                    + "[seed] [tail] [max_ratings]");
+            System.exit(2);
+        }
+        File dir = new File(args[0]);
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int movies = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        double ratingsPerUser = args.length > 3 ? Double.parseDouble(args[3]) : 50;
+        double skew = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42L;
+        double tail = args.length > 6 ? Double.parseDouble(args[6]) : 2.0;
+        int maxRatings = args.length > 7 ? Integer.parseInt(args[7]) : movies / 2;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+
+        long start = System.nanoTime();
+        RatingGenerator generator = new RatingGenerator(users, movies, ratingsPerUser, skew, seed, tail, maxRatings);
+        File ratings = new File(dir, RATINGS_FILE);
+        long lines = generator.writeRatings(ratings);
+        generator.writeTitles(new File(dir, TITLES_FILE));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d users, %d movies, %d ratings, %.1f MB in %.1f s (%.1f M lines/s), "
+                        + "most popular movies %d %d %d%n", users, movies, lines, ratings.length() / 1e6, seconds,
+                lines / seconds / 1e6, generator.movieAt(0), generator.movieAt(Math.min(1, movies - 1)),
+                generator.movieAt(Math.min(2, movies - 1)));
+    }
+}
@@ -0,0 +1,107 @@
+package main.version2.benchmark;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Correctness check of -D cooccurrenceMode=triangular: run the version2 Driver in Hadoop local mode on the same
+ * rating history written by RatingGenerator once with the full matrix (pairs mode) and once with the upper
+ * triangle only, and compare the recommendation lists line by line. Both must be identical, the scores included:
+ * Normalization mirrors the triangle into the same entries and the partial scores of a movie are summed in fixed
+ * point (see FixedPointScore), so the rounding of the total score does not depend on the mode. The same holds
+ * for every -D multiplicationMode, whose lists are identical as well.
+ * Prints the first differing lines and exits with 1 if the outputs differ.
+ *
+ * The generic options are passed on to both Drivers, e.g. -D topK=10 or -D multiplicationMode=blocked, and
+ * -D skew=1.0 -D seed=42 are read here for RatingGenerator.
+ *
+ * usage: TriangularModeCheck [-D ...] output_dir [users:movies:ratings_per_user]
+ *        default size 300:200:20
+ */
+public class TriangularModeCheck {
+    private static final String DEFAULT_SIZE = "300:200:20";
+    // differing lines printed
+    private static final int SHOWN = 10;
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (remaining.length < 1) {
+            System.err.println("usage: TriangularModeCheck [-D ...] output_dir [users:movies:ratings_per_user]");
+            System.exit(2);
+        }
+        // the generic options come first, GenericOptionsParser leaves the rest
+        String[] options = Arrays.copyOf(args, args.length - remaining.length);
+        File output = new File(remaining[0]);
+        String[] dims = (remaining.length > 1 ? remaining[1] : DEFAULT_SIZE).split(":");
+        File rawData = new File(output, "raw_data");
+        if (!rawData.isDirectory() && !rawData.mkdirs()) {
+            throw new IOException("cannot create " + rawData);
+        }
+        File ratings = new File(rawData, RatingGenerator.RATINGS_FILE);
+        File titles = new File(rawData, RatingGenerator.TITLES_FILE);
+        RatingGenerator generator = new RatingGenerator(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]),
+                Integer.parseInt(dims[2]), conf.getDouble("skew", 1.0), conf.getLong("seed", 42L));
+        long lines = generator.writeRatings(ratings);
+        generator.writeTitles(titles);
+        System.out.printf("%s users, %s movies, %d ratings in %s%n", dims[0], dims[1], lines, rawData);
+
+        List<String> full = run(options, "pairs", ratings, titles, new File(output, "pairs"));
+        List<String> triangular = run(options, "triangular", ratings, titles, new File(output, "triangular"));
+        int differences = 0;
+        for (int i = 0; i < Math.max(full.size(), triangular.size()); i++) {
+            String expected = i < full.size() ? full.get(i) : "";
+            String actual = i < triangular.size() ? triangular.get(i) : "";
+            if (!expected.equals(actual)) {
+                if (differences++ < SHOWN) {
+                    System.out.printf("pairs:      %s%ntriangular: %s%n", expected, actual);
+                }
+            }
+        }
+        System.out.printf("%d lines, %d lines of the triangular mode differ%n", full.size(), differences);
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run the Driver in the cooccurrence mode
+     * @return the lines of the recommendation list, sorted
+     */
+    private static List<String> run(String[] options, String mode, File ratings, File titles, File dir)
+            throws Exception {
+        String[] driverArgs = Arrays.copyOf(options, options.length + 7);
+        driverArgs[options.length] = "-D";
+        driverArgs[options.length + 1] = "forceStages=all";
+        driverArgs[options.length + 2] = "-D";
+        driverArgs[options.length + 3] = "cooccurrenceMode=" + mode;
+        driverArgs[options.length + 4] = ratings.getPath();
+        driverArgs[options.length + 5] = titles.getPath();
+        driverArgs[options.length + 6] = dir.getPath();
+        main.version2.java.Driver.main(driverArgs);
+
+        List<String> lines = new ArrayList<>();
+        File[] parts = new File(dir, "recommendation_list").listFiles((d, name) -> name.startsWith("part-"));
+        if (parts == null || parts.length == 0) {
+            throw new IOException("no recommendation list in " + dir);
+        }
+        for (File part : parts) {
+            lines.addAll(Files.readAllLines(part.toPath(), StandardCharsets.UTF_8));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+}
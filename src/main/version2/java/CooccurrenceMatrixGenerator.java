@@ -1,64 +1,196 @@
 package main.version2.java;
 
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.LogHistogram;
+import main.common.java.PipelineCounter;
+import main.common.java.TaskHistograms;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * @author yifengguo
  */
 public class CooccurrenceMatrixGenerator {
-    public static class CooccurrenceMatrixGeneratorMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+    /**
+     * written into the output directory in triangular mode, Normalization looks for it to know that only
+     * the upper triangle movieA <= movieB is stored. FileInputFormat skips files starting with "_".
+     */
+    public static final String UPPER_TRIANGLE_MARKER = "_UPPER_TRIANGLE";
+
+    /**
+     * counters of the in-mapper combining mode, compare them with the built-in
+     * MAP_OUTPUT_RECORDS / COMBINE_INPUT_RECORDS / SPILLED_RECORDS / REDUCE_SHUFFLE_BYTES
+     */
+    public enum InMapperCombiningCounter {
+        PAIRS_COUNTED,  // pairs the plain mapper would have written
+        FLUSHES         // times the pair count map was written out and cleared
+    }
+
+    /**
+     * counters of -D maxHistoryLength, which caps the n * n pairs of a power user
+     */
+    public enum SkewCounter {
+        HISTORIES_CAPPED,  // histories longer than maxHistoryLength
+        RATINGS_DROPPED    // ratings left out of those histories
+    }
+
+    public static class CooccurrenceMatrixGeneratorMapper
+            extends Mapper<IntWritable, RatingHistory, MoviePair, IntWritable> {
         static final IntWritable one = new IntWritable(1);
+
+        /**
+         * in-mapper combining: pairs of all users handled by this task are counted in memory
+         * and only written in flush(), so every distinct pair is written once per flush instead of once per user
+         */
+        boolean inMapperCombining;
+        /**
+         * the matrix is symmetric, so in triangular mode only pairs with movieA <= movieB are written
+         */
+        boolean upperTriangle;
+        PairCountMap pairCounts;
+        // reused for every pair written, the framework serializes it in write()
+        MoviePair pair = new MoviePair();
+        int maxPairs;
+        int maxHistoryLength;
+        RatingHistory sample = new RatingHistory();
+        // -D taskHistograms=true, null otherwise
+        LogHistogram pairsPerUser;
+
+        @Override
+        public void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            maxHistoryLength = conf.getInt("maxHistoryLength", 0);
+            if (TaskHistograms.isEnabled(conf)) {
+                pairsPerUser = new LogHistogram();
+            }
+            inMapperCombining = conf.getBoolean("inMapperCombining", false);
+            upperTriangle = isTriangularMode(conf);
+            if (inMapperCombining) {
+                // flush when the map holds this many distinct pairs, which bounds its memory; the heap usage
+                // of the task would count garbage not collected yet and flush at random points
+                maxPairs = conf.getInt("inMapperCombiningMaxPairs", 1 << 20);
+                pairCounts = new PairCountMap(Math.min(maxPairs, 1 << 16));
+            }
+        }
+
         /**
          *
-         * @param key    line index which is LongWritable
-         * @param value  each row of result of first MapReduce Job eg:1	10001:5.0,10002:3.0,10003:2.5
+         * @param key    user_id
+         * @param value  each row of result of first MapReduce Job eg: 1 -> {10001:5.0,10002:3.0,10003:2.5}
          * @param context
          * @throws InterruptedException
          * @throws IOException
          */
         @Override
-        public void map(LongWritable key, Text value, Context context) throws InterruptedException, IOException {
-            // get the 10001:5.0,10002:3.0,10003:2.5 part from input text
-            String[] tokens = value.toString().trim().split("\t");
-
-            // retrieve the movie id
-            String[] movies = new String[tokens[1].split(",").length];
-            /*
-             * construct movie_id array {1, 2, 3, 4...}
-             */
-            for (int i = 0; i < movies.length; i++) {
-                movies[i] = tokens[1].split(",")[i].split(":")[0];
+        public void map(IntWritable key, RatingHistory value, Context context)
+                throws InterruptedException, IOException {
+            value = capHistory(key.get(), value, maxHistoryLength, sample, context);
+            long n = value.size();
+            countPairs(upperTriangle ? n * (n + 1) / 2 : n * n, pairsPerUser, context);
+            if (inMapperCombining) {
+                combine(value, context);
+                return;
             }
-
             /*
              * for for loop to traverse all combinations between all movies
              * output: 1:1   1
              *         1:2   1
              *         2:1   1
              *         2:2   1
+             * in triangular mode 2:1 is left out, the history is not sorted so the smaller movie goes first
              */
-            for (int i = 0; i < movies.length; i++) {
-                for (int j = 0; j < movies.length; j++) {
-                    context.write(new Text(movies[i] + ":" + movies[j]), one);
+            if (upperTriangle) {
+                for (int i = 0; i < value.size(); i++) {
+                    for (int j = i; j < value.size(); j++) {
+                        int movieI = value.getMovieId(i);
+                        int movieJ = value.getMovieId(j);
+                        pair.set(Math.min(movieI, movieJ), Math.max(movieI, movieJ));
+                        context.write(pair, one);
+                    }
+                }
+                return;
+            }
+            for (int i = 0; i < value.size(); i++) {
+                for (int j = 0; j < value.size(); j++) {
+                    pair.set(value.getMovieId(i), value.getMovieId(j));
+                    context.write(pair, one);
                 }
             }
         }
+
+        private void combine(RatingHistory value, Context context) throws InterruptedException, IOException {
+            long pairs = 0;
+            for (int i = 0; i < value.size(); i++) {
+                for (int j = upperTriangle ? i : 0; j < value.size(); j++) {
+                    int movieI = value.getMovieId(i);
+                    int movieJ = value.getMovieId(j);
+                    if (upperTriangle && movieI > movieJ) {
+                        pairCounts.add(movieJ, movieI, 1);
+                    } else {
+                        pairCounts.add(movieI, movieJ, 1);
+                    }
+                    pairs++;
+                }
+                // check per row so that a single heavy user cannot grow the map far beyond the limit
+                if (pairCounts.size() >= maxPairs) {
+                    flush(context);
+                }
+            }
+            context.getCounter(InMapperCombiningCounter.PAIRS_COUNTED).increment(pairs);
+        }
+
+        /**
+         * write every counted pair with its partial count and clear the map
+         */
+        private void flush(Context context) throws InterruptedException, IOException {
+            if (pairCounts.size() == 0) {
+                return;
+            }
+            IntWritable count = new IntWritable();
+            for (int slot = 0; slot < pairCounts.capacity(); slot++) {
+                if (pairCounts.countAt(slot) != 0) {
+                    pair.set(pairCounts.movieAAt(slot), pairCounts.movieBAt(slot));
+                    count.set(pairCounts.countAt(slot));
+                    context.write(pair, count);
+                }
+            }
+            pairCounts.clear();
+            context.getCounter(InMapperCombiningCounter.FLUSHES).increment(1);
+        }
+
+        @Override
+        public void cleanup(Context context) throws InterruptedException, IOException {
+            if (inMapperCombining) {
+                flush(context);
+            }
+            if (pairsPerUser != null) {
+                TaskHistograms.dump(context, TaskHistograms.PAIRS_PER_USER, pairsPerUser);
+            }
+        }
     }
 
-    public static class CooccurrenceMatrixGeneratorReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+    public static class CooccurrenceMatrixGeneratorReducer
+            extends Reducer<MoviePair, IntWritable, MoviePair, IntWritable> {
+        IntWritable outputValue = new IntWritable();
+
         /**
          * simply merge the result of mapper like reducer of word count
+         * the sum is associative, so this reducer is also used as the combiner
          *                         reducer
          *         key   value     ------>       key         value
          *         1:1   1                       1:1          2
@@ -72,38 +204,289 @@ public class CooccurrenceMatrixGenerator {
          * @param context
          */
         @Override
-        public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        public void reduce(MoviePair key, Iterable<IntWritable> values, Context context)
                 throws InterruptedException, IOException {
             int total = 0;
             while (values.iterator().hasNext()) {
                 total += values.iterator().next().get();
             }
-            context.write(key, new IntWritable(total));
+            outputValue.set(total);
+            context.write(key, outputValue);
+        }
+    }
+
+    /**
+     * Stripes approach: for each movie in a user's history emit one sparse row of the co-occurrence matrix
+     * instead of one record per pair. All movies of one user share the same stripe {movie_1:1, movie_2:1, ...},
+     * so it is built once per user and written once per movie.
+     */
+    public static class StripesMapper extends Mapper<IntWritable, RatingHistory, IntWritable, StripeWritable> {
+        int maxHistoryLength;
+        RatingHistory sample = new RatingHistory();
+        IntWritable outputKey = new IntWritable();
+        LogHistogram pairsPerUser;
+
+        @Override
+        public void setup(Context context) {
+            maxHistoryLength = context.getConfiguration().getInt("maxHistoryLength", 0);
+            if (TaskHistograms.isEnabled(context.getConfiguration())) {
+                pairsPerUser = new LogHistogram();
+            }
+        }
+
+        /**
+         *
+         * @param key    user_id
+         * @param value  eg: 1 -> {10001:5.0,10002:3.0,10003:2.5}
+         * @param context key: movieA   value: stripe {10001:1, 10002:1, 10003:1}
+         */
+        @Override
+        public void map(IntWritable key, RatingHistory value, Context context)
+                throws InterruptedException, IOException {
+            value = capHistory(key.get(), value, maxHistoryLength, sample, context);
+            countPairs((long) value.size() * value.size(), pairsPerUser, context);
+            // one stripe per user rather than a reused one, clear() would walk the capacity a power user left
+            StripeWritable stripe = new StripeWritable();
+            for (int i = 0; i < value.size(); i++) {
+                stripe.add(value.getMovieId(i), 1);
+            }
+            for (int i = 0; i < value.size(); i++) {
+                outputKey.set(value.getMovieId(i));
+                context.write(outputKey, stripe);
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) {
+            if (pairsPerUser != null) {
+                TaskHistograms.dump(context, TaskHistograms.PAIRS_PER_USER, pairsPerUser);
+            }
+        }
+    }
+
+    /**
+     * element-wise sum of the stripes of one movie on the map side
+     */
+    public static class StripesCombiner extends Reducer<IntWritable, StripeWritable, IntWritable, StripeWritable> {
+        @Override
+        public void reduce(IntWritable key, Iterable<StripeWritable> values, Context context)
+                throws InterruptedException, IOException {
+            StripeWritable row = new StripeWritable();
+            for (StripeWritable stripe : values) {
+                row.merge(stripe);
+            }
+            context.write(key, row);
+        }
+    }
+
+    /**
+     * After merging, the stripes of movieA are exactly one whole row of the co-occurrence matrix, which is
+     * what NormalizationReducer collects, so the row is normalized here and written in the output format
+     * of Normalization. The Normalization job is skipped in this mode.
+     */
+    public static class StripesNormalizationReducer
+            extends Reducer<IntWritable, StripeWritable, IntWritable, RelationOrRating> {
+        // reused for every record written
+        IntWritable outputKey = new IntWritable();
+        RelationOrRating outputValue = new RelationOrRating();
+        // entries of this reducer with -D writeNormalizedIndex=true, null otherwise, see Normalization
+        NormalizedMatrix.Builder indexSlice;
+
+        @Override
+        public void setup(Context context) {
+            if (context.getConfiguration().getBoolean("writeNormalizedIndex", false)) {
+                indexSlice = new NormalizedMatrix.Builder();
+            }
+        }
+
+        /**
+         *
+         * @param key movieA
+         * @param values stripes {movieB:count, ...} of movieA
+         * @param context  key:        movieB  (movies on the column direction)
+         *                 value:      RELATION(movieA, normalized_relation)  (movies on the row direction)
+         */
+        @Override
+        public void reduce(IntWritable key, Iterable<StripeWritable> values, Context context)
+                throws InterruptedException, IOException {
+            StripeWritable row = new StripeWritable();
+            for (StripeWritable stripe : values) {
+                row.merge(stripe);
+            }
+            double sum = row.sum();
+            context.getCounter(PipelineCounter.ROWS_NORMALIZED).increment(1);
+            for (int slot = 0; slot < row.capacity(); slot++) {
+                if (row.countAt(slot) != 0) {
+                    outputKey.set(row.movieAt(slot));
+                    outputValue.setRelation(key.get(), row.countAt(slot) / sum);
+                    context.write(outputKey, outputValue);
+                    if (indexSlice != null) {
+                        indexSlice.add(outputKey.get(), key.get(), outputValue.getValue());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            if (indexSlice != null) {
+                NormalizedMatrix.writeSlice(context, indexSlice);
+            }
         }
     }
 
+    /**
+     * count the pairs of one history, every pair as one (movieA, movieB) entry of the matrix whether it is written
+     * as a record, a count of the in-mapper combining or an entry of a stripe
+     * @param pairsPerUser null if -D taskHistograms is not set
+     */
+    static void countPairs(long pairs, LogHistogram pairsPerUser, TaskInputOutputContext<?, ?, ?, ?> context) {
+        context.getCounter(PipelineCounter.USERS).increment(1);
+        context.getCounter(PipelineCounter.PAIRS_EMITTED).increment(pairs);
+        if (pairsPerUser != null) {
+            pairsPerUser.add(pairs);
+        }
+    }
+
+    /**
+     * Keep only maxHistoryLength movies of a longer history, so that one power user cannot make a straggler
+     * out of its map task. The movies are chosen by a hash of (user_id, movie_id), so every run keeps the same
+     * ones. The order of the kept movies is not changed.
+     * @param maxHistoryLength 0 to keep every history as it is
+     * @param sample reused for the capped history
+     */
+    static RatingHistory capHistory(int userId, RatingHistory history, int maxHistoryLength,
+                                    RatingHistory sample, TaskInputOutputContext<?, ?, ?, ?> context) {
+        if (maxHistoryLength <= 0 || history.size() <= maxHistoryLength) {
+            return history;
+        }
+        // (hash << 32 | index), sorting it orders the movies by hash
+        long[] order = new long[history.size()];
+        for (int i = 0; i < history.size(); i++) {
+            int h = (userId * 31 + history.getMovieId(i)) * 0x9e3779b9;
+            order[i] = ((long) (h ^ (h >>> 16)) << 32) | i;
+        }
+        Arrays.sort(order);
+        int[] kept = new int[maxHistoryLength];
+        for (int k = 0; k < maxHistoryLength; k++) {
+            kept[k] = (int) order[k];
+        }
+        Arrays.sort(kept);
+        sample.clear();
+        for (int index : kept) {
+            sample.add(history.getMovieId(index), history.getRating(index));
+        }
+        context.getCounter(SkewCounter.HISTORIES_CAPPED).increment(1);
+        context.getCounter(SkewCounter.RATINGS_DROPPED).increment(history.size() - maxHistoryLength);
+        return sample;
+    }
+
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf);
+        // -D inMapperCombining=true enables in-mapper combining, -D inMapperCombiningMaxPairs=N bounds its map
+        // -D cooccurrenceMode=stripes switches to the stripes approach
+        // -D maxHistoryLength=N samples N movies of every longer history, see SkewSampler for the heavy users
+        // -D cooccurrenceMode=triangular writes only the upper triangle movieA <= movieB of the matrix
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
 
-        job.setMapperClass(CooccurrenceMatrixGeneratorMapper.class);
-        job.setReducerClass(CooccurrenceMatrixGeneratorReducer.class);
+    /**
+     * configure and run the job, also used by Driver
+     * @param args input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
+        Job job = Job.getInstance(conf);
 
         job.setJarByClass(CooccurrenceMatrixGenerator.class);
 
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        Compression.compressOutput(job);
+
+        if (isStripesMode(conf)) {
+            // output is already the normalized matrix, feed it to MatricesMultiplication directly
+            job.setMapperClass(StripesMapper.class);
+            job.setCombinerClass(StripesCombiner.class);
+            job.setReducerClass(StripesNormalizationReducer.class);
+
+            job.setMapOutputKeyClass(IntWritable.class);
+            job.setMapOutputValueClass(StripeWritable.class);
+            job.setOutputKeyClass(IntWritable.class);
+            job.setOutputValueClass(RelationOrRating.class);
+        } else {
+            job.setMapperClass(CooccurrenceMatrixGeneratorMapper.class);
+            // partial sums of one pair on the map side, so each map task sends every distinct pair only once
+            // per spill
+            job.setCombinerClass(CooccurrenceMatrixGeneratorReducer.class);
+            job.setReducerClass(CooccurrenceMatrixGeneratorReducer.class);
 
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(IntWritable.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+            job.setMapOutputKeyClass(MoviePair.class);
+            job.setMapOutputValueClass(IntWritable.class);
+            job.setOutputKeyClass(MoviePair.class);
+            job.setOutputValueClass(IntWritable.class);
+        }
 
-        TextInputFormat.setInputPaths(job, new Path(args[0])); // src/main/version2/output/data_divider/part-r-00000
-                                                               // output of the first mapreduce job
-        TextOutputFormat.setOutputPath(job, new Path(args[1]));
+        SequenceFileInputFormat.setInputPaths(job, new Path(args[0])); // src/main/version2/output/data_divider/
+                                                                       // output of the first mapreduce job
+        SequenceFileOutputFormat.setOutputPath(job, new Path(args[1]));
                                                               // src/main/version2/output/cooccurrence_matrix_generator/
 
-        job.waitForCompletion(true);
+        boolean succeeded = JobStats.waitForCompletion(job);
+        if (succeeded && isTriangularMode(conf)) {
+            // mark the output so that Normalization mirrors every entry into the lower triangle
+            Path output = new Path(args[1]);
+            output.getFileSystem(conf).create(new Path(output, UPPER_TRIANGLE_MARKER)).close();
+        }
+        printShuffleCounters(job);
+        return succeeded;
+    }
+
+    /**
+     * @return true if the stripes approach is selected, whose output is the normalized co-occurrence matrix
+     *         and replaces the Normalization job
+     */
+    public static boolean isStripesMode(Configuration conf) {
+        return "stripes".equals(conf.get("cooccurrenceMode", "pairs"));
+    }
+
+    /**
+     * @return true if only the upper triangle movieA <= movieB of the co-occurrence matrix is generated
+     */
+    public static boolean isTriangularMode(Configuration conf) {
+        return "triangular".equals(conf.get("cooccurrenceMode", "pairs"));
+    }
+
+    /**
+     * @param matrix output directory of CooccurrenceMatrixGenerator
+     * @return true if the directory holds only the upper triangle of the matrix
+     */
+    public static boolean isUpperTriangle(Configuration conf, Path matrix) throws IOException {
+        FileSystem fs = matrix.getFileSystem(conf);
+        return fs.exists(new Path(matrix, UPPER_TRIANGLE_MARKER));
+    }
+
+    /**
+     * the counters which show how much the combiner / in-mapper combining saved
+     */
+    private static void printShuffleCounters(Job job) throws IOException {
+        // null when the framework no longer knows the job
+        Counters jobCounters = job.getCounters();
+        if (jobCounters == null) {
+            return;
+        }
+        TaskCounter[] counters = {TaskCounter.MAP_OUTPUT_RECORDS, TaskCounter.MAP_OUTPUT_BYTES,
+                TaskCounter.COMBINE_INPUT_RECORDS, TaskCounter.COMBINE_OUTPUT_RECORDS,
+                TaskCounter.SPILLED_RECORDS, TaskCounter.REDUCE_SHUFFLE_BYTES, TaskCounter.REDUCE_INPUT_RECORDS};
+        for (TaskCounter counter : counters) {
+            System.out.println(counter + "=" + jobCounters.findCounter(counter).getValue());
+        }
+        for (InMapperCombiningCounter counter : InMapperCombiningCounter.values()) {
+            System.out.println(counter + "=" + jobCounters.findCounter(counter).getValue());
+        }
+        for (SkewCounter counter : SkewCounter.values()) {
+            System.out.println(counter + "=" + jobCounters.findCounter(counter).getValue());
+        }
     }
 }
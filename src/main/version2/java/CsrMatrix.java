@@ -0,0 +1,83 @@
+package main.version2.java;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Sparse int matrix in compressed sparse row (CSR) form, used by InMemoryRecommendationEngine instead of
+ * a HashMap of boxed relation lists.
+ * Rows and columns are dense indices 0..n-1, not movie or user ids. The columns of row r are
+ * cols[rowStart[r]] .. cols[rowStart[r + 1] - 1] and values holds the entry of every column at the same position.
+ */
+public class CsrMatrix {
+    private final int[] rowStart;
+    private final int[] cols;
+    private final int[] values;
+
+    public CsrMatrix(int[] rowStart, int[] cols, int[] values) {
+        this.rowStart = rowStart;
+        this.cols = cols;
+        this.values = values;
+    }
+
+    /**
+     * build the matrix from rows computed independently, e.g. one per fork-join task
+     * @param rowCols columns of every row
+     * @param rowValues values of every row, same length as the columns of the row
+     */
+    public static CsrMatrix fromRows(int[][] rowCols, int[][] rowValues) {
+        int[] rowStart = new int[rowCols.length + 1];
+        for (int r = 0; r < rowCols.length; r++) {
+            rowStart[r + 1] = rowStart[r] + rowCols[r].length;
+        }
+        int[] cols = new int[rowStart[rowCols.length]];
+        int[] values = new int[cols.length];
+        for (int r = 0; r < rowCols.length; r++) {
+            System.arraycopy(rowCols[r], 0, cols, rowStart[r], rowCols[r].length);
+            System.arraycopy(rowValues[r], 0, values, rowStart[r], rowValues[r].length);
+        }
+        return new CsrMatrix(rowStart, cols, values);
+    }
+
+    public int rows() {
+        return rowStart.length - 1;
+    }
+
+    /**
+     * number of stored entries
+     */
+    public int entries() {
+        return cols.length;
+    }
+
+    /**
+     * first position of row r, iterate positions up to {@link #rowEnd(int)} with {@link #colAt(int)}
+     */
+    public int rowStart(int r) {
+        return rowStart[r];
+    }
+
+    public int rowEnd(int r) {
+        return rowStart[r + 1];
+    }
+
+    public int colAt(int position) {
+        return cols[position];
+    }
+
+    public int valueAt(int position) {
+        return values[position];
+    }
+
+    /**
+     * sum of all values of row r
+     */
+    public long rowSum(int r) {
+        long sum = 0;
+        for (int i = rowStart[r]; i < rowStart[r + 1]; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+}
@@ -1,64 +1,155 @@
 package main.version2.java;
 
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
+import main.common.java.WatchedIndex;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
+import java.util.Arrays;
 @SuppressWarnings("Duplicates")
 /**
  * @author yifengguo
  */
 public class DataDividerByUser {
-    public static class DataDividerMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
+    public static class DataDividerMapper extends Mapper<LongWritable, Text, IntWritable, MovieRating> {
+        // reused for every line, the line is parsed on its bytes
+        TextFields fields = new TextFields();
+        IntWritable outputKey = new IntWritable();
+        MovieRating outputValue = new MovieRating();
+
         /**
          *
          * @param key  line index (byte offset)
          * @param value user_id, movie_id, rating
-         * @param context key: user_id      value: (movie_id : rating)
+         * @param context key: user_id      value: MovieRating(movie_id, rating)
          */
         @Override
         public void map(LongWritable key, Text value, Context context) throws InterruptedException, IOException {
-            String[] user_movie_rating = value.toString().trim().split(",");
-            int user_id = Integer.parseInt(user_movie_rating[0]);
-            int movie_id = Integer.parseInt(user_movie_rating[1]);
-            double rating = Double.parseDouble(user_movie_rating[2]);
-            context.write(new IntWritable(user_id), new Text(movie_id + ":" + rating));
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            outputKey.set(fields.intAt(0));                          // user_id
+            outputValue.set(fields.intAt(1), fields.floatAt(2));     // movie_id, rating
+            context.write(outputKey, outputValue);
         }
     }
 
-    public static class DataDividerReducer extends Reducer<IntWritable, Text, IntWritable, Text> {
+    public static class DataDividerReducer extends Reducer<IntWritable, MovieRating, IntWritable, RatingHistory> {
+        RatingHistory history = new RatingHistory();
+        // with -D writeWatchedIndex=true the watched movies of the users of this reducer, written in cleanup()
+        WatchedIndex.Builder watched;
+
+        @Override
+        public void setup(Context context) {
+            if (context.getConfiguration().getBoolean("writeWatchedIndex", false)) {
+                watched = new WatchedIndex.Builder();
+            }
+        }
+
         /**
          *
          * @param key  user_id
-         * @param values  all (movie_id : rating) of this user
-         * @param context  key: user_id      value: list of (movie_id : rating)
+         * @param values  all MovieRating(movie_id, rating) of this user
+         * @param context  key: user_id      value: RatingHistory of (movie_id, rating)
          * @throws IOException
          * @throws InterruptedException
          */
         @Override
-        public void reduce(IntWritable key, Iterable<Text> values, Context context)
+        public void reduce(IntWritable key, Iterable<MovieRating> values, Context context)
                 throws InterruptedException, IOException {
-            StringBuilder sb = new StringBuilder();
-            while (values.iterator().hasNext()) {
-                sb.append(",");
-                sb.append(values.iterator().next().toString());
+            // values are reused by the framework, so copy the primitives out instead of keeping references
+            history.clear();
+            for (MovieRating value : values) {
+                history.add(value.getMovieId(), value.getRating());
+            }
+            // history: movie1:2,movie2:3.5,movie5:7 in binary form
+            context.write(key, history);
+            if (watched != null) {
+                for (int i = 0; i < history.size(); i++) {
+                    watched.add(key.get(), history.getMovieId(i));
+                }
             }
-            // sb: ,movie1:2,movie2:3.5,movie5:7
-            // replace first extra ","
-            context.write(key, new Text(sb.toString().replaceFirst(",", "")));
         }
+
+        /**
+         * write the index of the users of this reducer, every reducer writes one even without users so
+         * the index of partition p is the p-th file
+         */
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            if (watched == null) {
+                return;
+            }
+            // into the output of the task attempt, which is moved into the job output when the task commits
+            Path index = new Path(FileOutputFormat.getWorkOutputPath(context),
+                    WatchedIndex.partitionFile(context.getTaskAttemptID().getTaskID().getId()));
+            watched.build().write(index.getFileSystem(context.getConfiguration()), index);
+        }
+    }
+
+    /**
+     * build the WatchedIndex of the output of this job, user_id -> RatingHistory, for a job which did not run
+     * with -D writeWatchedIndex=true
+     * @param histories output directory of DataDividerByUser
+     */
+    public static WatchedIndex watchedIndex(Configuration conf, Path histories) throws IOException {
+        FileSystem fs = histories.getFileSystem(conf);
+        long[] pairs = new long[1024];
+        int size = 0;
+        IntWritable user = new IntWritable();
+        RatingHistory history = new RatingHistory();
+        for (FileStatus part : fs.listStatus(histories)) {
+            if (!part.getPath().getName().startsWith("part-")) {
+                continue;
+            }
+            SequenceFile.Reader.Option file = SequenceFile.Reader.file(part.getPath());
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, file)) {
+                while (reader.next(user, history)) {
+                    if (size + history.size() > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, size + history.size()));
+                    }
+                    for (int i = 0; i < history.size(); i++) {
+                        pairs[size++] = ((long) user.get() << 32) | (history.getMovieId(i) & 0xffffffffL);
+                    }
+                }
+            }
+        }
+        return WatchedIndex.fromPairs(pairs, size);
     }
 
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        // -D writeWatchedIndex=true writes the index files of WatchedIndex for RecommendationListGenerator
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * -D writeWatchedIndex=true writes the index files of WatchedIndex for RecommendationListGenerator
+     * @param args input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
         Job job = Job.getInstance(conf);
 
         job.setMapperClass(DataDividerMapper.class);
@@ -67,14 +158,18 @@ public class DataDividerByUser {
         job.setJarByClass(DataDividerByUser.class);
 
         job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        // binary output between stages, read by CooccurrenceMatrixGenerator with SequenceFileInputFormat
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        Compression.compressOutput(job);
 
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(MovieRating.class);
         job.setOutputKeyClass(IntWritable.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputValueClass(RatingHistory.class);
 
         TextInputFormat.setInputPaths(job, new Path(args[0])); // src/main/version2/raw_data/user_rating_history.txt
-        TextOutputFormat.setOutputPath(job, new Path(args[1])); // src/main/version2/output/data_divider/
+        SequenceFileOutputFormat.setOutputPath(job, new Path(args[1])); // src/main/version2/output/data_divider/
 
-        job.waitForCompletion(true);
+        return JobStats.waitForCompletion(job);
     }
 }
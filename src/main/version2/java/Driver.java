@@ -0,0 +1,114 @@
+package main.version2.java;
+
+import main.common.java.StageRunner;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Run the MapReduce jobs of version2 in order and wire the output of each job into the next one:
+ *      DataDividerByUser -> CooccurrenceMatrixGenerator -> Normalization -> MatricesMultiplication
+ *      -> RecommendationListGenerator
+ * All intermediate outputs are put under output_dir with the same names as src/main/version2/output/.
+ * With -D cooccurrenceMode=stripes the generator already writes the normalized matrix, so Normalization is
+ * left out and MatricesMultiplication reads the generator output.
+ *
+ * Stages are run by StageRunner, like the ones of the version1 Driver: skipped when the _SUCCESS file of the
+ * output is newer than every file of the inputs. -D forceStages=name1,name2 (or all) runs the named stages
+ * anyway, which is also needed after switching cooccurrenceMode on an existing output_dir.
+ *
+ * -D detectSkew=true samples the ratings with SkewSampler first and salts the hot movies it finds.
+ *
+ * -D denseIds=true runs IdDictionary first and all later stages on its dense ratings, the recommendation list
+ * is translated back to the external ids by RecommendationListGenerator.
+ *
+ * After every stage the counters of PipelineCounter are printed, summed over its tasks, and with
+ * -D taskHistograms=true the histograms of TaskHistograms as well.
+ *
+ * -D compressMapOutput=codec and -D compressIntermediate=codec compress the shuffle and the data passed from
+ * one stage to the next one, codec is e.g. lz4 or the profile fast, see Compression. The intermediate
+ * outputs are then block-compressed SequenceFiles.
+ *
+ * usage: Driver [-D forceStages=...] [-D cooccurrenceMode=...] user_rating_history.txt movie_title.txt output_dir
+ */
+public class Driver {
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path ratings = new Path(args[0]); // src/main/version2/raw_data/user_rating_history.txt
+        Path titles = new Path(args[1]);  // src/main/version2/raw_data/movie_title.txt
+        Path output = new Path(args[2]);  // src/main/version2/output/
+
+        Path dictionary = new Path(output, "dictionary");
+        Path dividedByUser = new Path(output, "data_divider");
+        Path cooccurrence = new Path(output, "cooccurrence_matrix_generator");
+        Path normalized = new Path(output, "normalization");
+        Path scores = new Path(output, "matrices_multiplication");
+        Path recommendations = new Path(output, "recommendation_list");
+
+        StageRunner driver = new StageRunner(conf);
+        if (conf.getBoolean("detectSkew", false)) {
+            // sets hotMovies, which MatricesMultiplication salts
+            SkewSampler sampler = SkewSampler.detect(conf, ratings);
+            System.out.println("heavy users: " + sampler.getHeavyUsers().size()
+                    + ", hot movies: " + conf.get("hotMovies", ""));
+            if (!sampler.getHeavyUsers().isEmpty() && conf.getInt("maxHistoryLength", 0) <= 0) {
+                // a heavy user is one map() call of CooccurrenceMatrixGenerator, which only capHistory bounds
+                System.out.println("-D maxHistoryLength=N caps the histories of the heavy users");
+            }
+        }
+        if (conf.getBoolean("denseIds", false)) {
+            driver.runStage("dictionary", IdDictionary::run, dictionary,
+                    new Path[]{ratings}, ratings.toString(), dictionary.toString());
+            Path index = new Path(dictionary, IdDictionary.INDEX_FILE);
+            conf.set("idDictionary", index.toString());
+            if (conf.getInts("hotMovies").length > 0) {
+                // SkewSampler found them in the raw ratings, the later stages see the dense ids
+                IdDictionary ids = IdDictionary.read(driver.getFileSystem(), index);
+                StringBuilder sb = new StringBuilder();
+                for (int movie : conf.getInts("hotMovies")) {
+                    sb.append(sb.length() > 0 ? "," : "").append(ids.movieIndex(movie));
+                }
+                conf.set("hotMovies", sb.toString());
+            }
+            ratings = dictionary;
+        }
+        if (!RecommendationListGenerator.isJoinMode(conf)) {
+            // the mappers of RecommendationListGenerator map the watched movies written by DataDividerByUser
+            conf.setBoolean("writeWatchedIndex", true);
+        }
+        driver.runStage("data_divider", DataDividerByUser::run, dividedByUser,
+                new Path[]{ratings}, ratings.toString(), dividedByUser.toString());
+        if (MatricesMultiplication.isFusedMode(conf)) {
+            // the fused mappers map the index of the normalized matrix instead of reading the matrix each
+            conf.setBoolean("writeNormalizedIndex", true);
+        }
+        driver.runStage("cooccurrence_matrix_generator", CooccurrenceMatrixGenerator::run, cooccurrence,
+                new Path[]{dividedByUser}, dividedByUser.toString(), cooccurrence.toString());
+        if (CooccurrenceMatrixGenerator.isStripesMode(conf)) {
+            normalized = cooccurrence;
+        } else {
+            driver.runStage("normalization", Normalization::run, normalized,
+                    new Path[]{cooccurrence}, cooccurrence.toString(), normalized.toString());
+        }
+        if (MatricesMultiplication.isFusedMode(conf)) {
+            // the fused mapper reads the histories grouped by user instead of the raw ratings
+            driver.runStage("matrices_multiplication", MatricesMultiplication::run, scores,
+                    new Path[]{normalized, dividedByUser},
+                    normalized.toString(), dividedByUser.toString(), scores.toString());
+        } else {
+            driver.runStage("matrices_multiplication", MatricesMultiplication::run, scores,
+                    new Path[]{normalized, ratings}, normalized.toString(), ratings.toString(), scores.toString());
+        }
+        // watchHistory and movieTitles are passed to RecommendationListGenerator as configuration,
+        // the mappers map the watched index written by DataDividerByUser instead of reading watchHistory
+        conf.set("watchedIndex", dividedByUser.toString());
+        driver.runStage("recommendation_list", RecommendationListGenerator::run, recommendations,
+                new Path[]{scores, dividedByUser, ratings, titles},
+                ratings.toString(), titles.toString(), scores.toString(), recommendations.toString());
+    }
+}
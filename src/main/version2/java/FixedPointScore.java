@@ -0,0 +1,30 @@
+package main.version2.java;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Scores summed in fixed point: every partial score rating * normalized_relation is rounded to a multiple of
+ * 2^-32 and the multiples are summed as a long. A long sum is exact, so it does not depend on the order or the
+ * grouping of the partial scores, which is different in every mode: one by one in the reducer of
+ * RecommendationListGenerator, per tile in the blocked mode of MatricesMultiplication, per user in its fused
+ * mode. A double sum in another order can differ in the last bits, which shows in the rounded total score of
+ * the recommendation list; summed here the same partial scores give the same total score in every mode.
+ * 2^-32 is far below the two decimals of the recommendation list and leaves 2^31 for the total score. A
+ * total score is a multiple of 2^-32 itself, so summed again as the only partial score it does not change.
+ */
+public class FixedPointScore {
+    private static final double ONE = 0x1p32;
+
+    /**
+     * @return score as a number of 2^-32
+     */
+    public static long of(double score) {
+        return Math.round(score * ONE);
+    }
+
+    public static double toDouble(long fixed) {
+        return fixed / ONE;
+    }
+}
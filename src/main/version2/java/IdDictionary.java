@@ -0,0 +1,251 @@
+package main.version2.java;
+
+import main.common.java.IntSectionFile;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Dense ids: user i and movie j of the pipeline are the i-th smallest user_id and the j-th smallest movie_id
+ * of the rating history, so every id is in 0 .. N - 1 and can index an array instead of a hash map.
+ * This stage collects the distinct ids, writes them as the IntSectionFile INDEX_FILE (sections users, movies)
+ * and rewrites the rating history with dense ids by a map-only job into the same directory.
+ * Every later stage runs on the dense ratings unchanged; RecommendationListGenerator translates back to the
+ * external user_id and movie title when -D idDictionary points to the index file.
+ * Since the dense ids keep the order of the external ids, the recommendation list is the same.
+ *
+ * usage: IdDictionary user_rating_history.txt output_dir
+ */
+public class IdDictionary {
+    /**
+     * name of the index file in the output directory, FileInputFormat skips files starting with "_"
+     */
+    public static final String INDEX_FILE = "_dictionary.idx";
+    /**
+     * name of the index file in the working directory of a task
+     */
+    static final String DICTIONARY_LINK = "dictionary.idx";
+
+    private final IntBuffer users;
+    private final IntBuffer movies;
+
+    public IdDictionary(IntBuffer users, IntBuffer movies) {
+        this.users = users;
+        this.movies = movies;
+    }
+
+    /**
+     * map an index file written by {@link #write(FileSystem, Path)}
+     */
+    public static IdDictionary map(File file) throws IOException {
+        IntBuffer[] sections = IntSectionFile.map(file);
+        return new IdDictionary(sections[0], sections[1]);
+    }
+
+    /**
+     * read an index file onto the heap, used on the client
+     */
+    public static IdDictionary read(FileSystem fs, Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(path)))) {
+            IntBuffer[] sections = IntSectionFile.read(in);
+            return new IdDictionary(sections[0], sections[1]);
+        }
+    }
+
+    public void write(FileSystem fs, Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(path, true)))) {
+            IntSectionFile.write(out, users, movies);
+        }
+    }
+
+    /**
+     * collect the distinct user and movie ids of the rating history on the client
+     * @param path rating history, lines of user_id,movie_id,rating
+     */
+    public static IdDictionary build(Configuration conf, Path path) throws IOException {
+        DistinctInts users = new DistinctInts();
+        DistinctInts movies = new DistinctInts();
+        FileSystem fs = path.getFileSystem(conf);
+        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] tokens = line.trim().split(",");
+            if (tokens.length < 2) {
+                continue;
+            }
+            users.add(Integer.parseInt(tokens[0]));
+            movies.add(Integer.parseInt(tokens[1]));
+        }
+        br.close();
+        return new IdDictionary(IntBuffer.wrap(users.toSortedArray()), IntBuffer.wrap(movies.toSortedArray()));
+    }
+
+    /**
+     * @return dense id of the user, or a negative value if it is not in the dictionary
+     */
+    public int userIndex(int userId) {
+        return IntSectionFile.binarySearch(users, 0, users.limit(), userId);
+    }
+
+    public int movieIndex(int movieId) {
+        return IntSectionFile.binarySearch(movies, 0, movies.limit(), movieId);
+    }
+
+    /**
+     * @return external user_id of the dense id
+     */
+    public int userAt(int index) {
+        return users.get(index);
+    }
+
+    public int movieAt(int index) {
+        return movies.get(index);
+    }
+
+    public int userCount() {
+        return users.limit();
+    }
+
+    public int movieCount() {
+        return movies.limit();
+    }
+
+    /**
+     * growing array of ints which drops its duplicates whenever it is full, so it holds about the distinct
+     * values and not every rating
+     */
+    private static class DistinctInts {
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                compact();
+                if (size > values.length / 2) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+            }
+            values[size++] = value;
+        }
+
+        private void compact() {
+            Arrays.sort(values, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || values[distinct - 1] != values[i]) {
+                    values[distinct++] = values[i];
+                }
+            }
+            size = distinct;
+        }
+
+        int[] toSortedArray() {
+            compact();
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    public static class EncodeMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+        IdDictionary dictionary;
+        TextFields fields = new TextFields();
+        Text outputValue = new Text();
+
+        @Override
+        public void setup(Context context) throws IOException {
+            // index file of this stage, linked into the working directory by the distributed cache
+            dictionary = IdDictionary.map(new File(DICTIONARY_LINK));
+        }
+
+        /**
+         * @param value user_id,movie_id,rating
+         * @param context dense_user,dense_movie,rating
+         */
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            int user = dictionary.userIndex(fields.intAt(0));
+            int movie = dictionary.movieIndex(fields.intAt(1));
+            outputValue.clear();
+            fields.appendInt(outputValue, user);
+            fields.appendChar(outputValue, ',');
+            fields.appendInt(outputValue, movie);
+            fields.appendChar(outputValue, ',');
+            fields.appendTo(outputValue, 2);
+            context.write(NullWritable.get(), outputValue);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * write the index file and the dense rating history, also used by Driver
+     * @param args rating history, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
+        Path output = new Path(args[1]);
+        FileSystem fs = output.getFileSystem(conf);
+        // the mappers need the index, but FileOutputFormat refuses an existing output directory,
+        // so it is written next to the output and moved in after the job
+        Path index = new Path(output, INDEX_FILE);
+        Path staging = new Path(args[1] + "_index");
+        build(conf, new Path(args[0])).write(fs, staging);
+
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(IdDictionary.class);
+        job.addCacheFile(new URI(fs.makeQualified(staging).toUri() + "#" + DICTIONARY_LINK));
+        job.setMapperClass(EncodeMapper.class);
+        job.setNumReduceTasks(0);
+
+        job.setInputFormatClass(TextInputFormat.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        TextInputFormat.setInputPaths(job, new Path(args[0]));  // src/main/version2/raw_data/user_rating_history.txt
+        TextOutputFormat.setOutputPath(job, output);
+
+        boolean succeeded = JobStats.waitForCompletion(job);
+        if (succeeded) {
+            fs.rename(staging, index);
+        } else {
+            fs.delete(staging, false);
+        }
+        return succeeded;
+    }
+}
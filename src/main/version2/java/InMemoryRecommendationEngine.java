@@ -0,0 +1,256 @@
+package main.version2.java;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Runs the whole version2 pipeline (DataDividerByUser -> CooccurrenceMatrixGenerator -> Normalization ->
+ * MatricesMultiplication -> RecommendationListGenerator) in one JVM for data sets which fit in memory.
+ *
+ * Movie and user ids are mapped to dense indices so that every structure is a primitive array:
+ *      rating matrix         user -> (movie, rating) and movie -> user, both in CSR form
+ *      co-occurrence matrix  CsrMatrix of movieA -> (movieB, count), plus the row sums used for normalization
+ * The normalized relation of entry (movieA, movieB) is count / rowSum[movieA], it is computed when it is used
+ * instead of being stored. The co-occurrence rows and the scores of the users are computed in parallel by a
+ * ForkJoinPool, every task owns one row or one user and writes only its own slot of the result.
+ *
+ * The output has the same format as RecommendationListGenerator: user_id \t movie_title:total_score,
+ * sorted by user_id and then movie_id.
+ *
+ * usage: InMemoryRecommendationEngine user_rating_history.txt movie_title.txt output_file [parallelism]
+ */
+public class InMemoryRecommendationEngine {
+    // sorted distinct ids, the position of an id is its dense index
+    private int[] userIds;
+    private int[] movieIds;
+    private String[] titles;  // by movie index, null if the movie has no title like in RecommendationReducer
+
+    // rating matrix by user: movies and ratings of user u are at userStart[u] .. userStart[u + 1] - 1
+    private int[] userStart;
+    private int[] userMovies;
+    private double[] userRatings;
+
+    // transposed rating matrix: users who watched movie m are at movieStart[m] .. movieStart[m + 1] - 1
+    private int[] movieStart;
+    private int[] movieUsers;
+
+    private CsrMatrix cooccurrence;
+    private long[] rowSums;
+
+    private final ForkJoinPool pool;
+
+    public InMemoryRecommendationEngine(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        InMemoryRecommendationEngine engine = new InMemoryRecommendationEngine(parallelism);
+        try {
+            long start = System.currentTimeMillis();
+            engine.loadRatings(args[0]); // src/main/version2/raw_data/user_rating_history.txt
+            engine.loadTitles(args[1]);  // src/main/version2/raw_data/movie_title.txt
+            long loaded = System.currentTimeMillis();
+            engine.buildCooccurrenceMatrix();
+            long built = System.currentTimeMillis();
+            engine.writeRecommendations(args[2]);
+            long done = System.currentTimeMillis();
+            System.out.printf("users=%d movies=%d ratings=%d cooccurrence_entries=%d%n", engine.userIds.length,
+                    engine.movieIds.length, engine.userMovies.length, engine.cooccurrence.entries());
+            System.out.printf("load=%dms cooccurrence=%dms recommendation=%dms%n",
+                    loaded - start, built - loaded, done - built);
+        } finally {
+            engine.pool.shutdown();
+        }
+    }
+
+    /**
+     * read user_id,movie_id,rating lines and build the rating matrix in both directions
+     */
+    public void loadRatings(String file) throws IOException {
+        int size = 0;
+        int[] users = new int[1024];
+        int[] movies = new int[1024];
+        double[] ratings = new double[1024];
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] tokens = line.trim().split(",");
+                if (size == users.length) {
+                    users = Arrays.copyOf(users, size * 2);
+                    movies = Arrays.copyOf(movies, size * 2);
+                    ratings = Arrays.copyOf(ratings, size * 2);
+                }
+                users[size] = Integer.parseInt(tokens[0]);
+                movies[size] = Integer.parseInt(tokens[1]);
+                ratings[size] = Double.parseDouble(tokens[2]);
+                size++;
+            }
+        }
+
+        userIds = distinctSorted(users, size);
+        movieIds = distinctSorted(movies, size);
+        for (int i = 0; i < size; i++) {
+            users[i] = Arrays.binarySearch(userIds, users[i]);
+            movies[i] = Arrays.binarySearch(movieIds, movies[i]);
+        }
+
+        // counting sort of the ratings by user and by movie
+        userStart = offsets(users, size, userIds.length);
+        movieStart = offsets(movies, size, movieIds.length);
+        userMovies = new int[size];
+        userRatings = new double[size];
+        movieUsers = new int[size];
+        int[] nextOfUser = Arrays.copyOf(userStart, userIds.length);
+        int[] nextOfMovie = Arrays.copyOf(movieStart, movieIds.length);
+        for (int i = 0; i < size; i++) {
+            int position = nextOfUser[users[i]]++;
+            userMovies[position] = movies[i];
+            userRatings[position] = ratings[i];
+            movieUsers[nextOfMovie[movies[i]]++] = users[i];
+        }
+    }
+
+    /**
+     * read movie_id,movie_name lines, titles of movies which nobody rated are dropped
+     */
+    public void loadTitles(String file) throws IOException {
+        titles = new String[movieIds.length];
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] tokens = line.trim().split(",");
+                int movie = Arrays.binarySearch(movieIds, Integer.parseInt(tokens[0]));
+                if (movie >= 0) {
+                    titles[movie] = tokens[1];
+                }
+            }
+        }
+    }
+
+    /**
+     * row movieA of the co-occurrence matrix counts, for every movieB, the watches of movieB by the users who
+     * watched movieA, which is what CooccurrenceMatrixGenerator sums over all users
+     */
+    public void buildCooccurrenceMatrix() throws Exception {
+        int movies = movieIds.length;
+        int[][] rowCols = new int[movies][];
+        int[][] rowCounts = new int[movies][];
+        ThreadLocal<RowAccumulator> accumulators = ThreadLocal.withInitial(() -> new RowAccumulator(movies));
+        pool.submit(() -> IntStream.range(0, movies).parallel().forEach(movieA -> {
+            RowAccumulator row = accumulators.get();
+            for (int i = movieStart[movieA]; i < movieStart[movieA + 1]; i++) {
+                int user = movieUsers[i];
+                for (int j = userStart[user]; j < userStart[user + 1]; j++) {
+                    row.add(userMovies[j], 1);
+                }
+            }
+            rowCols[movieA] = row.sortedColumns();
+            rowCounts[movieA] = new int[rowCols[movieA].length];
+            for (int k = 0; k < rowCols[movieA].length; k++) {
+                rowCounts[movieA][k] = (int) row.get(rowCols[movieA][k]);
+            }
+            row.clear();
+        })).get();
+
+        cooccurrence = CsrMatrix.fromRows(rowCols, rowCounts);
+        rowSums = new long[movies];
+        for (int movieA = 0; movieA < movies; movieA++) {
+            rowSums[movieA] = cooccurrence.rowSum(movieA);
+        }
+    }
+
+    /**
+     * score of (user, movieA) = sum over the movies movieB watched by the user of
+     * rating(user, movieB) * count(movieA, movieB) / rowSum(movieA), which is the sum of the partial scores
+     * MatricesMultiplication writes. Watched movies are filtered out like in RecommendationMapper.
+     */
+    public void writeRecommendations(String file) throws Exception {
+        int users = userIds.length;
+        String[] lines = new String[users];
+        int movies = movieIds.length;
+        ThreadLocal<RowAccumulator> accumulators = ThreadLocal.withInitial(() -> new RowAccumulator(movies));
+        ThreadLocal<boolean[]> watchedOfThread = ThreadLocal.withInitial(() -> new boolean[movies]);
+        pool.submit(() -> IntStream.range(0, users).parallel().forEach(user -> {
+            RowAccumulator scores = accumulators.get();
+            boolean[] watched = watchedOfThread.get();
+            for (int i = userStart[user]; i < userStart[user + 1]; i++) {
+                int movieB = userMovies[i];
+                watched[movieB] = true;
+                double rating = userRatings[i];
+                // the matrix is symmetric, so row movieB holds column movieB: count(movieA, movieB)
+                for (int k = cooccurrence.rowStart(movieB); k < cooccurrence.rowEnd(movieB); k++) {
+                    int movieA = cooccurrence.colAt(k);
+                    scores.add(movieA, rating * cooccurrence.valueAt(k) / rowSums[movieA]);
+                }
+            }
+            // DecimalFormat is not thread safe
+            DecimalFormat df = new DecimalFormat("#.00");
+            StringBuilder sb = new StringBuilder();
+            int[] candidates = scores.sortedColumns();
+            for (int movieA : candidates) {
+                if (watched[movieA]) {
+                    continue;
+                }
+                double totalScore = Double.valueOf(df.format(scores.get(movieA)));
+                sb.append(userIds[user]).append('\t').append(titles[movieA]).append(':').append(totalScore)
+                        .append('\n');
+            }
+            lines[user] = sb.toString();
+            scores.clear();
+            for (int i = userStart[user]; i < userStart[user + 1]; i++) {
+                watched[userMovies[i]] = false;
+            }
+        })).get();
+
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                bw.write(line);
+            }
+        }
+    }
+
+    private static int[] distinctSorted(int[] ids, int size) {
+        int[] sorted = Arrays.copyOf(ids, size);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+    /**
+     * @return start position of every index in the array sorted by index, with the total count at the end
+     */
+    private static int[] offsets(int[] indices, int size, int range) {
+        int[] start = new int[range + 1];
+        for (int i = 0; i < size; i++) {
+            start[indices[i] + 1]++;
+        }
+        for (int i = 0; i < range; i++) {
+            start[i + 1] += start[i];
+        }
+        return start;
+    }
+}
@@ -0,0 +1,262 @@
+package main.version2.java;
+
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
+import main.common.java.WatchedIndex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Update the co-occurrence matrix and the normalized matrix of a previous run with the ratings added since,
+ * instead of generating the pairs of every history again.
+ * A user who adds the new movies D to the history H only adds the pairs of (H + D) x (H + D) which are not in
+ * H x H, that is D x (H + D) and H x D. So three jobs are run:
+ *      delta:          pairs of the new ratings only, the histories of users without new ratings are dropped
+ *                      by the mapper and new users get D x D from their lines of the delta file
+ *      merge:          previous co-occurrence matrix + delta, summed like in CooccurrenceMatrixGenerator
+ *      normalization:  Normalization in incremental mode, which renormalizes only the rows of the delta
+ *                      and copies all other rows from the previous normalization
+ * The outputs are written under output_dir with the names of the full pipeline, so the next run and
+ * MatricesMultiplication can use them as usual.
+ *
+ * prior_histories must be the output of DataDividerByUser before the new ratings (its _watched.idx files, if
+ * it wrote them, tell which users are new), and a (user_id, movie_id) is expected to be rated at most once.
+ * Only the full matrix of the pairs mode can be updated: the stripes mode keeps no raw counts and the triangular
+ * mode is not merged.
+ *
+ * usage: IncrementalCooccurrence prior_histories new_ratings.txt previous_cooccurrence previous_normalization
+ *        output_dir
+ */
+public class IncrementalCooccurrence {
+    /**
+     * name of the watched index files of prior_histories in the working directory of a task
+     */
+    static final String PRIOR_INDEX_LINK = "prior.idx";
+
+    public enum IncrementalCounter {
+        USERS_UPDATED,     // users with a prior history and new ratings
+        NEW_USER_RATINGS,  // ratings of users without a prior history
+        PAIRS_ADDED        // pairs written into the delta
+    }
+
+    /**
+     * delta pairs of the users who already have a history, the new ratings of all users are held in memory
+     * as a WatchedIndex since they are a small fraction of the whole rating history
+     */
+    public static class HistoryDeltaMapper extends Mapper<IntWritable, RatingHistory, MoviePair, IntWritable> {
+        static final IntWritable one = new IntWritable(1);
+        WatchedIndex newRatings;
+        MoviePair pair = new MoviePair();
+        int[] added = new int[16];
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            newRatings = WatchedIndex.load(conf, new Path(conf.get("newRatings")));
+        }
+
+        /**
+         * @param key    user_id
+         * @param value  prior history of the user
+         * @param context movie_in_D:movie_in_H+D  1   and   movie_in_H:movie_in_D  1
+         */
+        @Override
+        public void map(IntWritable key, RatingHistory value, Context context)
+                throws IOException, InterruptedException {
+            int u = newRatings.indexOf(key.get());
+            if (u < 0) {
+                return;  // no new ratings, so none of the user's pairs change
+            }
+            int[] prior = new int[value.size()];
+            for (int i = 0; i < value.size(); i++) {
+                prior[i] = value.getMovieId(i);
+            }
+            Arrays.sort(prior);
+            // D: new movies of the user, a movie rated again is already counted in H x H
+            int size = 0;
+            for (int k = newRatings.moviesStart(u); k < newRatings.moviesEnd(u); k++) {
+                int movie = newRatings.movieAt(k);
+                if (Arrays.binarySearch(prior, movie) < 0) {
+                    if (size == added.length) {
+                        added = Arrays.copyOf(added, size * 2);
+                    }
+                    added[size++] = movie;
+                }
+            }
+            if (size == 0) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                for (int movie : prior) {
+                    write(added[i], movie, context);
+                    write(movie, added[i], context);
+                }
+                for (int j = 0; j < size; j++) {
+                    write(added[i], added[j], context);
+                }
+            }
+            context.getCounter(IncrementalCounter.USERS_UPDATED).increment(1);
+            context.getCounter(IncrementalCounter.PAIRS_ADDED).increment(2L * size * prior.length + size * size);
+        }
+
+        private void write(int movieA, int movieB, Context context) throws IOException, InterruptedException {
+            pair.set(movieA, movieB);
+            context.write(pair, one);
+        }
+    }
+
+    /**
+     * delta pairs of the users without a prior history: the line movie_id of such a user gives the row
+     * movie_id of D x D, the other movies of D are looked up in the index of the new ratings
+     */
+    public static class NewUserDeltaMapper extends Mapper<LongWritable, Text, MoviePair, IntWritable> {
+        static final IntWritable one = new IntWritable(1);
+        WatchedIndex newRatings;
+        WatchedIndex priorRatings;
+        TextFields fields = new TextFields();
+        MoviePair pair = new MoviePair();
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            newRatings = WatchedIndex.load(conf, new Path(conf.get("newRatings")));
+            int indexFiles = conf.getInt("priorIndexFiles", 0);
+            if (indexFiles > 0) {
+                // _watched.idx files of DataDividerByUser, linked into the working directory by the distributed cache
+                priorRatings = WatchedIndex.mapCacheFiles(PRIOR_INDEX_LINK, indexFiles);
+            } else {
+                priorRatings = DataDividerByUser.watchedIndex(conf, new Path(conf.get("priorHistories")));
+            }
+        }
+
+        /**
+         * @param value user_id,movie_id,rating
+         * @param context movie_id:movie_in_D  1
+         */
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            fields.split(value, ',');
+            if (fields.size() < 2) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            int userId = fields.intAt(0);
+            if (priorRatings.hasUser(userId)) {
+                return;  // handled by HistoryDeltaMapper
+            }
+            int movie = fields.intAt(1);
+            int u = newRatings.indexOf(userId);
+            for (int k = newRatings.moviesStart(u); k < newRatings.moviesEnd(u); k++) {
+                pair.set(movie, newRatings.movieAt(k));
+                context.write(pair, one);
+            }
+            context.getCounter(IncrementalCounter.NEW_USER_RATINGS).increment(1);
+            context.getCounter(IncrementalCounter.PAIRS_ADDED)
+                    .increment(newRatings.moviesEnd(u) - newRatings.moviesStart(u));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (!run(conf, args)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run the delta, merge and normalization jobs
+     * @param args prior_histories, new_ratings, previous_cooccurrence, previous_normalization, output_dir
+     * @return true if all jobs succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
+        Path priorHistories = new Path(args[0]);    // src/main/version2/output/data_divider/
+        Path newRatings = new Path(args[1]);        // ratings added since the previous run
+        Path previousMatrix = new Path(args[2]);    // src/main/version2/output/cooccurrence_matrix_generator/
+        Path previousNormalized = new Path(args[3]); // src/main/version2/output/normalization/
+        Path output = new Path(args[4]);
+
+        if (CooccurrenceMatrixGenerator.isStripesMode(conf)
+                || CooccurrenceMatrixGenerator.isUpperTriangle(conf, previousMatrix)) {
+            System.err.println("only the full co-occurrence matrix of the pairs mode can be updated");
+            return false;
+        }
+        Path delta = new Path(output, "cooccurrence_delta");
+        Path matrix = new Path(output, "cooccurrence_matrix_generator");
+        Path normalized = new Path(output, "normalization");
+
+        if (!runDelta(new Configuration(conf), priorHistories, newRatings, delta)) {
+            return false;
+        }
+        if (!runMerge(new Configuration(conf), previousMatrix, delta, matrix)) {
+            return false;
+        }
+        Configuration normalizationConf = new Configuration(conf);
+        normalizationConf.set("cooccurrenceDelta", delta.toString());
+        normalizationConf.set("previousNormalization", previousNormalized.toString());
+        return Normalization.run(normalizationConf, new String[]{matrix.toString(), normalized.toString()});
+    }
+
+    private static boolean runDelta(Configuration conf, Path priorHistories, Path newRatings, Path delta)
+            throws Exception {
+        conf.set("newRatings", newRatings.toString());
+        conf.set("priorHistories", priorHistories.toString());
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(IncrementalCooccurrence.class);
+        job.getConfiguration().setInt("priorIndexFiles",
+                WatchedIndex.addCacheFiles(job, priorHistories, PRIOR_INDEX_LINK));
+
+        MultipleInputs.addInputPath(job, priorHistories, SequenceFileInputFormat.class, HistoryDeltaMapper.class);
+        MultipleInputs.addInputPath(job, newRatings, TextInputFormat.class, NewUserDeltaMapper.class);
+        job.setCombinerClass(CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorReducer.class);
+        job.setReducerClass(CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorReducer.class);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        Compression.compressOutput(job);
+        job.setOutputKeyClass(MoviePair.class);
+        job.setOutputValueClass(IntWritable.class);
+        SequenceFileOutputFormat.setOutputPath(job, delta);
+        return JobStats.waitForCompletion(job);
+    }
+
+    /**
+     * previous matrix + delta, the identity mapper and the summing reducer of CooccurrenceMatrixGenerator
+     */
+    private static boolean runMerge(Configuration conf, Path previousMatrix, Path delta, Path matrix)
+            throws Exception {
+        Job job = Job.getInstance(conf);
+        job.setJarByClass(IncrementalCooccurrence.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        Compression.compressOutput(job);
+        job.setMapperClass(Mapper.class);
+        job.setCombinerClass(CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorReducer.class);
+        job.setReducerClass(CooccurrenceMatrixGenerator.CooccurrenceMatrixGeneratorReducer.class);
+        job.setOutputKeyClass(MoviePair.class);
+        job.setOutputValueClass(IntWritable.class);
+
+        SequenceFileInputFormat.setInputPaths(job, previousMatrix, delta);
+        SequenceFileOutputFormat.setOutputPath(job, matrix);
+        return JobStats.waitForCompletion(job);
+    }
+}
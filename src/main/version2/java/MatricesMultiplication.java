@@ -1,5 +1,9 @@
 package main.version2.java;
 
+import main.common.java.Compression;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
@@ -9,82 +13,105 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.chain.ChainMapper;
 import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * @author yifengguo
  */
 public class MatricesMultiplication {
-    public static class NormalizedCooccurrenceMatrixMapper extends Mapper<LongWritable, Text, Text, Text> {
+    /**
+     * links of the normalized matrix index slices in the working directory of a task, used by the fused mode
+     */
+    static final String NORMALIZED_INDEX_LINK = "normalized.idx";
+
+    public static class NormalizedCooccurrenceMatrixMapper
+            extends Mapper<IntWritable, RelationOrRating, IntWritable, RelationOrRating> {
         /**
          *
-         * @param key byte offset
-         * @param value output of Normalization   movieB \t movieA=normalized_relation
+         * @param key output of Normalization   movieB
+         * @param value output of Normalization   RELATION(movieA, normalized_relation)
          * @param context output value without any change
          * @throws IOException
          * @throws InterruptedException
          */
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            // value format  -->    movieB \t movieA=normailized_relation
-            String[] tokens = value.toString().split("\t");
+        public void map(IntWritable key, RelationOrRating value, Context context)
+                throws IOException, InterruptedException {
+            // value is already tagged as RELATION by Normalization
             // write out value directly without any change for this mapper
-            context.write(new Text(tokens[0]), new Text(tokens[1]));
+            context.write(key, value);
         }
     }
 
-    public static class RatingHistoryMapper extends Mapper<LongWritable, Text, Text, Text> {
+    public static class RatingHistoryMapper extends Mapper<LongWritable, Text, IntWritable, RelationOrRating> {
+        // reused for every line, the line is parsed on its bytes
+        TextFields fields = new TextFields();
+        IntWritable outputKey = new IntWritable();
+        RelationOrRating outputValue = new RelationOrRating();
+
         /**
          * To make sure two mappers share the same key to do the multiplication, output key of this mapper is movie_id
          * @param key byte offset
          * @param value line of user_rating_history.txt
-         * @param context key: movie_id  value: user_id:rating
+         * @param context key: movie_id  value: RATING(user_id, rating)
          */
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] tokens = value.toString().trim().split(",");
-            context.write(new Text(tokens[1]), new Text(tokens[0] + ":" + tokens[2]));
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            outputKey.set(fields.intAt(1));
+            outputValue.setRating(fields.intAt(0), fields.doubleAt(2));
+            context.write(outputKey, outputValue);
         }
     }
 
-    public static class MatriceMultiplicationReducer extends Reducer<Text, Text, Text, DoubleWritable> {
+    /**
+     * @param <K> movieB, or movieB with a salt (LongWritable) when hot movies are salted
+     */
+    public static class MatriceMultiplicationReducer<K>
+            extends Reducer<K, RelationOrRating, UserMoviePair, DoubleWritable> {
+        // key: movieA_id   value: normalized relation, so it stores an entry in the co-occurrence matrix
+        // under current column (moiveB). Both maps are cleared and reused by every reduce() call.
+        IntDoubleMap normalizedCoocurrenceMatrixMap = new IntDoubleMap(64);
+        // key: user_id     value: user rating on watched movie
+        IntDoubleMap ratingHistoryMap = new IntDoubleMap(64);
+        // the ratings copied out of ratingHistoryMap, so the inner loop reads two plain arrays
+        int[] users = new int[64];
+        double[] ratings = new double[64];
+
         /**
          *
          * @param key movieB (movies on the column direction)
          * @param values two kinds of values
-         *               one from NormalizedCooccurrenceMatrixMapper   {movieX=normalized_relation, ...}
-         *               one from RatingHistoryMapper                  {user_id:rating, ...}
+         *               one from NormalizedCooccurrenceMatrixMapper   {RELATION(movieX, normalized_relation), ...}
+         *               one from RatingHistoryMapper                  {RATING(user_id, rating), ...}
          * @param context
          * @throws IOException
          * @throws InterruptedException
          */
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            // to store each entry in normalized cooccurrence matrix
+        public void reduce(K key, Iterable<RelationOrRating> values, Context context)
+                throws IOException, InterruptedException {
+            // to store each entry in normalized cooccurrence matrix and in user rating history
             // for this reduce, input key is movieB
+            normalizedCoocurrenceMatrixMap.clear();
+            ratingHistoryMap.clear();
 
-            // key: movieA_id   value: normalized relation, so it stores an entry in the co-occurrence matrix
-            // under current column (moiveB)
-            Map<String, Double> normalizedCoocurrenceMatrixMap = new HashMap<>();
-
-            // to store each entry in user rating history
-            // key: user_id     value: user rating on watched movie
-            Map<String, Double> ratingHistoryMap = new HashMap<>();
-
-            for (Text value : values) {
-                if (value.toString().contains("=")) {
-                    String[] movie_relation = value.toString().trim().split("=");
-                    normalizedCoocurrenceMatrixMap.put(movie_relation[0], Double.parseDouble(movie_relation[1]));
+            for (RelationOrRating value : values) {
+                if (value.isRelation()) {
+                    normalizedCoocurrenceMatrixMap.put(value.getId(), value.getValue());
                 } else {
-                    String[] user_rating = value.toString().trim().split(":");
-                    ratingHistoryMap.put(user_rating[0], Double.parseDouble(user_rating[1]));
+                    ratingHistoryMap.put(value.getId(), value.getValue());
                 }
             }
 
@@ -118,58 +145,461 @@ public class MatricesMultiplication {
              *     generate the recommendation list for users
              *
              */
-            for (Map.Entry<String, Double> entry : normalizedCoocurrenceMatrixMap.entrySet()) {
-                String movie = entry.getKey(); // moiveA_id
-                double relation = entry.getValue();
-
-                for (Map.Entry<String, Double> element : ratingHistoryMap.entrySet()) {
-                    String user_id = element.getKey();
-                    double rating = element.getValue();
-                    context.write(new Text(user_id + ":" + movie), new DoubleWritable(rating * relation));
+            int size = 0;
+            if (users.length < ratingHistoryMap.size()) {
+                users = new int[ratingHistoryMap.size()];
+                ratings = new double[ratingHistoryMap.size()];
+            }
+            for (int element = 0; element < ratingHistoryMap.size(); element++) {
+                users[size] = ratingHistoryMap.keyAt(element);
+                ratings[size++] = ratingHistoryMap.valueAt(element);
+            }
+
+            context.getCounter(PipelineCounter.PARTIAL_PRODUCTS)
+                    .increment((long) normalizedCoocurrenceMatrixMap.size() * size);
+            for (int entry = 0; entry < normalizedCoocurrenceMatrixMap.size(); entry++) {
+                int movie = normalizedCoocurrenceMatrixMap.keyAt(entry); // moiveA_id
+                double relation = normalizedCoocurrenceMatrixMap.valueAt(entry);
+
+                for (int element = 0; element < size; element++) {
+                    int user_id = users[element];
+                    double rating = ratings[element];
+                    context.write(new UserMoviePair(user_id, movie), new DoubleWritable(rating * relation));
                 }
             }
         }
     }
 
+    /**
+     * Blocked mode: movieA is split into movieBlocks blocks and users into userBlocks blocks, every
+     * (movieA block, user block) tile is reduced by its own reduce() call. An entry (movieA, movieB) of the
+     * normalized matrix goes to every tile of its movieA block, a rating (user, movieB) to every tile of its
+     * user block, so a tile holds 1/movieBlocks of the matrix and 1/userBlocks of the ratings, and the
+     * ratings of a popular movieB are spread over userBlocks reducers instead of one.
+     * A tile sees every movieB, so its output is the total score of each (user, movieA) of the tile.
+     */
+    public static class NormalizedMatrixBlockMapper
+            extends Mapper<IntWritable, RelationOrRating, IntWritable, TileEntry> {
+        IntWritable tile = new IntWritable();
+        TileEntry entry = new TileEntry();
+        int movieBlocks;
+        int userBlocks;
+
+        @Override
+        public void setup(Context context) {
+            movieBlocks = context.getConfiguration().getInt("movieBlocks", 4);
+            userBlocks = context.getConfiguration().getInt("userBlocks", 4);
+        }
+
+        /**
+         * @param key movieB
+         * @param value RELATION(movieA, normalized_relation)
+         * @param context key: tile of (movieA block, user block) for every user block
+         *                value: RELATION(movieA, movieB, normalized_relation)
+         */
+        @Override
+        public void map(IntWritable key, RelationOrRating value, Context context)
+                throws IOException, InterruptedException {
+            entry.setRelation(value.getId(), key.get(), value.getValue());
+            int movieBlock = blockOf(value.getId(), movieBlocks);
+            for (int userBlock = 0; userBlock < userBlocks; userBlock++) {
+                tile.set(movieBlock * userBlocks + userBlock);
+                context.write(tile, entry);
+            }
+        }
+    }
+
+    public static class RatingBlockMapper extends Mapper<LongWritable, Text, IntWritable, TileEntry> {
+        TextFields fields = new TextFields();
+        IntWritable tile = new IntWritable();
+        TileEntry entry = new TileEntry();
+        int movieBlocks;
+        int userBlocks;
+
+        @Override
+        public void setup(Context context) {
+            movieBlocks = context.getConfiguration().getInt("movieBlocks", 4);
+            userBlocks = context.getConfiguration().getInt("userBlocks", 4);
+        }
+
+        /**
+         * @param key byte offset
+         * @param value line of user_rating_history.txt
+         * @param context key: tile of (movieA block, user block) for every movieA block
+         *                value: RATING(user_id, movieB, rating)
+         */
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            int userId = fields.intAt(0);
+            entry.setRating(userId, fields.intAt(1), fields.doubleAt(2));
+            int userBlock = blockOf(userId, userBlocks);
+            for (int movieBlock = 0; movieBlock < movieBlocks; movieBlock++) {
+                tile.set(movieBlock * userBlocks + userBlock);
+                context.write(tile, entry);
+            }
+        }
+    }
+
+    public static class BlockMultiplicationReducer
+            extends Reducer<IntWritable, TileEntry, UserMoviePair, DoubleWritable> {
+        // entries of the normalized matrix in this tile: (relationA[i], relationB[i]) -> relation[i]
+        int relationCount;
+        int[] relationA = new int[1024];
+        int[] relationB = new int[1024];
+        double[] relation = new double[1024];
+
+        // ratings in this tile: (ratingUser[i], ratingB[i]) -> rating[i]
+        int ratingCount;
+        int[] ratingUser = new int[1024];
+        int[] ratingB = new int[1024];
+        double[] rating = new double[1024];
+
+        // (user_id, movieA) -> score, pre-aggregated over all movieB of the tile
+        PairScoreMap scores = new PairScoreMap(1 << 12);
+        UserMoviePair outputKey = new UserMoviePair();
+        DoubleWritable outputValue = new DoubleWritable();
+
+        /**
+         * @param key tile
+         * @param values RELATION(movieA, movieB, normalized_relation) and RATING(user_id, movieB, rating)
+         * @param context key: user_id:movieA  value: sum over movieB of rating * normalized_relation
+         */
+        @Override
+        public void reduce(IntWritable key, Iterable<TileEntry> values, Context context)
+                throws IOException, InterruptedException {
+            relationCount = 0;
+            ratingCount = 0;
+            for (TileEntry value : values) {
+                if (value.isRelation()) {
+                    addRelation(value.getId(), value.getMovieB(), value.getValue());
+                } else {
+                    addRating(value.getId(), value.getMovieB(), value.getValue());
+                }
+            }
+
+            // join both sides on movieB: sort (movieB, index) of each side and walk them together
+            long[] relationOrder = orderByMovieB(relationB, relationCount);
+            long[] ratingOrder = orderByMovieB(ratingB, ratingCount);
+            int i = 0;
+            int j = 0;
+            long products = 0;
+            while (i < relationCount && j < ratingCount) {
+                int movieB = (int) (relationOrder[i] >>> 32);
+                int ratingMovieB = (int) (ratingOrder[j] >>> 32);
+                if (movieB < ratingMovieB) {
+                    i++;
+                } else if (movieB > ratingMovieB) {
+                    j++;
+                } else {
+                    int iEnd = i;
+                    while (iEnd < relationCount && (int) (relationOrder[iEnd] >>> 32) == movieB) {
+                        iEnd++;
+                    }
+                    int jEnd = j;
+                    while (jEnd < ratingCount && (int) (ratingOrder[jEnd] >>> 32) == movieB) {
+                        jEnd++;
+                    }
+                    for (int r = i; r < iEnd; r++) {
+                        int relationIndex = (int) relationOrder[r];
+                        for (int u = j; u < jEnd; u++) {
+                            int ratingIndex = (int) ratingOrder[u];
+                            scores.add(ratingUser[ratingIndex], relationA[relationIndex],
+                                    rating[ratingIndex] * relation[relationIndex]);
+                        }
+                    }
+                    products += (long) (iEnd - i) * (jEnd - j);
+                    i = iEnd;
+                    j = jEnd;
+                }
+            }
+            context.getCounter(PipelineCounter.PARTIAL_PRODUCTS).increment(products);
+
+            for (int pair = 0; pair < scores.size(); pair++) {
+                outputKey.set(scores.userIdAt(pair), scores.movieIdAt(pair));
+                outputValue.set(scores.scoreAt(pair));
+                context.write(outputKey, outputValue);
+            }
+            scores.clear();
+        }
+
+        private void addRelation(int movieA, int movieB, double value) {
+            if (relationCount == relationA.length) {
+                relationA = Arrays.copyOf(relationA, relationCount * 2);
+                relationB = Arrays.copyOf(relationB, relationCount * 2);
+                relation = Arrays.copyOf(relation, relationCount * 2);
+            }
+            relationA[relationCount] = movieA;
+            relationB[relationCount] = movieB;
+            relation[relationCount++] = value;
+        }
+
+        private void addRating(int userId, int movieB, double value) {
+            if (ratingCount == ratingUser.length) {
+                ratingUser = Arrays.copyOf(ratingUser, ratingCount * 2);
+                ratingB = Arrays.copyOf(ratingB, ratingCount * 2);
+                rating = Arrays.copyOf(rating, ratingCount * 2);
+            }
+            ratingUser[ratingCount] = userId;
+            ratingB[ratingCount] = movieB;
+            rating[ratingCount++] = value;
+        }
+
+        /**
+         * @return (movieB << 32 | index) of the first count entries, sorted by movieB
+         */
+        private static long[] orderByMovieB(int[] movieB, int count) {
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) movieB[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            return order;
+        }
+    }
+
+    /**
+     * Fused mode: the normalized matrix is loaded by every mapper (like MatricesMultiplicationMapper of
+     * version1) and the input is the output of DataDividerByUser, so one map() call has the whole history of
+     * one user and can sum the scores of that user itself. The job is map-only and writes one total score
+     * per unwatched (user, movieA) instead of one partial score per (user, movieA, movieB).
+     */
+    public static class FusedMultiplicationMapper
+            extends Mapper<IntWritable, RatingHistory, UserMoviePair, DoubleWritable> {
+        NormalizedMatrix matrix;
+        // scores of the current user by dense movie index in fixed point (see FixedPointScore), only the touched
+        // ones are cleared
+        long[] scores;
+        boolean[] touched;
+        int[] touchedMovies;
+        int touchedCount;
+        UserMoviePair outputKey = new UserMoviePair();
+        DoubleWritable outputValue = new DoubleWritable();
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            int indexSlices = conf.getInt("normalizedIndexFiles", 0);
+            if (indexSlices > 0) {
+                // index slices of Normalization, linked into the working directory by the distributed cache
+                matrix = NormalizedMatrix.mapCacheFiles(NORMALIZED_INDEX_LINK, indexSlices);
+            } else {
+                matrix = NormalizedMatrix.load(conf, new Path(conf.get("normalizedMatrix")));
+            }
+            scores = new long[matrix.movieCount()];
+            touched = new boolean[matrix.movieCount()];
+            touchedMovies = new int[matrix.movieCount()];
+        }
+
+        /**
+         * @param key user_id
+         * @param value RatingHistory of (movieB, rating)
+         * @param context key: user_id:movieA   value: sum over movieB of rating * normalized_relation(movieA, movieB)
+         */
+        @Override
+        public void map(IntWritable key, RatingHistory value, Context context)
+                throws IOException, InterruptedException {
+            long products = 0;
+            for (int i = 0; i < value.size(); i++) {
+                int b = matrix.indexOf(value.getMovieId(i));
+                if (b < 0) {
+                    continue;
+                }
+                double rating = value.getRating(i);
+                products += matrix.colEnd(b) - matrix.colStart(b);
+                for (int k = matrix.colStart(b); k < matrix.colEnd(b); k++) {
+                    int a = matrix.rowAt(k);
+                    if (!touched[a]) {
+                        touched[a] = true;
+                        touchedMovies[touchedCount++] = a;
+                    }
+                    scores[a] += FixedPointScore.of(rating * matrix.valueAt(k));
+                }
+            }
+            context.getCounter(PipelineCounter.PARTIAL_PRODUCTS).increment(products);
+            // the watched movies are at hand, so they are dropped here instead of being written
+            for (int i = 0; i < value.size(); i++) {
+                int b = matrix.indexOf(value.getMovieId(i));
+                if (b >= 0) {
+                    touched[b] = false;
+                }
+            }
+            for (int t = 0; t < touchedCount; t++) {
+                int a = touchedMovies[t];
+                if (touched[a]) {
+                    outputKey.set(key.get(), matrix.movieAt(a));
+                    outputValue.set(FixedPointScore.toDouble(scores[a]));
+                    context.write(outputKey, outputValue);
+                    touched[a] = false;
+                }
+                scores[a] = 0;
+            }
+            touchedCount = 0;
+        }
+    }
+
+    /**
+     * Salting of hot movies (see SkewSampler): the ratings of a movie in hotMovies are spread over
+     * hotMovieSalts reducers by user_id and its column of the normalized matrix is sent to all of them,
+     * so every (user, movieA, movieB) partial score is still written exactly once and the scores are merged
+     * by the sum of RecommendationListGenerator as before. Other movies keep salt 0.
+     * The key is movieB << 32 | salt.
+     */
+    public static class SaltedNormalizedMatrixMapper
+            extends Mapper<IntWritable, RelationOrRating, LongWritable, RelationOrRating> {
+        LongWritable outputKey = new LongWritable();
+        int[] hotMovies;
+        int salts;
+
+        @Override
+        public void setup(Context context) {
+            hotMovies = sortedHotMovies(context.getConfiguration());
+            salts = context.getConfiguration().getInt("hotMovieSalts", 8);
+        }
+
+        @Override
+        public void map(IntWritable key, RelationOrRating value, Context context)
+                throws IOException, InterruptedException {
+            int saltCount = Arrays.binarySearch(hotMovies, key.get()) >= 0 ? salts : 1;
+            for (int salt = 0; salt < saltCount; salt++) {
+                outputKey.set(((long) key.get() << 32) | salt);
+                context.write(outputKey, value);
+            }
+        }
+    }
+
+    public static class SaltedRatingHistoryMapper extends Mapper<LongWritable, Text, LongWritable, RelationOrRating> {
+        TextFields fields = new TextFields();
+        LongWritable outputKey = new LongWritable();
+        RelationOrRating outputValue = new RelationOrRating();
+        int[] hotMovies;
+        int salts;
+
+        @Override
+        public void setup(Context context) {
+            hotMovies = sortedHotMovies(context.getConfiguration());
+            salts = context.getConfiguration().getInt("hotMovieSalts", 8);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            int userId = fields.intAt(0);
+            int movieId = fields.intAt(1);
+            int salt = Arrays.binarySearch(hotMovies, movieId) >= 0 ? (userId & Integer.MAX_VALUE) % salts : 0;
+            outputKey.set(((long) movieId << 32) | salt);
+            outputValue.setRating(userId, fields.doubleAt(2));
+            context.write(outputKey, outputValue);
+        }
+    }
+
+    static int[] sortedHotMovies(Configuration conf) {
+        int[] hotMovies = conf.getInts("hotMovies");
+        Arrays.sort(hotMovies);
+        return hotMovies;
+    }
+
+    static int blockOf(int id, int blocks) {
+        return (id & Integer.MAX_VALUE) % blocks;
+    }
+
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        // -D multiplicationMode=blocked -D movieBlocks=4 -D userBlocks=4 switches to the blocked multiplication
+        // -D multiplicationMode=fused multiplies on the map side and writes summed scores
+        // -D hotMovies=... -D hotMovieSalts=8 salts the hot movies found by SkewSampler
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * @param args normalized matrix, rating history, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
         Job job = Job.getInstance(conf);
 
         job.setJarByClass(MatricesMultiplication.class);
 
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        Compression.compressOutput(job);
+        // SequenceFile writer checks the value class, so it has to be exactly what the reducer writes
+        job.setOutputKeyClass(UserMoviePair.class);
+        job.setOutputValueClass(DoubleWritable.class);
 
-        // add two mappers by ChainMapper
-        ChainMapper.addMapper(job, NormalizedCooccurrenceMatrixMapper.class,
-                LongWritable.class, Text.class, Text.class, Text.class, conf);
+        // -D multiplicationMode=fused multiplies and sums on the map side, see FusedMultiplicationMapper
+        // args: normalized matrix, output of DataDividerByUser, output
+        if (isFusedMode(conf)) {
+            job.getConfiguration().set("normalizedMatrix", args[0]);
+            // map the index slices written by the tasks of Normalization instead of reading the matrix in every
+            // task, none without -D writeNormalizedIndex=true
+            job.getConfiguration().setInt("normalizedIndexFiles",
+                    NormalizedMatrix.addCacheFiles(job, new Path(args[0]), NORMALIZED_INDEX_LINK));
+            job.setMapperClass(FusedMultiplicationMapper.class);
+            job.setNumReduceTasks(0);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            SequenceFileInputFormat.setInputPaths(job, new Path(args[1]));
+            SequenceFileOutputFormat.setOutputPath(job, new Path(args[2]));
+            return JobStats.waitForCompletion(job);
+        }
 
-        ChainMapper.addMapper(job, RatingHistoryMapper.class, Text.class,
-                Text.class, Text.class, Text.class, conf);
+        // -D multiplicationMode=blocked multiplies (movie block x user block) tiles, see NormalizedMatrixBlockMapper
+        if ("blocked".equals(conf.get("multiplicationMode", "column"))) {
+            job.setReducerClass(BlockMultiplicationReducer.class);
+            job.setMapOutputKeyClass(IntWritable.class);
+            job.setMapOutputValueClass(TileEntry.class);
+            MultipleInputs.addInputPath(job, new Path(args[0]), SequenceFileInputFormat.class,
+                    NormalizedMatrixBlockMapper.class);
+            MultipleInputs.addInputPath(job, new Path(args[1]), TextInputFormat.class, RatingBlockMapper.class);
+            SequenceFileOutputFormat.setOutputPath(job, new Path(args[2]));
+            return JobStats.waitForCompletion(job);
+        }
 
-        job.setMapperClass(NormalizedCooccurrenceMatrixMapper.class);
-        job.setMapperClass(RatingHistoryMapper.class);
+        // the two mappers are bound to their inputs by MultipleInputs below
         job.setReducerClass(MatriceMultiplicationReducer.class);
 
+        // -D hotMovies=10001,10005 -D hotMovieSalts=8 spreads these movies over 8 reducers each
+        if (conf.getInts("hotMovies").length > 0) {
+            job.setMapOutputKeyClass(LongWritable.class);
+            job.setMapOutputValueClass(RelationOrRating.class);
+            MultipleInputs.addInputPath(job, new Path(args[0]), SequenceFileInputFormat.class,
+                    SaltedNormalizedMatrixMapper.class);
+            MultipleInputs.addInputPath(job, new Path(args[1]), TextInputFormat.class,
+                    SaltedRatingHistoryMapper.class);
+            SequenceFileOutputFormat.setOutputPath(job, new Path(args[2]));
+            return JobStats.waitForCompletion(job);
+        }
 
         // mappers' output format are not the same as reducer's
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Text.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(DoubleWritable.class);
-
-
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Text.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(RelationOrRating.class);
 
         // method to add multiple input data source, declare input format in the method
-        MultipleInputs.addInputPath(job, new Path(args[0]), TextInputFormat.class,
-                NormalizedCooccurrenceMatrixMapper.class); // src/main/version2/output/normalization/part-r-00000
+        MultipleInputs.addInputPath(job, new Path(args[0]), SequenceFileInputFormat.class,
+                NormalizedCooccurrenceMatrixMapper.class); // src/main/version2/output/normalization/
         MultipleInputs.addInputPath(job, new Path(args[1]), TextInputFormat.class,
                 RatingHistoryMapper.class); // src/main/version2/raw_data/user_rating_history.txt
 
-        TextOutputFormat.setOutputPath(job, new Path(args[2])); // src/main/version2/output/matrices_multiplication/
+        SequenceFileOutputFormat.setOutputPath(job, new Path(args[2])); // src/main/version2/output/
+                                                                        // matrices_multiplication/
+
+        return JobStats.waitForCompletion(job);
+    }
 
-        job.waitForCompletion(true);
+    /**
+     * @return true if the multiplication is done on the map side against the loaded normalized matrix,
+     *         then the second input is the output of DataDividerByUser instead of the raw ratings
+     */
+    public static boolean isFusedMode(Configuration conf) {
+        return "fused".equals(conf.get("multiplicationMode", "column"));
     }
 }
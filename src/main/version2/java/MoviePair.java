@@ -0,0 +1,109 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Binary key of (movieA, movieB) which replaces the "movieA:movieB" Text key of one entry
+ * in the co-occurrence matrix (movieA on the row, movieB on the column).
+ * Serialized as two fixed width ints (8 bytes) so that keys can be compared on the raw bytes during shuffle.
+ */
+public class MoviePair implements WritableComparable<MoviePair> {
+    private int movieA;
+    private int movieB;
+
+    public MoviePair() {
+    }
+
+    public MoviePair(int movieA, int movieB) {
+        set(movieA, movieB);
+    }
+
+    public void set(int movieA, int movieB) {
+        this.movieA = movieA;
+        this.movieB = movieB;
+    }
+
+    public int getMovieA() {
+        return movieA;
+    }
+
+    public int getMovieB() {
+        return movieB;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(movieA);
+        out.writeInt(movieB);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        movieA = in.readInt();
+        movieB = in.readInt();
+    }
+
+    /**
+     * order by row movie first so that one whole row of the matrix is adjacent in the sorted output
+     */
+    @Override
+    public int compareTo(MoviePair other) {
+        if (movieA != other.movieA) {
+            return Integer.compare(movieA, other.movieA);
+        }
+        return Integer.compare(movieB, other.movieB);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MoviePair)) {
+            return false;
+        }
+        MoviePair other = (MoviePair) o;
+        return movieA == other.movieA && movieB == other.movieB;
+    }
+
+    /**
+     * used by HashPartitioner, so both fields must take part
+     */
+    @Override
+    public int hashCode() {
+        return movieA * 163 + movieB;
+    }
+
+    @Override
+    public String toString() {
+        return movieA + ":" + movieB;
+    }
+
+    /**
+     * compare serialized keys without deserializing them
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(MoviePair.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+        }
+    }
+
+    static {
+        WritableComparator.define(MoviePair.class, new Comparator());
+    }
+}
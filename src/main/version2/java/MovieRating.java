@@ -0,0 +1,59 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Binary value of (movie_id, rating) which replaces the "10001:5.0" Text value written by DataDividerMapper.
+ * The rating is kept as a float: ratings are given in steps of 0.5, which a float represents exactly,
+ * and it saves 4 bytes per record compared with a double.
+ */
+public class MovieRating implements Writable {
+    private int movieId;
+    private float rating;
+
+    public MovieRating() {
+    }
+
+    public MovieRating(int movieId, float rating) {
+        set(movieId, rating);
+    }
+
+    public void set(int movieId, float rating) {
+        this.movieId = movieId;
+        this.rating = rating;
+    }
+
+    public int getMovieId() {
+        return movieId;
+    }
+
+    public float getRating() {
+        return rating;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, movieId);
+        out.writeFloat(rating);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        movieId = WritableUtils.readVInt(in);
+        rating = in.readFloat();
+    }
+
+    @Override
+    public String toString() {
+        return movieId + ":" + rating;
+    }
+}
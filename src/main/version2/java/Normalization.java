@@ -1,18 +1,26 @@
 package main.version2.java;
 
+import main.common.java.Compression;
+import main.common.java.IntIntMap;
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * @author yifengguo
@@ -20,65 +28,241 @@ import java.util.Map;
 
 /**
  * read input from the output of CoccurrenceMatrixGenerator
- * cache each movie with all movies relation in a HashMap
+ * cache each movie with all movies relation in an IntIntMap
  * for each movie in the map, calculate and write the normalized relation between it and input key
+ *
+ * With -D cooccurrenceDelta and -D previousNormalization (set by IncrementalCooccurrence) only the rows movieA
+ * found in the co-occurrence delta are normalized again, all other rows are copied from the previous output.
+ *
+ * With -D writeNormalizedIndex=true every task which writes entries also writes them as its slice of the
+ * memory-mappable index of NormalizedMatrix in cleanup(), so the index is built in parallel by the tasks and not
+ * on the client. It is only written for the readers which map it: the fused mode of MatricesMultiplication and
+ * RecommendationQueryServer.
  */
 public class Normalization {
-    public static class NormalizationMapper extends Mapper<LongWritable, Text, Text, Text> {
+    /**
+     * named output of the rows copied from the previous normalization in incremental mode,
+     * written as unchanged-m-xxxxx next to the part-r-xxxxx files of the recomputed rows
+     */
+    static final String UNCHANGED_OUTPUT = "unchanged";
+
+    public static class NormalizationMapper extends Mapper<MoviePair, IntWritable, IntWritable, RelationOrRating> {
+        /**
+         * the input holds only the upper triangle movieA <= movieB of the symmetric matrix
+         */
+        boolean upperTriangle;
+        IntWritable outputKey = new IntWritable();
+        RelationOrRating outputValue = new RelationOrRating();
+
+        @Override
+        public void setup(Context context) throws IOException {
+            upperTriangle = context.getConfiguration().getBoolean("upperTriangle", false);
+        }
+
         /**
          * input:  output of CoccurrenceMatrixGenerator
-         * @param key  byte offset
-         * @param value movieA:movieB \t relation
+         * @param key  movieA:movieB
+         * @param value relation
          * @param context  key       value
-         *                movieA \t movieB:relation
+         *                movieA \t RELATION(movieB, relation)
+         *                movieB \t RELATION(movieA, relation)   only for the upper triangle, movieA != movieB
          */
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] tokens = value.toString().split("\t");
-            String movieA = tokens[0].split(":")[0];
-            String movieB = tokens[0].split(":")[1];
-            String relation = tokens[1];
-            context.write(new Text(movieA), new Text(movieB + ":" + relation));
+        public void map(MoviePair key, IntWritable value, Context context) throws IOException, InterruptedException {
+            outputKey.set(key.getMovieA());
+            outputValue.setRelation(key.getMovieB(), value.get());
+            context.write(outputKey, outputValue);
+            // restore the lower triangle entry movieB:movieA, which has the same relation
+            if (upperTriangle && key.getMovieA() != key.getMovieB()) {
+                outputKey.set(key.getMovieB());
+                outputValue.setRelation(key.getMovieA(), value.get());
+                context.write(outputKey, outputValue);
+            }
         }
     }
 
-    public static class NormalizationReducer extends Reducer<Text, Text, Text, Text> {
+    public static class NormalizationReducer extends Reducer<IntWritable, RelationOrRating, IntWritable, RelationOrRating> {
+        // key: movie, value: relation between the movie and key movieA, reused by every row
+        IntIntMap relationSumMap = new IntIntMap(64);
+        IntWritable outputKey = new IntWritable();
+        // entries of this reducer with -D writeNormalizedIndex=true, null otherwise
+        NormalizedMatrix.Builder indexSlice;
+
+        @Override
+        public void setup(Context context) {
+            if (context.getConfiguration().getBoolean("writeNormalizedIndex", false)) {
+                indexSlice = new NormalizedMatrix.Builder();
+            }
+        }
+
         /**
          * input of reducer:   movieA \t {movieA:relation1, movieB:relation2,...}
          * @param key movieA
          * @param values {movieA:relation1, movieB:relation2,...}
          * @param context  key:        movieB  (movies on the column direction)
-         *                 value:      movieA=normalized_relation  (movies on the row direction)
+         *                 value:      RELATION(movieA, normalized_relation)  (movies on the row direction)
          */
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            // key: movie, value: sum of relation for current movie and key movieA
-            Map<String, Integer> relationSumMap = new HashMap<>();
+        public void reduce(IntWritable key, Iterable<RelationOrRating> values, Context context)
+                throws IOException, InterruptedException {
+            relationSumMap.clear();
             int sum = 0;
             // cache each movie related to key movieA's relation sum in the map
             while (values.iterator().hasNext()) {
                 // values: {movieA:relaition1, movieB:relation2...movieX:relationX}
-                String[] movie_relation = values.iterator().next().toString().trim().split(":");
-                String movie_id = movie_relation[0];
-                int relation = Integer.parseInt(movie_relation[1]);
+                RelationOrRating movie_relation = values.iterator().next();
+                int relation = (int) movie_relation.getValue();
                 // in fact this process is to add one row relation sum in the cooccurrence matrix
                 sum += relation;
-                relationSumMap.put(movie_id, relation); // put the movie on the column with sum relation
-                                                        // because so far the cooccurrence_matrix is still symmetrical
+                relationSumMap.put(movie_relation.getId(), relation); // put the movie on the column with sum
+                                                        // relation because so far the cooccurrence_matrix is still
+                                                        // symmetrical
             }
 
-            for (Map.Entry<String, Integer> entry : relationSumMap.entrySet()) {
-                String outputKey = entry.getKey();  // output key: movieB id (movies on the column ->)
+            context.getCounter(PipelineCounter.ROWS_NORMALIZED).increment(1);
+            for (int entry = 0; entry < relationSumMap.size(); entry++) {
+                outputKey.set(relationSumMap.keyAt(entry));  // output key: movieB id (movies on the column ->)
                 // outputValue movieA=normalized_relation  (movieA represents movies on the row \)
                 // In this way, each entry in the normalized coocurrence matrix can be covered and written as well
-                String outputValue = key.toString() + "=" + (double)entry.getValue() / sum;
-                context.write(new Text(outputKey), new Text(outputValue));
+                RelationOrRating outputValue = RelationOrRating.relation(key.get(),
+                        (double) relationSumMap.valueAt(entry) / sum);
+                context.write(outputKey, outputValue);
+                if (indexSlice != null) {
+                    indexSlice.add(outputKey.get(), key.get(), outputValue.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            if (indexSlice != null) {
+                NormalizedMatrix.writeSlice(context, indexSlice);
             }
         }
     }
 
+    /**
+     * incremental mode: only the rows movieA touched by the co-occurrence delta go to the reducer
+     */
+    public static class ChangedRowsMapper extends NormalizationMapper {
+        int[] changedRows;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            super.setup(context);
+            Configuration conf = context.getConfiguration();
+            changedRows = readRows(conf, new Path(conf.get("cooccurrenceDelta")));
+        }
+
+        @Override
+        public void map(MoviePair key, IntWritable value, Context context) throws IOException, InterruptedException {
+            if (Arrays.binarySearch(changedRows, key.getMovieA()) >= 0) {
+                super.map(key, value, context);
+            }
+        }
+    }
+
+    /**
+     * incremental mode: copy the entries of the rows the delta did not touch from the previous normalization,
+     * their row sums did not change. They are written straight from the mapper and never shuffled.
+     */
+    public static class UnchangedRowsMapper
+            extends Mapper<IntWritable, RelationOrRating, IntWritable, RelationOrRating> {
+        int[] changedRows;
+        MultipleOutputs<IntWritable, RelationOrRating> unchanged;
+        // copied entries with -D writeNormalizedIndex=true, null otherwise
+        NormalizedMatrix.Builder indexSlice;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            changedRows = readRows(conf, new Path(conf.get("cooccurrenceDelta")));
+            unchanged = new MultipleOutputs<>(context);
+            if (conf.getBoolean("writeNormalizedIndex", false)) {
+                indexSlice = new NormalizedMatrix.Builder();
+            }
+        }
+
+        /**
+         * @param key movieB
+         * @param value RELATION(movieA, normalized_relation)
+         */
+        @Override
+        public void map(IntWritable key, RelationOrRating value, Context context)
+                throws IOException, InterruptedException {
+            if (Arrays.binarySearch(changedRows, value.getId()) < 0) {
+                unchanged.write(UNCHANGED_OUTPUT, key, value);
+                if (indexSlice != null) {
+                    indexSlice.add(key.get(), value.getId(), value.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            unchanged.close();
+            if (indexSlice != null) {
+                NormalizedMatrix.writeSlice(context, indexSlice);
+            }
+        }
+    }
+
+    /**
+     * @param delta output of the delta job of IncrementalCooccurrence, movieA:movieB -> count
+     * @return sorted distinct movieA of the delta, the rows whose sums changed
+     */
+    static int[] readRows(Configuration conf, Path delta) throws IOException {
+        FileSystem fs = delta.getFileSystem(conf);
+        int size = 0;
+        int[] rows = new int[1024];
+        MoviePair key = new MoviePair();
+        IntWritable value = new IntWritable();
+        for (FileStatus part : fs.listStatus(delta)) {
+            if (!part.getPath().getName().startsWith("part-")) {
+                continue;
+            }
+            SequenceFile.Reader.Option file = SequenceFile.Reader.file(part.getPath());
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, file)) {
+                while (reader.next(key, value)) {
+                    // keys of one part are sorted by movieA, so skip the repeats cheaply
+                    if (size > 0 && rows[size - 1] == key.getMovieA()) {
+                        continue;
+                    }
+                    if (size == rows.length) {
+                        rows = Arrays.copyOf(rows, size * 2);
+                    }
+                    rows[size++] = key.getMovieA();
+                }
+            }
+        }
+        rows = Arrays.copyOf(rows, size);
+        Arrays.sort(rows);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || rows[distinct - 1] != rows[i]) {
+                rows[distinct++] = rows[i];
+            }
+        }
+        return Arrays.copyOf(rows, distinct);
+    }
+
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        // -D cooccurrenceDelta=... -D previousNormalization=... renormalizes only the rows of the delta,
+        // see IncrementalCooccurrence
+        // -D writeNormalizedIndex=true writes the index slices of NormalizedMatrix, e.g. for RecommendationQueryServer
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * @param args input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
+        // an upper triangle written by CooccurrenceMatrixGenerator in triangular mode is mirrored by the mapper
+        conf.setBoolean("upperTriangle", CooccurrenceMatrixGenerator.isUpperTriangle(conf, new Path(args[0])));
         Job job = Job.getInstance(conf);
 
         job.setMapperClass(NormalizationMapper.class);
@@ -86,17 +270,33 @@ public class Normalization {
 
         job.setJarByClass(Normalization.class);
 
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        // the unchanged-m-xxxxx files of the incremental mode as well, MultipleOutputs uses the job configuration
+        Compression.compressOutput(job);
+
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(RelationOrRating.class);
 
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        if (conf.get("cooccurrenceDelta") != null) {
+            // recompute the rows of the delta from the merged matrix, copy the other rows from the previous output
+            job.setMapOutputKeyClass(IntWritable.class);
+            job.setMapOutputValueClass(RelationOrRating.class);
+            MultipleInputs.addInputPath(job, new Path(args[0]), SequenceFileInputFormat.class,
+                    ChangedRowsMapper.class);
+            MultipleInputs.addInputPath(job, new Path(conf.get("previousNormalization")),
+                    SequenceFileInputFormat.class, UnchangedRowsMapper.class);
+            MultipleOutputs.addNamedOutput(job, UNCHANGED_OUTPUT, SequenceFileOutputFormat.class,
+                    IntWritable.class, RelationOrRating.class);
+            SequenceFileOutputFormat.setOutputPath(job, new Path(args[1]));
+            return JobStats.waitForCompletion(job);
+        }
 
-        TextInputFormat.setInputPaths(job, new Path(args[0])); // src/main/version2/output/cooccurrence_matrix_generator
-                                                               // /part-r-00000
-        TextOutputFormat.setOutputPath(job, new Path(args[1]));
+        SequenceFileInputFormat.setInputPaths(job, new Path(args[0])); // src/main/version2/output/
+                                                                       // cooccurrence_matrix_generator/
+        SequenceFileOutputFormat.setOutputPath(job, new Path(args[1]));
         // src/main/version2/output/normalization/
 
-        job.waitForCompletion(true);
+        return JobStats.waitForCompletion(job);
     }
 }
@@ -0,0 +1,388 @@
+package main.version2.java;
+
+import main.common.java.IntSectionFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * The normalized co-occurrence matrix held in memory by column, used by the fused mode of
+ * MatricesMultiplication which multiplies on the map side.
+ * Read from the output of Normalization (or of CooccurrenceMatrixGenerator in stripes mode), which is
+ * already keyed by the column movieB. Movie ids are mapped to their position in the sorted array movies and
+ * the entries of column b are rows[colStart[b]] .. rows[colStart[b + 1] - 1] with the normalized relation at
+ * the same position of values. The relations are kept as the doubles of the output, so the fused mode multiplies
+ * the same partial scores as the other modes of MatricesMultiplication and gives the same total scores.
+ *
+ * The matrix of the last loaded path is kept in a static field, so tasks which share a JVM, e.g. all tasks of
+ * the LocalJobRunner, read it once. It is read again when the modification time of the path changed.
+ * {@link #loadOffHeap(Configuration, Path)} copies the arrays into direct buffers instead, which long running
+ * readers like RecommendationQueryServer use to keep the matrix out of the garbage collected heap.
+ *
+ * With -D writeNormalizedIndex=true every task of Normalization which writes entries of the matrix (and every
+ * reducer of CooccurrenceMatrixGenerator in stripes mode) also writes the matrix of its own entries into the
+ * output as an IntSectionFile with the sections movies, colStart, rows and the double bits of values, one slice
+ * per task named after it: _normalized.idx-r-00000, ... The index is built in the tasks and never passes through
+ * the client, the Driver asks for it in fused mode only.
+ * {@link #map(File...)} maps the slices and concatenates them into one matrix. An index of one slice, the
+ * output of one reducer, is used as it is mapped, so a reader allocates nothing per entry and setup() does not
+ * depend on the size of the matrix; more slices are merged on the heap once per task, which still reads no
+ * SequenceFile.
+ */
+public class NormalizedMatrix {
+    /**
+     * prefix of the index slices in the output of Normalization, FileInputFormat skips files starting with "_"
+     */
+    public static final String INDEX_FILE = "_normalized.idx";
+
+    private static Path cachedPath;
+    private static long cachedModificationTime;
+    private static NormalizedMatrix cached;
+
+    private final IntBuffer movies;
+    private final IntBuffer colStart;
+    private final IntBuffer rows;
+    private final DoubleBuffer values;
+    /**
+     * movies is 0 .. N - 1, which is the case for the dense ids of IdDictionary, so a movie id is its index
+     */
+    private final boolean denseIds;
+
+    private NormalizedMatrix(IntBuffer movies, IntBuffer colStart, IntBuffer rows, DoubleBuffer values) {
+        this.movies = movies;
+        this.colStart = colStart;
+        this.rows = rows;
+        this.values = values;
+        // sorted distinct ids starting at 0 are 0 .. N - 1 exactly when the last one is N - 1
+        int n = movies.limit();
+        this.denseIds = n > 0 && movies.get(0) == 0 && movies.get(n - 1) == n - 1;
+    }
+
+    /**
+     * @param path output directory of Normalization, movieB -> RELATION(movieA, normalized_relation)
+     */
+    public static synchronized NormalizedMatrix load(Configuration conf, Path path) throws IOException {
+        // a directory written again by a later run gets a new modification time
+        long modificationTime = path.getFileSystem(conf).getFileStatus(path).getModificationTime();
+        if (cached == null || !path.equals(cachedPath) || modificationTime != cachedModificationTime) {
+            cached = read(conf, path);
+            cachedPath = path;
+            cachedModificationTime = modificationTime;
+        }
+        return cached;
+    }
+
+    /**
+     * read the matrix into direct buffers, not cached
+     */
+    public static NormalizedMatrix loadOffHeap(Configuration conf, Path path) throws IOException {
+        NormalizedMatrix matrix = read(conf, path);
+        return new NormalizedMatrix(toDirect(matrix.movies), toDirect(matrix.colStart), toDirect(matrix.rows),
+                toDirect(matrix.values));
+    }
+
+    private static IntBuffer toDirect(IntBuffer heap) {
+        IntBuffer direct = ByteBuffer.allocateDirect(heap.limit() * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        direct.put(heap).flip();
+        return direct;
+    }
+
+    private static DoubleBuffer toDirect(DoubleBuffer heap) {
+        DoubleBuffer direct = ByteBuffer.allocateDirect(heap.limit() * 8).order(ByteOrder.nativeOrder())
+                .asDoubleBuffer();
+        direct.put(heap).flip();
+        return direct;
+    }
+
+    /**
+     * @return name of the index slice which the task writes into the output of the job
+     */
+    public static String sliceFile(TaskID task) {
+        return String.format("%s-%s-%05d", INDEX_FILE, task.getTaskType() == TaskType.MAP ? "m" : "r",
+                task.getId());
+    }
+
+    /**
+     * write the matrix of the entries of the task as its slice of the index, into the output of the task attempt
+     * which is moved into the job output when the task commits
+     */
+    public static void writeSlice(TaskInputOutputContext<?, ?, ?, ?> context, Builder entries)
+            throws IOException, InterruptedException {
+        Path slice = new Path(FileOutputFormat.getWorkOutputPath(context),
+                sliceFile(context.getTaskAttemptID().getTaskID()));
+        entries.build().write(slice.getFileSystem(context.getConfiguration()), slice);
+    }
+
+    /**
+     * @return the index slices in a local output directory of Normalization, sorted by name
+     */
+    public static File[] indexSlices(File matrix) {
+        File[] slices = matrix.listFiles((dir, name) -> name.startsWith(INDEX_FILE + "-"));
+        if (slices == null) {
+            return new File[0];
+        }
+        Arrays.sort(slices);
+        return slices;
+    }
+
+    /**
+     * add the index slices in the output of Normalization to the distributed cache of the job, linked into the
+     * working directory of the tasks as link-0, link-1, ...
+     * @return number of slices, 0 if Normalization ran without -D writeNormalizedIndex=true
+     */
+    public static int addCacheFiles(Job job, Path matrix, String link) throws IOException {
+        FileSystem fs = matrix.getFileSystem(job.getConfiguration());
+        FileStatus[] slices = fs.globStatus(new Path(matrix, INDEX_FILE + "-*"));
+        if (slices == null) {
+            return 0;
+        }
+        Arrays.sort(slices);
+        for (int s = 0; s < slices.length; s++) {
+            job.addCacheFile(URI.create(fs.makeQualified(slices[s].getPath()).toUri() + "#" + link + "-" + s));
+        }
+        return slices.length;
+    }
+
+    /**
+     * map the index slices linked by {@link #addCacheFiles(Job, Path, String)}
+     */
+    public static NormalizedMatrix mapCacheFiles(String link, int slices) throws IOException {
+        File[] files = new File[slices];
+        for (int s = 0; s < slices; s++) {
+            files[s] = new File(link + "-" + s);
+        }
+        return map(files);
+    }
+
+    /**
+     * map index slices written by {@link #write(FileSystem, Path)} and concatenate them, one slice is used as
+     * it is mapped
+     */
+    public static NormalizedMatrix map(File... slices) throws IOException {
+        NormalizedMatrix[] mapped = new NormalizedMatrix[slices.length];
+        for (int s = 0; s < slices.length; s++) {
+            ByteBuffer[] sections = IntSectionFile.mapBytes(slices[s]);
+            mapped[s] = new NormalizedMatrix(sections[0].asIntBuffer(), sections[1].asIntBuffer(),
+                    sections[2].asIntBuffer(), sections[3].asDoubleBuffer());
+        }
+        return mapped.length == 1 ? mapped[0] : concat(mapped);
+    }
+
+    /**
+     * the matrix of the entries of all slices, a slice holds any subset of the entries
+     */
+    private static NormalizedMatrix concat(NormalizedMatrix[] slices) {
+        int total = 0;
+        int entries = 0;
+        for (NormalizedMatrix slice : slices) {
+            total += slice.movieCount();
+            entries += slice.rows.limit();
+        }
+        int[] movies = new int[total];
+        int filled = 0;
+        for (NormalizedMatrix slice : slices) {
+            for (int i = 0; i < slice.movieCount(); i++) {
+                movies[filled++] = slice.movieAt(i);
+            }
+        }
+        Arrays.sort(movies);
+        int distinct = 0;
+        for (int i = 0; i < total; i++) {
+            if (distinct == 0 || movies[distinct - 1] != movies[i]) {
+                movies[distinct++] = movies[i];
+            }
+        }
+        movies = Arrays.copyOf(movies, distinct);
+
+        // position of every movie of a slice in movies, and the length of every column
+        int[][] positions = new int[slices.length][];
+        int[] colStart = new int[distinct + 1];
+        for (int s = 0; s < slices.length; s++) {
+            NormalizedMatrix slice = slices[s];
+            positions[s] = new int[slice.movieCount()];
+            for (int i = 0; i < slice.movieCount(); i++) {
+                positions[s][i] = Arrays.binarySearch(movies, slice.movieAt(i));
+                colStart[positions[s][i] + 1] += slice.colEnd(i) - slice.colStart(i);
+            }
+        }
+        for (int b = 0; b < distinct; b++) {
+            colStart[b + 1] += colStart[b];
+        }
+        int[] next = Arrays.copyOf(colStart, distinct);
+        int[] rows = new int[entries];
+        double[] values = new double[entries];
+        for (int s = 0; s < slices.length; s++) {
+            NormalizedMatrix slice = slices[s];
+            for (int i = 0; i < slice.movieCount(); i++) {
+                int b = positions[s][i];
+                for (int k = slice.colStart(i); k < slice.colEnd(i); k++) {
+                    int j = next[b]++;
+                    rows[j] = positions[s][slice.rowAt(k)];
+                    values[j] = slice.values.get(k);
+                }
+            }
+        }
+        return new NormalizedMatrix(IntBuffer.wrap(movies), IntBuffer.wrap(colStart), IntBuffer.wrap(rows),
+                DoubleBuffer.wrap(values));
+    }
+
+    public void write(FileSystem fs, Path path) throws IOException {
+        int[] valueBits = new int[values.limit() * 2];
+        for (int k = 0; k < values.limit(); k++) {
+            long bits = Double.doubleToLongBits(values.get(k));
+            valueBits[2 * k] = (int) (bits >>> 32);
+            valueBits[2 * k + 1] = (int) bits;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(path, true)))) {
+            IntSectionFile.write(out, movies, colStart, rows, IntBuffer.wrap(valueBits));
+        }
+    }
+
+    private static NormalizedMatrix read(Configuration conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        Builder entries = new Builder();
+        IntWritable key = new IntWritable();
+        RelationOrRating value = new RelationOrRating();
+        for (FileStatus part : fs.listStatus(path)) {
+            // part-r-xxxxx, plus unchanged-m-xxxxx of the incremental mode of Normalization
+            String name = part.getPath().getName();
+            if (name.startsWith("_") || name.startsWith(".")) {
+                continue;
+            }
+            SequenceFile.Reader.Option file = SequenceFile.Reader.file(part.getPath());
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, file)) {
+                while (reader.next(key, value)) {
+                    entries.add(key.get(), value.getId(), value.getValue());
+                }
+            }
+        }
+        return entries.build();
+    }
+
+    /**
+     * Collects the entries of the matrix in any order, used by read() and by the tasks which write an index slice
+     */
+    public static class Builder {
+        private int size = 0;
+        private int[] movieB = new int[1024];
+        private int[] movieA = new int[1024];
+        private double[] relation = new double[1024];
+
+        /**
+         * @param movieB column
+         * @param movieA row
+         */
+        public void add(int movieB, int movieA, double normalizedRelation) {
+            if (size == this.movieB.length) {
+                this.movieB = Arrays.copyOf(this.movieB, size * 2);
+                this.movieA = Arrays.copyOf(this.movieA, size * 2);
+                relation = Arrays.copyOf(relation, size * 2);
+            }
+            this.movieB[size] = movieB;
+            this.movieA[size] = movieA;
+            relation[size] = normalizedRelation;
+            size++;
+        }
+
+        public NormalizedMatrix build() {
+            int[] movies = new int[size * 2];
+            System.arraycopy(movieB, 0, movies, 0, size);
+            System.arraycopy(movieA, 0, movies, size, size);
+            Arrays.sort(movies);
+            int distinct = 0;
+            for (int i = 0; i < movies.length; i++) {
+                if (distinct == 0 || movies[distinct - 1] != movies[i]) {
+                    movies[distinct++] = movies[i];
+                }
+            }
+            movies = Arrays.copyOf(movies, distinct);
+
+            // counting sort of the entries by column
+            int[] col = new int[size];
+            int[] colStart = new int[distinct + 1];
+            for (int i = 0; i < size; i++) {
+                col[i] = Arrays.binarySearch(movies, movieB[i]);
+                colStart[col[i] + 1]++;
+            }
+            for (int b = 0; b < distinct; b++) {
+                colStart[b + 1] += colStart[b];
+            }
+            int[] next = Arrays.copyOf(colStart, distinct);
+            int[] rows = new int[size];
+            double[] values = new double[size];
+            for (int i = 0; i < size; i++) {
+                int k = next[col[i]]++;
+                rows[k] = Arrays.binarySearch(movies, movieA[i]);
+                values[k] = relation[i];
+            }
+            return new NormalizedMatrix(IntBuffer.wrap(movies), IntBuffer.wrap(colStart), IntBuffer.wrap(rows),
+                    DoubleBuffer.wrap(values));
+        }
+    }
+
+    /**
+     * number of distinct movies, the range of the dense movie index
+     */
+    public int movieCount() {
+        return movies.limit();
+    }
+
+    /**
+     * @return dense index of the movie, or a negative value if it is not in the matrix
+     */
+    public int indexOf(int movieId) {
+        if (denseIds) {
+            return movieId >= 0 && movieId < movies.limit() ? movieId : -1;
+        }
+        return IntSectionFile.binarySearch(movies, 0, movies.limit(), movieId);
+    }
+
+    public int movieAt(int index) {
+        return movies.get(index);
+    }
+
+    /**
+     * first entry of column b, iterate entries up to {@link #colEnd(int)}
+     */
+    public int colStart(int b) {
+        return colStart.get(b);
+    }
+
+    public int colEnd(int b) {
+        return colStart.get(b + 1);
+    }
+
+    /**
+     * @return dense index of movieA of entry k
+     */
+    public int rowAt(int k) {
+        return rows.get(k);
+    }
+
+    public double valueAt(int k) {
+        return values.get(k);
+    }
+}
@@ -0,0 +1,110 @@
+package main.version2.java;
+
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Open addressing hash map from a (movieA, movieB) pair to an int count, used for in-mapper combining.
+ * Both movie ids are packed into one long key and stored in primitive arrays with linear probing,
+ * so counting a pair allocates nothing unless the table has to grow.
+ * A slot whose count is 0 is empty, which is safe because a stored pair is always counted at least once.
+ */
+public class PairCountMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] counts;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public PairCountMap(int expectedPairs) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedPairs / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * add delta to the count of pair (movieA, movieB)
+     */
+    public void add(int movieA, int movieB, int delta) {
+        long key = ((long) movieA << 32) | (movieB & 0xffffffffL);
+        int slot = slotOf(key);
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                counts[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        counts[slot] = delta;
+        if (++size > threshold) {
+            rehash();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * number of slots, iterate with {@link #countAt(int)} and skip the slots whose count is 0
+     */
+    public int capacity() {
+        return counts.length;
+    }
+
+    public int countAt(int slot) {
+        return counts[slot];
+    }
+
+    public int movieAAt(int slot) {
+        return (int) (keys[slot] >>> 32);
+    }
+
+    public int movieBAt(int slot) {
+        return (int) keys[slot];
+    }
+
+    /**
+     * drop all pairs but keep the allocated table for the next round
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    private int slotOf(long key) {
+        // spread the bits of both movie ids (murmur3 finalizer)
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(oldCounts.length << 1);
+        for (int i = 0; i < oldCounts.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = slotOf(oldKeys[i]);
+                while (counts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package main.version2.java;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Open addressing hash map from a (user_id, movie_id) pair to a double score, used to pre-aggregate the
+ * partial scores of one tile in the blocked mode of MatricesMultiplication. Scores are summed in fixed point
+ * (see FixedPointScore), so the total of a pair does not depend on the order of the tile.
+ * Same layout as {@link PairCountMap}: both ids are packed into one long key and stored in primitive arrays
+ * with linear probing. A score can be 0, so used slots are marked separately.
+ * The slot of every pair is remembered like the columns of RowAccumulator, so iterating and clearing cost the
+ * number of pairs and not the capacity, which stays at the largest tile or user seen so far.
+ */
+public class PairScoreMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private long[] scores;
+    private boolean[] used;
+    // slot of every pair in the order they were added
+    private int[] entries;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public PairScoreMap(int expectedPairs) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedPairs / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        scores = new long[capacity];
+        used = new boolean[capacity];
+        entries = new int[threshold(capacity) + 1];
+        mask = capacity - 1;
+        threshold = threshold(capacity);
+    }
+
+    private static int threshold(int capacity) {
+        return (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * add delta to the score of pair (userId, movieId)
+     */
+    public void add(int userId, int movieId, double delta) {
+        long key = ((long) userId << 32) | (movieId & 0xffffffffL);
+        int slot = slotOf(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                scores[slot] += FixedPointScore.of(delta);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        scores[slot] = FixedPointScore.of(delta);
+        used[slot] = true;
+        entries[size] = slot;
+        if (++size > threshold) {
+            rehash();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i pair 0 .. size() - 1, in the order the pairs were added
+     */
+    public int userIdAt(int i) {
+        return (int) (keys[entries[i]] >>> 32);
+    }
+
+    public int movieIdAt(int i) {
+        return (int) keys[entries[i]];
+    }
+
+    public double scoreAt(int i) {
+        return FixedPointScore.toDouble(scores[entries[i]]);
+    }
+
+    /**
+     * drop all pairs but keep the allocated table for the next tile, only the used slots are reset
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            used[entries[i]] = false;
+        }
+        size = 0;
+    }
+
+    private int slotOf(long key) {
+        // spread the bits of both ids (murmur3 finalizer)
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldScores = scores;
+        int[] oldEntries = entries;
+        allocate(keys.length << 1);
+        for (int i = 0; i < size; i++) {
+            int old = oldEntries[i];
+            int slot = slotOf(oldKeys[old]);
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[old];
+            scores[slot] = oldScores[old];
+            used[slot] = true;
+            entries[i] = slot;
+        }
+    }
+}
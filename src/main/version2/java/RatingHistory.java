@@ -0,0 +1,98 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Binary value of all (movie_id, rating) of one user, which replaces the "10001:5.0,10002:3.0" Text value
+ * written by DataDividerByUser.
+ * Backed by two parallel primitive arrays which are reused across readFields() calls.
+ * Ratings are floats for the same reason as in {@link MovieRating}.
+ */
+public class RatingHistory implements Writable {
+    private int size;
+    private int[] movieIds = new int[16];
+    private float[] ratings = new float[16];
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(int movieId, float rating) {
+        if (size == movieIds.length) {
+            grow(size * 2);
+        }
+        movieIds[size] = movieId;
+        ratings[size] = rating;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMovieId(int i) {
+        return movieIds[i];
+    }
+
+    public float getRating(int i) {
+        return ratings[i];
+    }
+
+    public void setRating(int i, float rating) {
+        ratings[i] = rating;
+    }
+
+    private void grow(int capacity) {
+        movieIds = Arrays.copyOf(movieIds, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+    }
+
+    /**
+     * format: vint size, then size * (vint movie_id, float rating)
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, size);
+        for (int i = 0; i < size; i++) {
+            WritableUtils.writeVInt(out, movieIds[i]);
+            out.writeFloat(ratings[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        size = WritableUtils.readVInt(in);
+        if (size > movieIds.length) {
+            grow(size);
+        }
+        for (int i = 0; i < size; i++) {
+            movieIds[i] = WritableUtils.readVInt(in);
+            ratings[i] = in.readFloat();
+        }
+    }
+
+    /**
+     * same layout as the old Text value: movie1:rating1,movie2:rating2,...
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(movieIds[i]).append(":").append(ratings[i]);
+        }
+        return sb.toString();
+    }
+}
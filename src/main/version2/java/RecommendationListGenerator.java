@@ -1,23 +1,33 @@
 package main.version2.java;
 
+import main.common.java.JobStats;
+import main.common.java.PipelineCounter;
+import main.common.java.TextFields;
+import main.common.java.TopKHeap;
+import main.common.java.WatchedIndex;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.URI;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -25,78 +35,81 @@ import java.util.Map;
  */
 @SuppressWarnings("Duplicates")
 public class RecommendationListGenerator {
-    public static class RecommendationMapper extends Mapper<LongWritable, Text, Text, Text> {
+    /**
+     * name of the watched index in the working directory of a task
+     */
+    static final String WATCHED_INDEX_LINK = "watched.idx";
 
-        Map<Integer, List<Integer>> watchHistoryMap = new HashMap<>();
+    public static class RecommendationMapper
+            extends Mapper<UserMoviePair, DoubleWritable, UserMoviePair, DoubleWritable> {
+
+        // watched movies of every user
+        WatchedIndex watchHistory;
+        Counter watchedHits;
+        Counter watchedMisses;
 
         @Override
         public void setup(Context context) throws IOException {
+            watchedHits = context.getCounter(PipelineCounter.WATCHED_FILTER_HITS);
+            watchedMisses = context.getCounter(PipelineCounter.WATCHED_FILTER_MISSES);
             Configuration conf = context.getConfiguration();
-            String filePath = conf.get("watchHistory");
-            Path path = new Path(filePath);
-            FileSystem fs = FileSystem.get(conf);
-            BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
-            String line = "";
-            while ((line = br.readLine()) != null) {
-                String[] tokens = line.trim().split(",");
-                int user_id = Integer.parseInt(tokens[0]);
-                int movie_id = Integer.parseInt(tokens[1]);
-                if (watchHistoryMap.containsKey(user_id)) {
-                    watchHistoryMap.get(user_id).add(movie_id);
-                } else {
-                    List<Integer> list = new ArrayList<>();
-                    list.add(movie_id);
-                    watchHistoryMap.put(user_id, list);
-                }
+            int indexFiles = conf.getInt("watchedIndexFiles", 0);
+            if (indexFiles > 0) {
+                // index files of DataDividerByUser, linked into the working directory by the distributed cache
+                watchHistory = WatchedIndex.mapCacheFiles(WATCHED_INDEX_LINK, indexFiles);
+            } else {
+                watchHistory = WatchedIndex.load(conf, new Path(conf.get("watchHistory")));
             }
-            br.close();
         }
 
         /**
          *
-         * @param key byte offset
-         * @param value user_id:movie_id \t partial_score
+         * @param key user_id:movie_id
+         * @param value partial_score
          *
-         *                  key             value
-         * @param context user_id   \t  unwatched_movie_id : score
+         *                  key                          value
+         * @param context user_id : unwatched_movie_id  \t  partial_score
          */
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] tokens = value.toString().trim().split("\t");
-            int user_id = Integer.parseInt(tokens[0].split(":")[0]);
-            int movie_id = Integer.parseInt(tokens[0].split(":")[1]);
-            String partial_score = tokens[1];
+        public void map(UserMoviePair key, DoubleWritable value, Context context)
+                throws IOException, InterruptedException {
             // filter out watched ones
-            if (watchHistoryMap.get(user_id).contains(movie_id)) {
+            if (watchHistory.contains(key.getUserId(), key.getMovieId())) {
+                watchedHits.increment(1);
                 return;
             }
-            context.write(new Text(user_id + ":" + movie_id), new Text(partial_score));
+            watchedMisses.increment(1);
+            context.write(key, value);
         }
     }
 
-    public static class RecommendationReducer extends Reducer<Text, Text, Text, Text> {
-        // movie_id -> movie_title
-        Map<Integer, String> movieTitleMap = new HashMap<>();
+    public static class RecommendationReducer extends Reducer<UserMoviePair, DoubleWritable, Text, Text> {
+        // user_id and movie_title of the ids of the pipeline
+        ExternalIds externalIds;
+        DecimalFormat df = new DecimalFormat("#.00");
+        /**
+         * top-K mode: K best movies of the current user, written when the next user starts and in cleanup().
+         * Keys arrive sorted by user_id and then movie_id and UserPartitioner keeps each user on one reducer.
+         */
+        TopKHeap topK;
+        int currentUser;
+        Counter missingTitles;
+        PartialScores partialScores = new PartialScores();
+        // reused for every record written
+        Text outputKey = new Text();
+        Text outputValue = new Text();
 
         @Override
         public void setup(Context context) throws IOException {
+            missingTitles = context.getCounter(PipelineCounter.MISSING_TITLES);
             // store data in SQL in practical job
             // read movie titles from the file
             Configuration conf = context.getConfiguration();
-            String filePath = conf.get("movieTitles");
-            Path path = new Path(filePath);
-            FileSystem fs = FileSystem.get(conf);
-            BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                // input format :    movie_id,movie_name
-                String[] tokens = line.trim().split(",");
-                int movie_id = Integer.parseInt(tokens[0]);
-                String movie_name = tokens[1];
-                movieTitleMap.put(movie_id, movie_name);
+            int k = conf.getInt("topK", 0);
+            if (k > 0) {
+                topK = new TopKHeap(k);
             }
-            br.close();
+            externalIds = ExternalIds.load(conf);
         }
 
         /**
@@ -106,44 +119,360 @@ public class RecommendationListGenerator {
          * @param context user_id  \t  movie_title : total_score
          */
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            double total_score = 0.0;
-            String user_id = key.toString().split(":")[0];
-            String movie_title = movieTitleMap.get(Integer.parseInt(key.toString().split(":")[1]));
-            for (Text value : values) {
-                total_score += Double.parseDouble(value.toString());
+        public void reduce(UserMoviePair key, Iterable<DoubleWritable> values, Context context)
+                throws IOException, InterruptedException {
+            partialScores.clear();
+            for (DoubleWritable value : values) {
+                partialScores.add(value.get());
+            }
+            double total_score = partialScores.sum();
+            if (topK != null) {
+                if (topK.size() > 0 && key.getUserId() != currentUser) {
+                    writeTopK(context);
+                }
+                currentUser = key.getUserId();
+                topK.offer(key.getMovieId(), total_score);
+                return;
+            }
+            write(key.getUserId(), key.getMovieId(), total_score, context);
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            if (topK != null && topK.size() > 0) {
+                writeTopK(context);
+            }
+        }
+
+        /**
+         * write the kept movies of currentUser from the highest score to the lowest
+         */
+        private void writeTopK(Context context) throws IOException, InterruptedException {
+            topK.sortDescending();
+            for (int rank = 0; rank < topK.size(); rank++) {
+                write(currentUser, topK.movieAt(rank), topK.scoreAt(rank), context);
+            }
+            topK.clear();
+        }
+
+        private void write(int userId, int movieId, double total_score, Context context)
+                throws IOException, InterruptedException {
+            String movie_title = externalIds.title(movieId);
+            if (movie_title == null) {
+                missingTitles.increment(1);
             }
             // format total score
-            DecimalFormat df = new DecimalFormat("#.00");
             total_score = Double.valueOf(df.format(total_score));
-            context.write(new Text(user_id), new Text(movie_title + ":" + total_score));
+            outputKey.set(externalIds.user(userId));
+            outputValue.set(movie_title + ":" + total_score);
+            context.write(outputKey, outputValue);
         }
     }
 
+    /**
+     * join mode: instead of loading the watched movies of all users in every mapper, the rating history is
+     * another input of the job and the filter is a reduce-side join keyed by user, so a reducer only holds
+     * the records of the user it is reducing
+     */
+    public static class PartialScoreJoinMapper
+            extends Mapper<UserMoviePair, DoubleWritable, TaggedUserMoviePair, DoubleWritable> {
+        TaggedUserMoviePair outputKey = new TaggedUserMoviePair();
+
+        /**
+         * @param key user_id:movie_id
+         * @param value partial_score
+         * @param context key: user_id:movie_id:SCORE   value: partial_score
+         */
+        @Override
+        public void map(UserMoviePair key, DoubleWritable value, Context context)
+                throws IOException, InterruptedException {
+            outputKey.set(key.getUserId(), key.getMovieId(), TaggedUserMoviePair.SCORE);
+            context.write(outputKey, value);
+        }
+    }
+
+    public static class WatchedJoinMapper extends Mapper<LongWritable, Text, TaggedUserMoviePair, DoubleWritable> {
+        static final DoubleWritable marker = new DoubleWritable(0);
+        TextFields fields = new TextFields();
+        TaggedUserMoviePair outputKey = new TaggedUserMoviePair();
+
+        /**
+         * @param key byte offset
+         * @param value line of user_rating_history.txt   user_id,movie_id,rating
+         * @param context key: user_id:movie_id:WATCHED   value: unused marker
+         */
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            fields.split(value, ',');
+            if (fields.size() < 3) {
+                context.getCounter(PipelineCounter.MALFORMED_LINES).increment(1);
+                return;
+            }
+            outputKey.set(fields.intAt(0), fields.intAt(1), TaggedUserMoviePair.WATCHED);
+            context.write(outputKey, marker);
+        }
+    }
+
+    public static class RecommendationJoinReducer
+            extends Reducer<TaggedUserMoviePair, DoubleWritable, Text, Text> {
+        // user_id and movie_title of the ids of the pipeline
+        ExternalIds externalIds;
+        DecimalFormat df = new DecimalFormat("#.00");
+        TopKHeap topK;
+        Counter watchedHits;
+        Counter watchedMisses;
+        Counter missingTitles;
+        PartialScores partialScores = new PartialScores();
+        // reused for every record written
+        Text outputKey = new Text();
+        Text outputValue = new Text();
+
+        @Override
+        public void setup(Context context) throws IOException {
+            watchedHits = context.getCounter(PipelineCounter.WATCHED_FILTER_HITS);
+            watchedMisses = context.getCounter(PipelineCounter.WATCHED_FILTER_MISSES);
+            missingTitles = context.getCounter(PipelineCounter.MISSING_TITLES);
+            Configuration conf = context.getConfiguration();
+            int k = conf.getInt("topK", 0);
+            if (k > 0) {
+                topK = new TopKHeap(k);
+            }
+            externalIds = ExternalIds.load(conf);
+        }
+
+        /**
+         * all records of one user, sorted by movie_id and with the WATCHED marker of a movie before its scores.
+         * The framework updates key while values are iterated, so key always belongs to the current value.
+         * @param key user_id:movie_id:tag
+         * @param values partial scores and watched markers
+         * @param context user_id  \t  movie_title : total_score   for every unwatched movie
+         */
+        @Override
+        public void reduce(TaggedUserMoviePair key, Iterable<DoubleWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int userId = key.getUserId();
+            int movieId = key.getMovieId();
+            boolean watched = false;
+            partialScores.clear();
+            for (DoubleWritable value : values) {
+                if (key.getMovieId() != movieId) {
+                    // all records of the previous movie are seen
+                    if (partialScores.size() > 0 && !watched) {
+                        emit(userId, movieId, partialScores.sum(), context);
+                    }
+                    (watched ? watchedHits : watchedMisses).increment(partialScores.size());
+                    movieId = key.getMovieId();
+                    watched = false;
+                    partialScores.clear();
+                }
+                if (key.isWatched()) {
+                    watched = true;
+                } else {
+                    partialScores.add(value.get());
+                }
+            }
+            if (partialScores.size() > 0 && !watched) {
+                emit(userId, movieId, partialScores.sum(), context);
+            }
+            (watched ? watchedHits : watchedMisses).increment(partialScores.size());
+            if (topK != null) {
+                topK.sortDescending();
+                for (int rank = 0; rank < topK.size(); rank++) {
+                    write(userId, topK.movieAt(rank), topK.scoreAt(rank), context);
+                }
+                topK.clear();
+            }
+        }
+
+        private void emit(int userId, int movieId, double total_score, Context context)
+                throws IOException, InterruptedException {
+            if (topK != null) {
+                topK.offer(movieId, total_score);
+            } else {
+                write(userId, movieId, total_score, context);
+            }
+        }
+
+        private void write(int userId, int movieId, double total_score, Context context)
+                throws IOException, InterruptedException {
+            String movie_title = externalIds.title(movieId);
+            if (movie_title == null) {
+                missingTitles.increment(1);
+            }
+            // format total score
+            total_score = Double.valueOf(df.format(total_score));
+            outputKey.set(externalIds.user(userId));
+            outputValue.set(movie_title + ":" + total_score);
+            context.write(outputKey, outputValue);
+        }
+    }
+
+    /**
+     * The partial scores of one (user, movie), summed in fixed point (see FixedPointScore). The order the
+     * framework passes them in depends on the map outputs, e.g. in triangular mode half of the matrix comes from
+     * the mirrored entries of Normalization, and the blocked and fused modes of MatricesMultiplication sum them
+     * before; summed exactly the same partial scores give the same total score in every mode.
+     */
+    static class PartialScores {
+        long sum;
+        int size;
+
+        void add(double score) {
+            sum += FixedPointScore.of(score);
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            sum = 0;
+            size = 0;
+        }
+
+        double sum() {
+            return FixedPointScore.toDouble(sum);
+        }
+    }
+
+    /**
+     * Translates the ids of the pipeline back for the output. Without -D idDictionary they are the external ids
+     * and only the titles are looked up; with it they are the dense ids of IdDictionary, so the titles are kept
+     * in an array by dense movie id and the user_id is read from the dictionary.
+     */
+    static class ExternalIds {
+        IdDictionary dictionary;
+        String[] titles;                   // by dense movie id
+        Map<Integer, String> movieTitleMap; // movie_id -> movie_title
+
+        static ExternalIds load(Configuration conf) throws IOException {
+            ExternalIds ids = new ExternalIds();
+            ids.movieTitleMap = loadMovieTitles(conf);
+            if (conf.get("idDictionary") != null) {
+                // index file of IdDictionary, linked into the working directory by the distributed cache
+                ids.dictionary = IdDictionary.map(new File(IdDictionary.DICTIONARY_LINK));
+                ids.titles = new String[ids.dictionary.movieCount()];
+                for (int movie = 0; movie < ids.titles.length; movie++) {
+                    ids.titles[movie] = ids.movieTitleMap.get(ids.dictionary.movieAt(movie));
+                }
+                ids.movieTitleMap = null;
+            }
+            return ids;
+        }
+
+        String user(int userId) {
+            return String.valueOf(dictionary == null ? userId : dictionary.userAt(userId));
+        }
+
+        String title(int movieId) {
+            return dictionary == null ? movieTitleMap.get(movieId) : titles[movieId];
+        }
+    }
+
+    /**
+     * read movie titles from the file set as movieTitles, store data in SQL in practical job
+     * @return movie_id -> movie_title
+     */
+    static Map<Integer, String> loadMovieTitles(Configuration conf) throws IOException {
+        Map<Integer, String> movieTitleMap = new HashMap<>();
+        Path path = new Path(conf.get("movieTitles"));
+        FileSystem fs = FileSystem.get(conf);
+        BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path)));
+        String line;
+
+        while ((line = br.readLine()) != null) {
+            // input format :    movie_id,movie_name
+            String[] tokens = line.trim().split(",");
+            int movie_id = Integer.parseInt(tokens[0]);
+            String movie_name = tokens[1];
+            movieTitleMap.put(movie_id, movie_name);
+        }
+        br.close();
+        return movieTitleMap;
+    }
+
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        // -D topK=50 keeps only the 50 best movies of every user
+        // -D watchedFilter=join filters watched movies with a reduce-side join instead of loading them in mappers
+        // -D idDictionary=.../_dictionary.idx translates the dense ids of IdDictionary back in the output
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
+
+    /**
+     * configure and run the job, also used by Driver
+     * @param args rating history, movie titles, input, output
+     * @return true if the job succeeded
+     */
+    public static boolean run(Configuration conf, String[] args) throws Exception {
         // conf must set the String and its parameter before initialize Job
         conf.set("watchHistory", args[0]); // src/main/version2/raw_data/user_rating_history.txt
         conf.set("movieTitles", args[1]);  // src/main/version2/raw_data/movie_title.txt
 
         Job job = Job.getInstance(conf);
 
+        job.setJarByClass(RecommendationListGenerator.class);
+        // the recommendation list is the final human-readable output, so it is still written as text
+        job.setOutputFormatClass(TextOutputFormat.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        TextOutputFormat.setOutputPath(job, new Path(args[3])); // src/main/version2/output/recommendation_list/
+
+        // -D idDictionary=.../dictionary/_dictionary.idx when the pipeline ran on the dense ids of IdDictionary
+        if (conf.get("idDictionary") != null) {
+            Path index = new Path(conf.get("idDictionary"));
+            URI uri = index.getFileSystem(conf).makeQualified(index).toUri();
+            job.addCacheFile(new URI(uri + "#" + IdDictionary.DICTIONARY_LINK));
+        }
+
+        if (isJoinMode(conf)) {
+            // partial scores and watched markers of one user meet in one reduce() call, sorted by movie
+            // with the marker first, so no task has to hold the watched movies of all users
+            MultipleInputs.addInputPath(job, new Path(args[2]), SequenceFileInputFormat.class,
+                    PartialScoreJoinMapper.class); // src/main/version2/output/matrices_multiplication/
+            MultipleInputs.addInputPath(job, new Path(args[0]), TextInputFormat.class,
+                    WatchedJoinMapper.class);      // src/main/version2/raw_data/user_rating_history.txt
+            job.setReducerClass(RecommendationJoinReducer.class);
+            job.setPartitionerClass(TaggedUserMoviePair.UserPartitioner.class);
+            job.setGroupingComparatorClass(TaggedUserMoviePair.GroupingComparator.class);
+
+            job.setMapOutputKeyClass(TaggedUserMoviePair.class);
+            job.setMapOutputValueClass(DoubleWritable.class);
+            return JobStats.waitForCompletion(job);
+        }
+
         job.setMapperClass(RecommendationMapper.class);
         job.setReducerClass(RecommendationReducer.class);
 
-        job.setJarByClass(RecommendationListGenerator.class);
+        // -D watchedIndex=.../data_divider ships the index files of DataDividerByUser to the mappers
+        // instead of letting every mapper parse the whole rating history
+        if (conf.get("watchedIndex") != null) {
+            job.getConfiguration().setInt("watchedIndexFiles",
+                    WatchedIndex.addCacheFiles(job, new Path(conf.get("watchedIndex")), WATCHED_INDEX_LINK));
+        }
 
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        // -D topK=50 writes only the 50 best movies of every user, sorted by score
+        if (conf.getInt("topK", 0) > 0) {
+            job.setPartitionerClass(UserMoviePair.UserPartitioner.class);
+        }
 
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setMapOutputKeyClass(UserMoviePair.class);
+        job.setMapOutputValueClass(DoubleWritable.class);
 
-        // src/main/version2/output/matrices_multiplication/part-r-00000
+        // src/main/version2/output/matrices_multiplication/
         // output of matrices multiplication
-        TextInputFormat.setInputPaths(job, new Path(args[2]));
-        TextOutputFormat.setOutputPath(job, new Path(args[3])); // src/main/version2/output/recommendation_list/
+        SequenceFileInputFormat.setInputPaths(job, new Path(args[2]));
+
+        return JobStats.waitForCompletion(job);
+    }
 
-        job.waitForCompletion(true);
+    /**
+     * @return true if watched movies are filtered by the reduce-side join instead of a side input of the mappers
+     */
+    public static boolean isJoinMode(Configuration conf) {
+        return "join".equals(conf.get("watchedFilter", "broadcast"));
     }
 }
@@ -0,0 +1,268 @@
+package main.version2.java;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import main.common.java.TopKHeap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Scores users on demand instead of writing the recommendations of every user with MatricesMultiplication and
+ * RecommendationListGenerator, most of which are never read.
+ * The normalized co-occurrence matrix written by Normalization is memory-mapped from its index slices, which
+ * the tasks of Normalization write with -D writeNormalizedIndex=true, or loaded into direct buffers when there
+ * are none (see NormalizedMatrix). It is stored by column movieB, so the scores of a user are the sum over the
+ * rated movies movieB of rating * column movieB, which only reads the columns of the user's movies. Watched
+ * movies are filtered out and the top-K of the rest are returned with their titles, best first, one title:score
+ * per line:
+ *      GET /recommend?user=1&k=10                         ratings of user 1 from user_rating_history.txt
+ *      GET /recommend?movies=10001:5.0,10002:3.0&k=10     ratings given in the request
+ *
+ * usage: RecommendationQueryServer normalization_dir user_rating_history.txt movie_title.txt [port] [threads]
+ */
+public class RecommendationQueryServer {
+    private static final int DEFAULT_K = 10;
+
+    private final NormalizedMatrix matrix;
+    private final String[] titles;  // by dense movie index of the matrix
+
+    // rating matrix by user: movies and ratings of users[u] are at userStart[u] .. userStart[u + 1] - 1
+    private int[] users;
+    private int[] userStart;
+    private int[] userMovies;
+    private float[] userRatings;
+
+    // one accumulator and one watched mask per worker thread, both of the width of the matrix
+    private final ThreadLocal<RowAccumulator> accumulators;
+    private final ThreadLocal<boolean[]> watchedOfThread;
+
+    public RecommendationQueryServer(NormalizedMatrix matrix) {
+        this.matrix = matrix;
+        this.titles = new String[matrix.movieCount()];
+        int movies = matrix.movieCount();
+        accumulators = ThreadLocal.withInitial(() -> new RowAccumulator(movies));
+        watchedOfThread = ThreadLocal.withInitial(() -> new boolean[movies]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 8080;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.currentTimeMillis();
+        // src/main/version2/output/normalization/, mapped from its index slices if they are on the local disk
+        File[] index = NormalizedMatrix.indexSlices(new File(args[0]));
+        RecommendationQueryServer server = new RecommendationQueryServer(index.length > 0
+                ? NormalizedMatrix.map(index) : NormalizedMatrix.loadOffHeap(conf, new Path(args[0])));
+        server.loadRatings(args[1]); // src/main/version2/raw_data/user_rating_history.txt
+        server.loadTitles(args[2]);  // src/main/version2/raw_data/movie_title.txt
+        System.out.printf("loaded %d movies and %d users in %dms%n", server.matrix.movieCount(),
+                server.users.length, System.currentTimeMillis() - start);
+
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/recommend", server::handle);
+        http.setExecutor(Executors.newFixedThreadPool(threads));
+        http.start();
+        System.out.println("listening on port " + port);
+    }
+
+    /**
+     * read user_id,movie_id,rating lines into the rating matrix by user
+     */
+    public void loadRatings(String file) throws IOException {
+        // (user_id, line number) packed into one long, so sorting them groups the ratings by user in file order
+        long[] order = new long[1024];
+        int[] movies = new int[1024];
+        float[] ratings = new float[1024];
+        int size = 0;
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] tokens = line.trim().split(",");
+                if (size == order.length) {
+                    order = Arrays.copyOf(order, size * 2);
+                    movies = Arrays.copyOf(movies, size * 2);
+                    ratings = Arrays.copyOf(ratings, size * 2);
+                }
+                order[size] = ((long) Integer.parseInt(tokens[0]) << 32) | size;
+                movies[size] = Integer.parseInt(tokens[1]);
+                ratings[size] = Float.parseFloat(tokens[2]);
+                size++;
+            }
+        }
+        Arrays.sort(order, 0, size);
+
+        users = new int[size];
+        userStart = new int[size + 1];
+        userMovies = new int[size];
+        userRatings = new float[size];
+        int userCount = 0;
+        for (int i = 0; i < size; i++) {
+            int user = (int) (order[i] >> 32);
+            int line = (int) order[i];
+            if (userCount == 0 || users[userCount - 1] != user) {
+                userStart[userCount] = i;
+                users[userCount++] = user;
+            }
+            userMovies[i] = movies[line];
+            userRatings[i] = ratings[line];
+        }
+        userStart[userCount] = size;
+        users = Arrays.copyOf(users, userCount);
+        userStart = Arrays.copyOf(userStart, userCount + 1);
+    }
+
+    /**
+     * read movie_id,movie_name lines, titles of movies which are not in the matrix are dropped
+     */
+    public void loadTitles(String file) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] tokens = line.trim().split(",");
+                int movie = matrix.indexOf(Integer.parseInt(tokens[0]));
+                if (movie >= 0) {
+                    titles[movie] = tokens[1];
+                }
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            int k = params.containsKey("k") ? Integer.parseInt(params.get("k")) : DEFAULT_K;
+            if (k < 1) {
+                throw new IllegalArgumentException("k must be at least 1: " + k);
+            }
+            if (params.containsKey("user")) {
+                int u = Arrays.binarySearch(users, Integer.parseInt(params.get("user")));
+                if (u < 0) {
+                    status = 404;
+                    body = "unknown user " + params.get("user") + "\n";
+                } else {
+                    body = recommend(userMovies, userRatings, userStart[u], userStart[u + 1], k);
+                }
+            } else if (params.containsKey("movies")) {
+                String[] tokens = params.get("movies").split(",");
+                int[] movies = new int[tokens.length];
+                float[] ratings = new float[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    String[] movieRating = tokens[i].split(":");
+                    movies[i] = Integer.parseInt(movieRating[0]);
+                    ratings[i] = Float.parseFloat(movieRating[1]);
+                }
+                body = recommend(movies, ratings, 0, tokens.length, k);
+            } else {
+                status = 400;
+                body = "usage: /recommend?user=user_id[&k=10] or /recommend?movies=movie_id:rating,...[&k=10]\n";
+            }
+        } catch (RuntimeException e) {
+            status = 400;
+            body = e + "\n";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * score every movie of the columns of the rated movies movies[from] .. movies[to - 1]
+     * @param k at least 1
+     * @return the top-K unwatched movies as title:score lines, best first
+     */
+    String recommend(int[] movies, float[] ratings, int from, int to, int k) {
+        // created before the accumulator of the thread is touched, at most one entry per movie
+        TopKHeap heap = new TopKHeap(Math.min(k, titles.length));
+        RowAccumulator scores = accumulators.get();
+        boolean[] watched = watchedOfThread.get();
+        try {
+            for (int i = from; i < to; i++) {
+                int movieB = matrix.indexOf(movies[i]);
+                if (movieB < 0) {
+                    continue;  // nobody else watched it
+                }
+                watched[movieB] = true;
+                double rating = ratings[i];
+                for (int e = matrix.colStart(movieB); e < matrix.colEnd(movieB); e++) {
+                    scores.add(matrix.rowAt(e), rating * matrix.valueAt(e));
+                }
+            }
+
+            for (int i = 0; i < scores.size(); i++) {
+                int movieA = scores.columnAt(i);
+                if (!watched[movieA]) {
+                    heap.offer(movieA, scores.get(movieA));
+                }
+            }
+        } finally {
+            // the accumulator and the mask are reused by the next request of this thread, also after a failure
+            scores.clear();
+            for (int i = from; i < to; i++) {
+                int movieB = matrix.indexOf(movies[i]);
+                if (movieB >= 0) {
+                    watched[movieB] = false;
+                }
+            }
+        }
+        heap.sortDescending();
+        DecimalFormat df = new DecimalFormat("#.00");
+        StringBuilder sb = new StringBuilder();
+        for (int rank = 0; rank < heap.size(); rank++) {
+            double totalScore = Double.valueOf(df.format(heap.scoreAt(rank)));
+            sb.append(titles[heap.movieAt(rank)]).append(':').append(totalScore).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                try {
+                    params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return params;
+    }
+}
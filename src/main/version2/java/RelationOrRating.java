@@ -0,0 +1,87 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Tagged union of the two kinds of values MatriceMultiplicationReducer receives under one movieB key:
+ *      RELATION: movieA and the normalized relation of entry (movieA, movieB) in the co-occurrence matrix
+ *      RATING:   user_id and the user's rating on movieB
+ * It replaces the Text values "movieA=relation" and "user_id:rating" whose kind was told by contains("=").
+ * Normalization also uses RELATION for the raw co-occurrence count of one entry and for its output,
+ * so the normalized matrix can be fed to MatriceMultiplicationReducer without conversion.
+ */
+public class RelationOrRating implements Writable {
+    public static final byte RELATION = 0;
+    public static final byte RATING = 1;
+
+    private byte type;
+    private int id;        // movie for RELATION, user_id for RATING
+    private double value;  // normalized relation for RELATION, rating for RATING
+
+    public RelationOrRating() {
+    }
+
+    public static RelationOrRating relation(int movie, double relation) {
+        RelationOrRating value = new RelationOrRating();
+        value.setRelation(movie, relation);
+        return value;
+    }
+
+    public static RelationOrRating rating(int userId, double rating) {
+        RelationOrRating value = new RelationOrRating();
+        value.setRating(userId, rating);
+        return value;
+    }
+
+    public void setRelation(int movie, double relation) {
+        this.type = RELATION;
+        this.id = movie;
+        this.value = relation;
+    }
+
+    public void setRating(int userId, double rating) {
+        this.type = RATING;
+        this.id = userId;
+        this.value = rating;
+    }
+
+    public boolean isRelation() {
+        return type == RELATION;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        WritableUtils.writeVInt(out, id);
+        out.writeDouble(value);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        type = in.readByte();
+        id = WritableUtils.readVInt(in);
+        value = in.readDouble();
+    }
+
+    @Override
+    public String toString() {
+        return isRelation() ? id + "=" + value : id + ":" + value;
+    }
+}
@@ -0,0 +1,65 @@
+package main.version2.java;
+
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * dense accumulator of one row indexed by the dense movie index, reused by one worker thread for all its rows,
+ * see InMemoryRecommendationEngine and RecommendationQueryServer.
+ * Only the touched columns are remembered and cleared, so a row costs its number of entries
+ * and not the number of movies.
+ */
+class RowAccumulator {
+    private final double[] values;
+    private final boolean[] touched;
+    private int[] columns = new int[64];
+    private int size;
+
+    RowAccumulator(int width) {
+        values = new double[width];
+        touched = new boolean[width];
+    }
+
+    void add(int column, double value) {
+        if (!touched[column]) {
+            touched[column] = true;
+            if (size == columns.length) {
+                columns = Arrays.copyOf(columns, size * 2);
+            }
+            columns[size++] = column;
+        }
+        values[column] += value;
+    }
+
+    double get(int column) {
+        return values[column];
+    }
+
+    /**
+     * number of touched columns, iterate them unsorted with {@link #columnAt(int)}
+     */
+    int size() {
+        return size;
+    }
+
+    int columnAt(int i) {
+        return columns[i];
+    }
+
+    int[] sortedColumns() {
+        int[] sorted = Arrays.copyOf(columns, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            values[columns[i]] = 0;
+            touched[columns[i]] = false;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,182 @@
+package main.version2.java;
+
+import main.common.java.TextFields;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Find the keys which make the same few reducers stragglers by sampling the raw ratings:
+ *      heavy users:  their n ratings give n * n records from one map() call of CooccurrenceMatrixGenerator
+ *      hot movies:   one reduce() call of MatriceMultiplicationReducer receives all their ratings
+ * A key is heavy / hot when its estimated count is more than skewFactor (default 10) times the mean count.
+ * detect() puts the hot movies into hotMovies of the configuration, which makes MatricesMultiplication
+ * salt them, and returns the report. The heavy users are only reported, -D maxHistoryLength of
+ * CooccurrenceMatrixGenerator bounds their map() calls.
+ *
+ * Sampling is done on the client but bounded: skewSampleSplits (default 10) evenly spaced splits of the input
+ * are read like LineRecordReader reads a split, at most skewSampleRecords (default 100000) lines in all, so
+ * detect() costs the same on any size of input. The counts are scaled by the share of the input bytes which
+ * were read; an input smaller than the sample is read completely and counted exactly. The ratings of a user are
+ * often on consecutive lines, so a split holds all or none of them and the count of a sampled user is
+ * overestimated, like the mean count of the sampled users it is compared with.
+ *
+ * usage: SkewSampler [-D skewSampleRecords=100000] [-D skewSampleSplits=10] [-D skewFactor=10]
+ *        user_rating_history.txt
+ */
+public class SkewSampler {
+    private final List<int[]> heavyUsers = new ArrayList<>();  // {user_id, estimated ratings}
+    private final List<int[]> hotMovies = new ArrayList<>();   // {movie_id, estimated ratings}
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        SkewSampler sampler = detect(conf, new Path(args[0]));
+        for (int[] user : sampler.heavyUsers) {
+            System.out.println("heavy user " + user[0] + ": ~" + user[1] + " ratings");
+        }
+        for (int[] movie : sampler.hotMovies) {
+            System.out.println("hot movie " + movie[0] + ": ~" + movie[1] + " ratings");
+        }
+        System.out.println("hotMovies=" + conf.get("hotMovies", ""));
+    }
+
+    /**
+     * @param ratings file or directory of files of user_id,movie_id,rating lines
+     */
+    public static SkewSampler detect(Configuration conf, Path ratings) throws IOException {
+        int maxRecords = conf.getInt("skewSampleRecords", 100000);
+        int splits = conf.getInt("skewSampleSplits", 10);
+        double factor = conf.getDouble("skewFactor", 10);
+
+        FileSystem fs = ratings.getFileSystem(conf);
+        List<FileStatus> files = new ArrayList<>();
+        long totalBytes = 0;
+        for (FileStatus file : fs.listStatus(ratings)) {
+            String name = file.getPath().getName();
+            if (file.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+                files.add(file);
+                totalBytes += file.getLen();
+            }
+        }
+
+        Map<Integer, Integer> userCounts = new HashMap<>();
+        Map<Integer, Integer> movieCounts = new HashMap<>();
+        long sampledBytes = 0;
+        for (int split = 0; split < splits; split++) {
+            // the split is a range of the files one after another
+            long splitStart = totalBytes * split / splits;
+            long splitEnd = totalBytes * (split + 1) / splits;
+            int records = maxRecords / splits + (split < maxRecords % splits ? 1 : 0);
+            long fileStart = 0;
+            for (FileStatus file : files) {
+                long from = Math.max(splitStart, fileStart);
+                long to = Math.min(splitEnd, fileStart + file.getLen());
+                if (from < to && records > 0) {
+                    long[] sampled = sampleSplit(fs, file.getPath(), from - fileStart, to - fileStart, records,
+                            userCounts, movieCounts);
+                    records -= (int) sampled[0];
+                    sampledBytes += sampled[1];
+                }
+                fileStart += file.getLen();
+            }
+        }
+
+        double rate = sampledBytes == 0 ? 1 : Math.min(1, (double) sampledBytes / totalBytes);
+        SkewSampler sampler = new SkewSampler();
+        collect(userCounts, rate, factor, sampler.heavyUsers);
+        collect(movieCounts, rate, factor, sampler.hotMovies);
+        if (!sampler.hotMovies.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (int[] movie : sampler.hotMovies) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(movie[0]);
+            }
+            conf.set("hotMovies", sb.toString());
+        }
+        return sampler;
+    }
+
+    /**
+     * count the users and movies of at most maxRecords lines starting in start .. end of the file, the line
+     * across start belongs to the split before like in LineRecordReader
+     * @return {lines, bytes} counted
+     */
+    private static long[] sampleSplit(FileSystem fs, Path file, long start, long end, int maxRecords,
+                                      Map<Integer, Integer> userCounts, Map<Integer, Integer> movieCounts)
+            throws IOException {
+        TextFields fields = new TextFields();
+        Text line = new Text();
+        long records = 0;
+        long bytes = 0;
+        try (FSDataInputStream in = fs.open(file)) {
+            in.seek(start);
+            LineReader reader = new LineReader(in);
+            long pos = start;
+            if (start != 0) {
+                pos += reader.readLine(line);
+            }
+            while (pos <= end && records < maxRecords) {
+                int read = reader.readLine(line);
+                if (read == 0) {
+                    break;
+                }
+                pos += read;
+                bytes += read;
+                records++;
+                fields.split(line, ',');
+                if (fields.size() < 2) {
+                    continue;
+                }
+                userCounts.merge(fields.intAt(0), 1, Integer::sum);
+                movieCounts.merge(fields.intAt(1), 1, Integer::sum);
+            }
+        }
+        return new long[]{records, bytes};
+    }
+
+    /**
+     * add every key whose count is more than factor times the mean count, with its estimated total count
+     */
+    private static void collect(Map<Integer, Integer> counts, double rate, double factor, List<int[]> skewed) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        for (int count : counts.values()) {
+            total += count;
+        }
+        double mean = (double) total / counts.size();
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > factor * mean) {
+                skewed.add(new int[]{entry.getKey(), (int) (entry.getValue() / rate)});
+            }
+        }
+        skewed.sort((a, b) -> Integer.compare(b[1], a[1]));
+    }
+
+    public List<int[]> getHeavyUsers() {
+        return heavyUsers;
+    }
+
+    public List<int[]> getHotMovies() {
+        return hotMovies;
+    }
+}
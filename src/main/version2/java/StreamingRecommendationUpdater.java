@@ -0,0 +1,332 @@
+package main.version2.java;
+
+import main.common.java.TopKHeap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Keeps the recommendations of the users up to date while new ratings are appended to an event log, instead of
+ * waiting for the next batch run of the pipeline.
+ * The event log has the format of user_rating_history.txt (user_id,movie_id,rating) and is tailed like
+ * "tail -f": complete lines are applied in order, a partly written last line is read again on the next poll.
+ * A malformed line is skipped and counted, it does not stop the updater.
+ *
+ * The state is what the batch jobs compute, held in memory per movie and per user:
+ *      rating histories   user_id -> RatingHistory, as written by DataDividerByUser
+ *      co-occurrence rows movieA -> StripeWritable {movieB:count}, as summed by CooccurrenceMatrixGenerator
+ *      row sums           sum of row movieA, the denominator of Normalization
+ * A new rating of movie m by a user with the history H adds the pairs (m, B) and (B, m) for every B in H and
+ * (m, m), which touches |H| + 1 rows; rating a watched movie again only changes the rating.
+ * The scores of the rating user, sum over B in H of rating(B) * count(A, B) / rowSum(A), are then computed
+ * from the rows of H only, so the user's top-K list is written within milliseconds of the event.
+ * The rows of the other users' histories change as well, their lists are refreshed at their next rating.
+ *
+ * Ratings read before the end of the log is reached for the first time only update the state, so the full
+ * history can be replayed from the start of the log. After that the top-K list of every rating user is
+ * appended to output_file in the format of RecommendationListGenerator, user_id \t movie_title:total_score.
+ *
+ * Every checkpoint_seconds the state and the log offset of the last applied line are written to
+ * checkpoint_file (into a temporary file which is then renamed), and a restart continues from there.
+ *
+ * usage: StreamingRecommendationUpdater rating_events.txt movie_title.txt output_file checkpoint_file
+ *        [top_k] [checkpoint_seconds]
+ */
+public class StreamingRecommendationUpdater {
+    private static final int CHECKPOINT_MAGIC = 0x53525531;  // "SRU1"
+    private static final long POLL_MILLIS = 50;
+
+    /**
+     * one row of the co-occurrence matrix with its sum, kept up to date together
+     */
+    private static class MovieRow {
+        final StripeWritable counts = new StripeWritable();
+        long sum;
+    }
+
+    private final Map<Integer, RatingHistory> histories = new HashMap<>();
+    private final Map<Integer, MovieRow> rows = new HashMap<>();
+    private final Map<Integer, String> titles;
+
+    // offset of the first byte of the log which is not applied yet, advanced only after a line is applied
+    // or skipped, so the checkpoint never holds an offset past a line the state does not contain
+    private long offset;
+    // lines skipped because they are not user_id,movie_id,rating
+    private long malformed;
+
+    private final PairScoreMap scores = new PairScoreMap(1024);
+    private final TopKHeap heap;
+    private final DecimalFormat df = new DecimalFormat("#.00");
+
+    public StreamingRecommendationUpdater(Map<Integer, String> titles, int k) {
+        this.titles = titles;
+        this.heap = new TopKHeap(k);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path events = Paths.get(args[0]);      // append-only rating event log
+        Path titleFile = Paths.get(args[1]);   // src/main/version2/raw_data/movie_title.txt
+        Path output = Paths.get(args[2]);
+        Path checkpoint = Paths.get(args[3]);
+        int k = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        long checkpointMillis = (args.length > 5 ? Long.parseLong(args[5]) : 60) * 1000;
+
+        StreamingRecommendationUpdater updater = new StreamingRecommendationUpdater(loadTitles(titleFile), k);
+        if (Files.exists(checkpoint)) {
+            long start = System.currentTimeMillis();
+            updater.restore(checkpoint);
+            System.out.printf("restored %d users, %d movies at offset %d in %dms%n", updater.histories.size(),
+                    updater.rows.size(), updater.offset, System.currentTimeMillis() - start);
+        }
+
+        // stop tailing on Ctrl-C / SIGTERM, the loop writes a last checkpoint and then lets the JVM exit
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            main.interrupt();
+            try {
+                stopped.await();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+        try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            updater.tail(events, out, checkpoint, checkpointMillis);
+        } finally {
+            updater.checkpoint(checkpoint);
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * apply the lines of the log as they are appended, until the thread is interrupted
+     */
+    void tail(Path events, BufferedWriter out, Path checkpoint, long checkpointMillis) throws IOException {
+        boolean caughtUp = false;
+        long lastCheckpoint = System.currentTimeMillis();
+        long applied = 0;
+        long latencyNanos = 0;
+        byte[] buffer = new byte[1 << 16];
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();  // bytes after the last complete line
+        try (RandomAccessFile log = new RandomAccessFile(events.toFile(), "r")) {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (System.currentTimeMillis() - lastCheckpoint >= checkpointMillis) {
+                    checkpoint(checkpoint);
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+                if (log.length() < offset + pending.size()) {
+                    throw new IOException(events + " was truncated, the log must be append-only");
+                }
+                log.seek(offset + pending.size());
+                int n = log.read(buffer);
+                if (n <= 0) {
+                    if (!caughtUp) {
+                        caughtUp = true;
+                        System.out.printf("caught up at offset %d: %d users, %d movies%n", offset,
+                                histories.size(), rows.size());
+                    } else if (applied > 0) {
+                        System.out.printf("applied %d ratings, %.3fms per rating, %d malformed lines skipped%n",
+                                applied, latencyNanos / 1e6 / applied, malformed);
+                        applied = 0;
+                        latencyNanos = 0;
+                    }
+                    try {
+                        Thread.sleep(POLL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    pending.write(buffer, start, i - start);
+                    String line = new String(pending.toByteArray(), StandardCharsets.UTF_8).trim();
+                    long next = offset + pending.size() + 1;
+                    pending.reset();
+                    start = i + 1;
+                    if (line.isEmpty()) {
+                        offset = next;
+                        continue;
+                    }
+                    long begin = System.nanoTime();
+                    int userId;
+                    try {
+                        userId = apply(line);
+                    } catch (IllegalArgumentException e) {
+                        malformed++;
+                        System.err.printf("skip malformed line at offset %d: %s (%s)%n", offset, line,
+                                e.getMessage());
+                        offset = next;
+                        continue;
+                    }
+                    offset = next;
+                    if (caughtUp) {
+                        writeRecommendations(userId, out);
+                        out.flush();
+                        latencyNanos += System.nanoTime() - begin;
+                        applied++;
+                    }
+                }
+                pending.write(buffer, start, n - start);
+            }
+        }
+    }
+
+    /**
+     * @param line user_id,movie_id,rating
+     * @return user_id
+     * @throws IllegalArgumentException if the line is malformed, before any state is changed
+     */
+    int apply(String line) {
+        String[] tokens = line.split(",");
+        if (tokens.length < 3) {
+            throw new IllegalArgumentException("expected user_id,movie_id,rating");
+        }
+        int userId = Integer.parseInt(tokens[0]);
+        int movie = Integer.parseInt(tokens[1]);
+        float rating = Float.parseFloat(tokens[2]);
+        RatingHistory history = histories.computeIfAbsent(userId, id -> new RatingHistory());
+        for (int i = 0; i < history.size(); i++) {
+            if (history.getMovieId(i) == movie) {
+                history.setRating(i, rating);
+                return userId;
+            }
+        }
+        MovieRow row = rows.computeIfAbsent(movie, id -> new MovieRow());
+        for (int i = 0; i < history.size(); i++) {
+            MovieRow other = rows.get(history.getMovieId(i));
+            row.counts.add(history.getMovieId(i), 1);
+            row.sum++;
+            other.counts.add(movie, 1);
+            other.sum++;
+        }
+        row.counts.add(movie, 1);
+        row.sum++;
+        history.add(movie, rating);
+        return userId;
+    }
+
+    /**
+     * compute the scores of one user from the current rows and append the user's top-K unwatched movies
+     */
+    void writeRecommendations(int userId, BufferedWriter out) throws IOException {
+        RatingHistory history = histories.get(userId);
+        int[] watched = new int[history.size()];
+        for (int i = 0; i < history.size(); i++) {
+            watched[i] = history.getMovieId(i);
+            float rating = history.getRating(i);
+            // the matrix is symmetric, so row movieB holds column movieB: count(movieA, movieB)
+            StripeWritable row = rows.get(history.getMovieId(i)).counts;
+            for (int slot = 0; slot < row.capacity(); slot++) {
+                if (row.countAt(slot) != 0) {
+                    int movieA = row.movieAt(slot);
+                    scores.add(userId, movieA, rating * row.countAt(slot) / (double) rows.get(movieA).sum);
+                }
+            }
+        }
+        Arrays.sort(watched);
+        for (int i = 0; i < scores.size(); i++) {
+            // filter out watched ones
+            if (Arrays.binarySearch(watched, scores.movieIdAt(i)) < 0) {
+                heap.offer(scores.movieIdAt(i), scores.scoreAt(i));
+            }
+        }
+        heap.sortDescending();
+        for (int rank = 0; rank < heap.size(); rank++) {
+            double totalScore = Double.valueOf(df.format(heap.scoreAt(rank)));
+            out.write(userId + "\t" + titles.get(heap.movieAt(rank)) + ":" + totalScore);
+            out.newLine();
+        }
+        heap.clear();
+        scores.clear();
+    }
+
+    /**
+     * format: magic, offset, users, users * (user_id, RatingHistory), movies, movies * (movie_id, StripeWritable)
+     */
+    void checkpoint(Path checkpoint) throws IOException {
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(offset);
+            out.writeInt(histories.size());
+            for (Map.Entry<Integer, RatingHistory> entry : histories.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.writeInt(rows.size());
+            for (Map.Entry<Integer, MovieRow> entry : rows.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().counts.write(out);
+            }
+        }
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void restore(Path checkpoint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException(checkpoint + " is not a checkpoint");
+            }
+            offset = in.readLong();
+            int users = in.readInt();
+            for (int i = 0; i < users; i++) {
+                int userId = in.readInt();
+                RatingHistory history = new RatingHistory();
+                history.readFields(in);
+                histories.put(userId, history);
+            }
+            int movies = in.readInt();
+            for (int i = 0; i < movies; i++) {
+                int movie = in.readInt();
+                MovieRow row = new MovieRow();
+                row.counts.readFields(in);
+                row.sum = row.counts.sum();
+                rows.put(movie, row);
+            }
+        }
+    }
+
+    /**
+     * movie_id -> movie_title, like RecommendationReducer
+     */
+    static Map<Integer, String> loadTitles(Path file) throws IOException {
+        Map<Integer, String> titles = new HashMap<>();
+        try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] tokens = line.trim().split(",");
+                titles.put(Integer.parseInt(tokens[0]), tokens[1]);
+            }
+        }
+        return titles;
+    }
+}
@@ -0,0 +1,164 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * One sparse row of the co-occurrence matrix: movieB -> count, used by the stripes approach of
+ * CooccurrenceMatrixGenerator instead of one (movieA:movieB, 1) record per pair.
+ * Kept as an open addressing int -> int map in primitive arrays so that merging stripes element-wise
+ * in the combiner and reducer does not box. A slot whose count is 0 is empty.
+ */
+public class StripeWritable implements Writable {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] movies;
+    private int[] counts;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public StripeWritable() {
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        movies = new int[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * add count to the entry of movie
+     */
+    public void add(int movie, int count) {
+        int slot = slotOf(movie);
+        while (counts[slot] != 0) {
+            if (movies[slot] == movie) {
+                counts[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        movies[slot] = movie;
+        counts[slot] = count;
+        if (++size > threshold) {
+            rehash();
+        }
+    }
+
+    /**
+     * element-wise sum of other into this stripe
+     */
+    public void merge(StripeWritable other) {
+        for (int slot = 0; slot < other.counts.length; slot++) {
+            if (other.counts[slot] != 0) {
+                add(other.movies[slot], other.counts[slot]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * sum of all counts, i.e. the denominator used to normalize this row
+     */
+    public long sum() {
+        long sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * number of slots, iterate with {@link #countAt(int)} and skip the slots whose count is 0
+     */
+    public int capacity() {
+        return counts.length;
+    }
+
+    public int movieAt(int slot) {
+        return movies[slot];
+    }
+
+    public int countAt(int slot) {
+        return counts[slot];
+    }
+
+    private int slotOf(int movie) {
+        int h = movie * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash() {
+        int[] oldMovies = movies;
+        int[] oldCounts = counts;
+        allocate(oldCounts.length << 1);
+        for (int i = 0; i < oldCounts.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = slotOf(oldMovies[i]);
+                while (counts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                movies[slot] = oldMovies[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * format: vint size, then size * (vint movieB, vint count)
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, size);
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) {
+                WritableUtils.writeVInt(out, movies[slot]);
+                WritableUtils.writeVInt(out, counts[slot]);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        clear();
+        int entries = WritableUtils.readVInt(in);
+        for (int i = 0; i < entries; i++) {
+            int movie = WritableUtils.readVInt(in);
+            add(movie, WritableUtils.readVInt(in));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) {
+                if (sb.length() > 1) {
+                    sb.append(",");
+                }
+                sb.append(movies[slot]).append(":").append(counts[slot]);
+            }
+        }
+        return sb.append("}").toString();
+    }
+}
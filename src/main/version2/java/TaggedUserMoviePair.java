@@ -0,0 +1,145 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Key of the reduce-side join of RecommendationListGenerator: (user_id, movie_id) plus a tag telling whether
+ * the record is a watched marker from the rating history or a partial score from MatricesMultiplication.
+ * Sorted by user_id, movie_id and then tag with WATCHED before SCORE, so the marker of a watched movie
+ * arrives before its scores. UserPartitioner and GroupingComparator only look at user_id, so one reduce()
+ * call sees all movies of one user in order.
+ * Serialized as two fixed width ints and one byte (9 bytes) so that keys can be compared on the raw bytes.
+ */
+public class TaggedUserMoviePair implements WritableComparable<TaggedUserMoviePair> {
+    public static final byte WATCHED = 0;
+    public static final byte SCORE = 1;
+
+    private int userId;
+    private int movieId;
+    private byte tag;
+
+    public TaggedUserMoviePair() {
+    }
+
+    public void set(int userId, int movieId, byte tag) {
+        this.userId = userId;
+        this.movieId = movieId;
+        this.tag = tag;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public int getMovieId() {
+        return movieId;
+    }
+
+    public boolean isWatched() {
+        return tag == WATCHED;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(userId);
+        out.writeInt(movieId);
+        out.writeByte(tag);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        userId = in.readInt();
+        movieId = in.readInt();
+        tag = in.readByte();
+    }
+
+    @Override
+    public int compareTo(TaggedUserMoviePair other) {
+        if (userId != other.userId) {
+            return Integer.compare(userId, other.userId);
+        }
+        if (movieId != other.movieId) {
+            return Integer.compare(movieId, other.movieId);
+        }
+        return Byte.compare(tag, other.tag);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TaggedUserMoviePair)) {
+            return false;
+        }
+        TaggedUserMoviePair other = (TaggedUserMoviePair) o;
+        return userId == other.userId && movieId == other.movieId && tag == other.tag;
+    }
+
+    @Override
+    public int hashCode() {
+        return (userId * 163 + movieId) * 2 + tag;
+    }
+
+    @Override
+    public String toString() {
+        return userId + ":" + movieId + (isWatched() ? ":watched" : ":score");
+    }
+
+    /**
+     * compare serialized keys without deserializing them
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(TaggedUserMoviePair.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Byte.compare(b1[s1 + 8], b2[s2 + 8]);
+        }
+    }
+
+    /**
+     * group all keys of one user into one reduce() call
+     */
+    public static class GroupingComparator extends WritableComparator {
+        public GroupingComparator() {
+            super(TaggedUserMoviePair.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Integer.compare(readInt(b1, s1), readInt(b2, s2));
+        }
+    }
+
+    /**
+     * send all keys of one user to the same reducer
+     */
+    public static class UserPartitioner<V> extends Partitioner<TaggedUserMoviePair, V> {
+        @Override
+        public int getPartition(TaggedUserMoviePair key, V value, int numPartitions) {
+            return (key.getUserId() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    static {
+        WritableComparator.define(TaggedUserMoviePair.class, new Comparator());
+    }
+}
@@ -0,0 +1,80 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Value of the blocked mode of MatricesMultiplication, where the reducer key is a tile instead of movieB,
+ * so movieB has to travel with the value:
+ *      RELATION: movieA, movieB and the normalized relation of entry (movieA, movieB)
+ *      RATING:   user_id, movieB and the user's rating on movieB
+ */
+public class TileEntry implements Writable {
+    public static final byte RELATION = 0;
+    public static final byte RATING = 1;
+
+    private byte type;
+    private int id;        // movieA for RELATION, user_id for RATING
+    private int movieB;
+    private double value;  // normalized relation for RELATION, rating for RATING
+
+    public void setRelation(int movieA, int movieB, double relation) {
+        set(RELATION, movieA, movieB, relation);
+    }
+
+    public void setRating(int userId, int movieB, double rating) {
+        set(RATING, userId, movieB, rating);
+    }
+
+    private void set(byte type, int id, int movieB, double value) {
+        this.type = type;
+        this.id = id;
+        this.movieB = movieB;
+        this.value = value;
+    }
+
+    public boolean isRelation() {
+        return type == RELATION;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getMovieB() {
+        return movieB;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        WritableUtils.writeVInt(out, id);
+        WritableUtils.writeVInt(out, movieB);
+        out.writeDouble(value);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        type = in.readByte();
+        id = WritableUtils.readVInt(in);
+        movieB = WritableUtils.readVInt(in);
+        value = in.readDouble();
+    }
+
+    @Override
+    public String toString() {
+        return isRelation() ? id + ":" + movieB + "=" + value : id + ":" + movieB + ":" + value;
+    }
+}
@@ -0,0 +1,120 @@
+package main.version2.java;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author yifengguo
+ */
+
+/**
+ * Binary key of (user_id, movie_id) which replaces the "user_id:movie_id" Text key
+ * used by MatricesMultiplication and RecommendationListGenerator.
+ * Serialized as two fixed width ints (8 bytes) so that keys can be compared on the raw bytes during shuffle.
+ */
+public class UserMoviePair implements WritableComparable<UserMoviePair> {
+    private int userId;
+    private int movieId;
+
+    public UserMoviePair() {
+    }
+
+    public UserMoviePair(int userId, int movieId) {
+        set(userId, movieId);
+    }
+
+    public void set(int userId, int movieId) {
+        this.userId = userId;
+        this.movieId = movieId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public int getMovieId() {
+        return movieId;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(userId);
+        out.writeInt(movieId);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        userId = in.readInt();
+        movieId = in.readInt();
+    }
+
+    /**
+     * order by user_id first so that all movies of one user are adjacent in the sorted output
+     */
+    @Override
+    public int compareTo(UserMoviePair other) {
+        if (userId != other.userId) {
+            return Integer.compare(userId, other.userId);
+        }
+        return Integer.compare(movieId, other.movieId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof UserMoviePair)) {
+            return false;
+        }
+        UserMoviePair other = (UserMoviePair) o;
+        return userId == other.userId && movieId == other.movieId;
+    }
+
+    /**
+     * used by HashPartitioner, so both fields must take part
+     */
+    @Override
+    public int hashCode() {
+        return userId * 163 + movieId;
+    }
+
+    @Override
+    public String toString() {
+        return userId + ":" + movieId;
+    }
+
+    /**
+     * compare serialized keys without deserializing them
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(UserMoviePair.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+        }
+    }
+
+    /**
+     * send all movies of one user to the same reducer, for reducers which keep state per user across keys
+     */
+    public static class UserPartitioner<V> extends Partitioner<UserMoviePair, V> {
+        @Override
+        public int getPartition(UserMoviePair key, V value, int numPartitions) {
+            return (key.getUserId() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    static {
+        WritableComparator.define(UserMoviePair.class, new Comparator());
+    }
+}